@@ -0,0 +1,226 @@
+package org.klojang.templates;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * The corpus of templates and data used by the benchmarks. The data is generated
+ * from a fixed seed, so that all benchmark runs see the same data. It comes in three
+ * shapes (maps, JavaBeans and records) with identical contents.
+ */
+public final class BenchmarkData {
+
+  static final String SMALL = "small";
+  static final String MEDIUM = "medium";
+  static final String HUGE = "huge";
+
+  // The number of products0 .. productsN nested templates in huge.html
+  static final int HUGE_SECTIONS = 60;
+
+  private static final String[] WORDS = {"organic", "deluxe", "compact", "Ærø",
+        "smart", "wireless", "<limited>", "\"classic\"", "eco", "São Paulo", "pro",
+        "family-size", "R&D", "nordic", "café"};
+
+  public record Tag(String tag) {}
+
+  public record Product(int id,
+        String name,
+        String description,
+        String price,
+        int stock,
+        List<Tag> tags) {}
+
+  public record Page(String title,
+        String description,
+        String customerName,
+        int year,
+        List<Product> products) {}
+
+  public static final class TagBean {
+
+    private final String tag;
+
+    TagBean(String tag) {
+      this.tag = tag;
+    }
+
+    public String getTag() {
+      return tag;
+    }
+
+  }
+
+  public static final class ProductBean {
+
+    private final Product p;
+    private final List<TagBean> tags;
+
+    ProductBean(Product p) {
+      this.p = p;
+      this.tags = p.tags().stream().map(t -> new TagBean(t.tag())).toList();
+    }
+
+    public int getId() {
+      return p.id();
+    }
+
+    public String getName() {
+      return p.name();
+    }
+
+    public String getDescription() {
+      return p.description();
+    }
+
+    public String getPrice() {
+      return p.price();
+    }
+
+    public int getStock() {
+      return p.stock();
+    }
+
+    public List<TagBean> getTags() {
+      return tags;
+    }
+
+  }
+
+  public static final class PageBean {
+
+    private final Page page;
+    private final List<ProductBean> products;
+
+    PageBean(Page page) {
+      this.page = page;
+      this.products = page.products().stream().map(ProductBean::new).toList();
+    }
+
+    public String getTitle() {
+      return page.title();
+    }
+
+    public String getDescription() {
+      return page.description();
+    }
+
+    public String getCustomerName() {
+      return page.customerName();
+    }
+
+    public int getYear() {
+      return page.year();
+    }
+
+    public List<ProductBean> getProducts() {
+      return products;
+    }
+
+  }
+
+  static Template template(String name) throws ParseException {
+    return Template.fromResource(BenchmarkData.class, path(name));
+  }
+
+  static String source(String name) {
+    try (InputStream in = BenchmarkData.class.getResourceAsStream(path(name))) {
+      return new String(in.readAllBytes(), UTF_8);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  static String path(String name) {
+    return "/org/klojang/templates/bench/" + name + ".html";
+  }
+
+  static Page page(int numProducts) {
+    Random random = new Random(42);
+    List<Product> products = new ArrayList<>(numProducts);
+    for (int i = 0; i < numProducts; ++i) {
+      String name = words(random, 2) + " " + i;
+      String desc = "The " + words(random, 6) + " choice for every home";
+      String price = String.format("%d.%02d", random.nextInt(500), random.nextInt(100));
+      List<Tag> tags = new ArrayList<>();
+      for (int j = random.nextInt(4); j >= 0; --j) {
+        tags.add(new Tag(WORDS[random.nextInt(WORDS.length)]));
+      }
+      products.add(new Product(i, name, desc, price, random.nextInt(1000), tags));
+    }
+    return new Page("Spring sale & clearance",
+          "Best \"deals\" of the <season>",
+          "Jörg O'Brien",
+          2025,
+          products);
+  }
+
+  static PageBean pageBean(Page page) {
+    return new PageBean(page);
+  }
+
+  static Map<String, Object> pageMap(Page page) {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("title", page.title());
+    map.put("description", page.description());
+    map.put("customerName", page.customerName());
+    map.put("year", page.year());
+    map.put("products", page.products().stream().map(BenchmarkData::productMap).toList());
+    return map;
+  }
+
+  private static Map<String, Object> productMap(Product p) {
+    Map<String, Object> map = new LinkedHashMap<>();
+    map.put("id", p.id());
+    map.put("name", p.name());
+    map.put("description", p.description());
+    map.put("price", p.price());
+    map.put("stock", p.stock());
+    map.put("tags", p.tags().stream().map(t -> Map.of("tag", t.tag())).toList());
+    return map;
+  }
+
+  /*
+   * Returns a fully populated render session for the specified template.
+   */
+  static RenderSession populate(String template, Page page) throws ParseException {
+    RenderSession rs = template(template).newRenderSession();
+    switch (template) {
+      case SMALL -> rs.set("firstName", "Jörg")
+            .set("lastName", "O'Brien")
+            .set("orderId", 1234567)
+            .set("shipDate", "2025-04-01");
+      case MEDIUM -> rs.insert(page);
+      default -> {
+        rs.insert(page);
+        for (int i = 0; i < HUGE_SECTIONS; ++i) {
+          rs.populate("products" + i, page.products());
+        }
+      }
+    }
+    return rs;
+  }
+
+  private static String words(Random random, int count) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < count; ++i) {
+      if (i > 0) {
+        sb.append(' ');
+      }
+      sb.append(WORDS[random.nextInt(WORDS.length)]);
+    }
+    return sb.toString();
+  }
+
+  private BenchmarkData() {
+    throw new UnsupportedOperationException();
+  }
+
+}
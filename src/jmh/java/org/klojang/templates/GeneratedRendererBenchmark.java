@@ -0,0 +1,65 @@
+package org.klojang.templates;
+
+import org.klojang.templates.RenderProgram.CharOutput;
+import org.klojang.templates.RenderProgram.DelayedValues;
+import org.klojang.templates.RenderProgram.Generated;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Compares the renderer generated for a RenderProgram (see RenderCodeGenerator) with
+ * the interpreter executing the same program, both rendering a fully populated
+ * template to a StringBuilder. Unlike RenderBenchmark, this does not depend on the
+ * bytecodeRenderer setting, so both are measured within the same JVM.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GeneratedRendererBenchmark {
+
+  @State(Scope.Thread)
+  public static class Buffers {
+
+    final StringBuilder sb = new StringBuilder(1 << 16);
+
+  }
+
+  @Param({BenchmarkData.SMALL, BenchmarkData.MEDIUM, BenchmarkData.HUGE})
+  public String template;
+
+  @Param({"10", "1000"})
+  public int products;
+
+  private RenderState state;
+  private RenderProgram program;
+  private Generated generated;
+
+  @Setup
+  public void setup() throws Throwable {
+    SoloSession session = (SoloSession) BenchmarkData.populate(template,
+          BenchmarkData.page(products));
+    state = session.state();
+    program = state.getSessionConfig().template().program();
+    generated = program.generate();
+  }
+
+  @Benchmark
+  public int interpreted(Buffers buffers) throws IOException {
+    buffers.sb.setLength(0);
+    program.run(state, new CharOutput(buffers.sb), 0);
+    return buffers.sb.length();
+  }
+
+  @Benchmark
+  public int generated(Buffers buffers) throws IOException {
+    buffers.sb.setLength(0);
+    generated.render(state, new CharOutput(buffers.sb), new DelayedValues());
+    return buffers.sb.length();
+  }
+
+}
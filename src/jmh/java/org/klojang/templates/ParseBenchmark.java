@@ -0,0 +1,60 @@
+package org.klojang.templates;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.klojang.templates.TemplateLocation.STRING;
+import static org.klojang.templates.Template.ROOT_TEMPLATE_NAME;
+
+/*
+ * Measures how long it takes to parse a template, and how long it takes to retrieve
+ * an already parsed template from the template cache. The "large" benchmark parses a
+ * generated template of about 2 MB, consisting of copies of huge.html, each wrapped in
+ * an inline template of its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParseBenchmark {
+
+  @Param({BenchmarkData.SMALL, BenchmarkData.MEDIUM, BenchmarkData.HUGE})
+  public String template;
+
+  private String source;
+  private String largeSource;
+
+  @Setup
+  public void setup() throws ParseException {
+    source = BenchmarkData.source(template);
+    // Make sure the template is in the cache
+    BenchmarkData.template(template);
+    String huge = BenchmarkData.source(BenchmarkData.HUGE);
+    StringBuilder sb = new StringBuilder(2_200_000);
+    for (int i = 0; sb.length() < 2_000_000; ++i) {
+      sb.append("<!-- ~%%begin:copy").append(i).append("% -->\n")
+            .append(huge)
+            .append("<!-- ~%%end:copy").append(i).append("% -->\n");
+    }
+    largeSource = sb.toString();
+  }
+
+  @Benchmark
+  public Template parse() throws ParseException {
+    return new Parser(STRING, ROOT_TEMPLATE_NAME, source).parse();
+  }
+
+  @Benchmark
+  public Template parseLarge() throws ParseException {
+    return new Parser(STRING, ROOT_TEMPLATE_NAME, largeSource).parse();
+  }
+
+  @Benchmark
+  public Template cacheHit() throws ParseException {
+    return BenchmarkData.template(template);
+  }
+
+}
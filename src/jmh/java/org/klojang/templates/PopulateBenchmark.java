@@ -0,0 +1,63 @@
+package org.klojang.templates;
+
+import org.klojang.templates.BenchmarkData.Page;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures how long it takes to populate a template from a map, a JavaBean and a
+ * record with identical contents. The last two benchmarks compare populating and
+ * rendering a session with rendering the template directly from the source data.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PopulateBenchmark {
+
+  @Param({"10", "1000"})
+  public int products;
+
+  private Template template;
+  private Object map;
+  private Object bean;
+  private Object record;
+
+  @Setup
+  public void setup() throws ParseException {
+    template = BenchmarkData.template(BenchmarkData.MEDIUM);
+    Page page = BenchmarkData.page(products);
+    map = BenchmarkData.pageMap(page);
+    bean = BenchmarkData.pageBean(page);
+    record = page;
+  }
+
+  @Benchmark
+  public RenderSession insertMap() {
+    return template.newRenderSession().insert(map);
+  }
+
+  @Benchmark
+  public RenderSession insertBean() {
+    return template.newRenderSession().insert(bean);
+  }
+
+  @Benchmark
+  public RenderSession insertRecord() {
+    return template.newRenderSession().insert(record);
+  }
+
+  @Benchmark
+  public String insertAndRender() {
+    return template.newRenderSession().insert(record).render();
+  }
+
+  @Benchmark
+  public String renderDirect() {
+    return template.render(record);
+  }
+
+}
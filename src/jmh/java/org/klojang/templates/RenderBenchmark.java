@@ -0,0 +1,80 @@
+package org.klojang.templates;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Measures how long it takes to render a fully populated template to a String, a
+ * StringBuilder and an OutputStream. renderToString() pre-sizes its buffer from the
+ * size of previous renderings; renderToStringExactSize() first calculates the exact
+ * size of the output, as render() used to do, and estimateSize() shows what that
+ * costs by itself. The nested MaxThreads class runs the same benchmarks with as many
+ * threads as there are processors, all rendering the same RenderSession. Use the -t
+ * option of JMH for other thread counts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderBenchmark {
+
+  @State(Scope.Thread)
+  public static class Buffers {
+
+    final StringBuilder sb = new StringBuilder(1 << 16);
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(1 << 16);
+
+  }
+
+  @Param({BenchmarkData.SMALL, BenchmarkData.MEDIUM, BenchmarkData.HUGE})
+  public String template;
+
+  @Param({"10", "1000"})
+  public int products;
+
+  private RenderSession session;
+
+  @Setup
+  public void setup() throws ParseException {
+    session = BenchmarkData.populate(template, BenchmarkData.page(products));
+  }
+
+  @Benchmark
+  public String renderToString() {
+    return session.render();
+  }
+
+  @Benchmark
+  public String renderToStringExactSize() {
+    StringBuilder sb = new StringBuilder(session.estimateSize());
+    session.render(sb);
+    return sb.toString();
+  }
+
+  @Benchmark
+  public int estimateSize() {
+    return session.estimateSize();
+  }
+
+  @Benchmark
+  public int renderToStringBuilder(Buffers buffers) {
+    buffers.sb.setLength(0);
+    session.render(buffers.sb);
+    return buffers.sb.length();
+  }
+
+  @Benchmark
+  public int renderToOutputStream(Buffers buffers) {
+    buffers.out.reset();
+    session.render(buffers.out);
+    return buffers.out.size();
+  }
+
+  @Threads(Threads.MAX)
+  public static class MaxThreads extends RenderBenchmark {}
+
+}
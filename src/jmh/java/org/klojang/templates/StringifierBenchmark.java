@@ -0,0 +1,68 @@
+package org.klojang.templates;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.klojang.templates.StringifierRegistry.STANDARD_STRINGIFIERS;
+
+/*
+ * Measures the cost of looking up the stringifier for a variable, and the cost of
+ * each of the standard escapers.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StringifierBenchmark {
+
+  private static final Map<String, Stringifier> ESCAPERS = Map.of(
+        "html", StringifierRegistry.ESCAPE_HTML,
+        "js", StringifierRegistry.ESCAPE_JS,
+        "attr", StringifierRegistry.ESCAPE_ATTR,
+        "jsattr", StringifierRegistry.ESCAPE_JS_ATTR,
+        "param", StringifierRegistry.ESCAPE_QUERY_PARAM,
+        "path", StringifierRegistry.ESCAPE_PATH);
+
+  @Param({"html", "js", "attr", "jsattr", "param", "path"})
+  public String escaper;
+
+  @Param({"plain", "special"})
+  public String input;
+
+  private Stringifier stringifier;
+  private String value;
+  private Template tmpl;
+  private VariablePart plainVar;
+  private VariablePart htmlVar;
+
+  @Setup
+  public void setup() throws ParseException {
+    stringifier = ESCAPERS.get(escaper);
+    value = input.equals("plain")
+          ? "The quick brown fox jumps over the lazy dog"
+          : "<a href=\"/q?x=1&y='2'\">Jörg & São Paulo</a>\n\tline\\two";
+    tmpl = Template.fromString("~%foo% ~%html:bar%");
+    plainVar = (VariablePart) tmpl.parts().get(0);
+    htmlVar = (VariablePart) tmpl.parts().get(2);
+  }
+
+  @Benchmark
+  public Stringifier lookupDefault() {
+    return STANDARD_STRINGIFIERS.getStringifier(tmpl, plainVar, null, value);
+  }
+
+  @Benchmark
+  public Stringifier lookupVarGroup() {
+    return STANDARD_STRINGIFIERS.getStringifier(tmpl, htmlVar, null, value);
+  }
+
+  @Benchmark
+  public String escape() {
+    return stringifier.stringify(value);
+  }
+
+}
@@ -201,6 +201,7 @@ module org.klojang.templates {
   requires org.apache.commons.lang3;
   requires org.apache.httpcomponents.httpclient;
   requires org.slf4j;
+  requires java.management;
 
   requires org.klojang.check;
   requires org.klojang.util;
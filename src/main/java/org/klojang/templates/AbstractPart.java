@@ -1,12 +1,10 @@
 package org.klojang.templates;
 
 abstract sealed class AbstractPart implements Part permits
-    NestedTemplatePart, TextPart, UnparsedPart, VariablePart {
+    NestedTemplatePart, TextPart, VariablePart {
 
   private final int start;
 
-  private Template parent;
-
   AbstractPart(int start) {
     this.start = start;
   }
@@ -16,14 +14,4 @@ abstract sealed class AbstractPart implements Part permits
     return start;
   }
 
-  @Override
-  public Template getParentTemplate() {
-    return parent;
-  }
-
-  @Override
-  public void setParentTemplate(Template parent) {
-    this.parent = parent;
-  }
-
 }
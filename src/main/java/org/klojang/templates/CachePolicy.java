@@ -0,0 +1,162 @@
+package org.klojang.templates;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * The eviction policy of a bounded TemplateCache (W-TinyLFU). The cache can be
+ * bounded by the number of templates, by their approximate retained heap size, or
+ * both. New templates first enter a small LRU "window", which takes 1% of the
+ * capacity of the cache. Templates that fall out of the window must compete for a
+ * place in the main LRU area: they are only admitted if they have been requested
+ * more often than the templates they would displace. The access frequencies are
+ * kept in a FrequencySketch. Thus, templates that are requested only once cannot
+ * flush templates that are requested all the time, while recently requested
+ * templates still get a chance to prove themselves in the window. This class is not
+ * thread-safe. TemplateCache synchronizes on it.
+ */
+final class CachePolicy {
+
+  // Approximate sizes (in bytes) of objects, array headers and references
+  private static final int OBJECT = 16;
+  private static final int FIELD = 8;
+
+  private final long maxWeight;
+  private final int windowSize;
+  private final long windowWeight;
+  private final int mainSize;
+  private final long mainWeight;
+
+  // Maps the cached locations to the weight of their template. Access-ordered.
+  private final LinkedHashMap<TemplateLocation, Long> window;
+  private final LinkedHashMap<TemplateLocation, Long> main;
+
+  private final FrequencySketch sketch;
+
+  private long weightInWindow;
+  private long weightInMain;
+
+  /*
+   * maxSize is the maximum number of templates, maxWeight the maximum total weight of
+   * the templates. Either may be -1 (unlimited), but not both.
+   */
+  CachePolicy(int maxSize, long maxWeight) {
+    if (maxSize == -1) {
+      windowSize = mainSize = Integer.MAX_VALUE;
+    } else {
+      windowSize = Math.max(1, maxSize / 100);
+      mainSize = maxSize - windowSize;
+    }
+    if (maxWeight == -1) {
+      this.maxWeight = windowWeight = mainWeight = Long.MAX_VALUE;
+    } else {
+      this.maxWeight = maxWeight;
+      windowWeight = Math.max(1, maxWeight / 100);
+      mainWeight = maxWeight - windowWeight;
+    }
+    this.window = new LinkedHashMap<>(16, .75F, true);
+    this.main = new LinkedHashMap<>(32, .75F, true);
+    this.sketch = new FrequencySketch(maxSize == -1 ? 1024 : maxSize);
+  }
+
+  // Records a cache hit
+  void onAccess(TemplateLocation location) {
+    sketch.increment(location);
+    if (window.get(location) == null) {
+      main.get(location);
+    }
+  }
+
+  /*
+   * Adds a newly parsed template to the policy and returns the locations that must be
+   * removed from the cache as a consequence. These may include the location of the
+   * new template itself, if it is too big for the cache.
+   */
+  List<TemplateLocation> onInsert(TemplateLocation location, long weight) {
+    sketch.increment(location);
+    List<TemplateLocation> evicted = new ArrayList<>(2);
+    if (weight > maxWeight) {
+      evicted.add(location);
+      return evicted;
+    }
+    window.put(location, weight);
+    weightInWindow += weight;
+    Iterator<Map.Entry<TemplateLocation, Long>> iterator = window.entrySet().iterator();
+    while (window.size() > windowSize || weightInWindow > windowWeight) {
+      Map.Entry<TemplateLocation, Long> candidate = iterator.next();
+      iterator.remove();
+      weightInWindow -= candidate.getValue();
+      admit(candidate.getKey(), candidate.getValue(), evicted);
+    }
+    return evicted;
+  }
+
+  // Records the removal of a template from the cache for reasons other than eviction
+  void onRemove(TemplateLocation location) {
+    Long weight = window.remove(location);
+    if (weight != null) {
+      weightInWindow -= weight;
+    } else if ((weight = main.remove(location)) != null) {
+      weightInMain -= weight;
+    }
+  }
+
+  // Moves a template from the window to the main area, unless it loses the contest
+  // with the least recently used template(s) in the main area.
+  private void admit(TemplateLocation candidate,
+        long weight,
+        List<TemplateLocation> evicted) {
+    int freq = sketch.frequency(candidate);
+    Iterator<Map.Entry<TemplateLocation, Long>> iterator = main.entrySet().iterator();
+    while (main.size() + 1 > mainSize || weightInMain + weight > mainWeight) {
+      if (!iterator.hasNext()) {
+        evicted.add(candidate);
+        return;
+      }
+      Map.Entry<TemplateLocation, Long> victim = iterator.next();
+      if (freq <= sketch.frequency(victim.getKey())) {
+        evicted.add(candidate);
+        return;
+      }
+      iterator.remove();
+      weightInMain -= victim.getValue();
+      evicted.add(victim.getKey());
+    }
+    main.put(candidate, weight);
+    weightInMain += weight;
+  }
+
+  /*
+   * Returns the approximate number of bytes retained by the specified template. Only
+   * the boilerplate text and the names of variables and nested templates are taken
+   * into account, since they make up the bulk of a template. Inline templates are
+   * weighed along with their parent. Included templates are cached (and weighed) by
+   * themselves, so they only count as a reference here. Identical boilerplate text
+   * is shared between templates, so the weight may be an overestimate.
+   */
+  static long weigh(Template t) {
+    return weigh(t.body());
+  }
+
+  private static long weigh(TemplateBody t) {
+    long weight = OBJECT + 14 * FIELD;
+    for (Part part : t.parts()) {
+      weight += FIELD;
+      if (part instanceof TextPart tp) {
+        // String (assuming compact strings) + UTF-8 bytes + direct ByteBuffer
+        weight += 4 * OBJECT + 3L * tp.utf8().length;
+      } else if (part instanceof VariablePart vp) {
+        weight += 4 * OBJECT + 2L * vp.name().length();
+      } else if (part instanceof InlineTemplatePart itp) {
+        weight += 2 * OBJECT + weigh(itp.body());
+      } else {
+        weight += 4 * OBJECT;
+      }
+    }
+    return weight;
+  }
+
+}
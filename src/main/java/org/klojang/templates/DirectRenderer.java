@@ -0,0 +1,130 @@
+package org.klojang.templates;
+
+import org.klojang.check.Check;
+import org.klojang.util.CollectionMethods;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Optional;
+
+import static org.klojang.check.CommonChecks.yes;
+import static org.klojang.templates.Accessor.UNDEFINED;
+import static org.klojang.templates.RenderErrorCode.ACCESS_EXCEPTION;
+import static org.klojang.templates.RenderErrorCode.NOT_TEXT_ONLY;
+import static org.klojang.templates.RenderUtil.stringify;
+import static org.klojang.templates.TemplateUtils.getFQN;
+
+/*
+ * Renders a template straight from a source data object, without creating a
+ * RenderSession. The values of the variables are stringified directly into the output,
+ * and the nested templates are rendered recursively from the nested source data. The
+ * output is identical to that of RenderSession.insert() followed by
+ * RenderSession.render(). In particular, each variable and nested template is read
+ * from the source data exactly once, in the same order as insert() does.
+ */
+final class DirectRenderer {
+
+  private final AccessorRegistry accessors;
+  private final StringifierRegistry stringifiers;
+
+  DirectRenderer(AccessorRegistry accessors, StringifierRegistry stringifiers) {
+    this.accessors = accessors;
+    this.stringifiers = stringifiers;
+  }
+
+  // Equivalent to SoloSession.insert() followed by SoloSession.render()
+  void render(Template t, Object data, Appendable out) throws IOException {
+    if (dontProcess(data)) {
+      renderEmpty(t, out);
+    } else if (data == null) {
+      Check.that(t.isTextOnly())
+            .is(yes(), NOT_TEXT_ONLY.getExceptionSupplier(t.getName()));
+      renderEmpty(t, out);
+    } else if (data instanceof Optional<?> opt) {
+      if (opt.isPresent()) {
+        render(t, opt.get(), out);
+      } else {
+        renderEmpty(t, out);
+      }
+    } else {
+      insert(t, data, out);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private <T> void insert(Template t, T data, Appendable out) throws IOException {
+    Accessor<T> acc = (Accessor<T>) accessors.getAccessor(data, t);
+    Object[] values = new Object[t.getVariables().size()];
+    int i = 0;
+    for (String var : t.getVariables()) {
+      try {
+        values[i++] = acc.access(data, var);
+      } catch (RuntimeException e) {
+        throw ACCESS_EXCEPTION.getException(getFQN(t, var), e);
+      }
+    }
+    Object[] nested = new Object[t.countNestedTemplates()];
+    for (Template nt : t.getNestedTemplates()) {
+      nested[nt.slot()] = acc.access(data, nt.getName());
+    }
+    for (Part part : t.parts()) {
+      if (part instanceof TextPart tp) {
+        out.append(tp.text());
+      } else if (part instanceof VariablePart vp) {
+        Object val = values[t.varOrdinal(vp.name())];
+        if (mustProcess(val)) {
+          VarGroup group = vp.varGroup().orElse(null);
+          Stringifier stringifier = stringifiers.getStringifier(t, vp, group, val);
+          out.append(stringify(val, stringifier, vp, null));
+        }
+      } else {
+        Template nt = t.nested((NestedTemplatePart) part);
+        Object val = nested[nt.slot()];
+        if (mustProcess(val)) {
+          populate(nt, val, out);
+        }
+      }
+    }
+  }
+
+  // Equivalent to SoloSession.populate() followed by rendering the child sessions
+  private void populate(Template t, Object data, Appendable out) throws IOException {
+    if (dontProcess(data)) {
+      return;
+    } else if (data instanceof Optional<?> opt) {
+      if (opt.isPresent()) {
+        populate(t, opt.get(), out);
+      }
+      return;
+    }
+    List<?> list = CollectionMethods.asList(data);
+    if (t.isTextOnly()) {
+      String text = ((TextPart) t.parts().get(0)).text();
+      for (int i = 0; i < list.size(); ++i) {
+        out.append(text);
+      }
+    } else {
+      for (Object obj : list) {
+        render(t, obj, out);
+      }
+    }
+  }
+
+  // Renders a template in which nothing has been set
+  private static void renderEmpty(Template t, Appendable out) throws IOException {
+    for (Part part : t.parts()) {
+      if (part instanceof TextPart tp) {
+        out.append(tp.text());
+      }
+    }
+  }
+
+  private boolean dontProcess(Object data) {
+    return data == UNDEFINED || (data == null && accessors.nullEqualsUndefined());
+  }
+
+  private boolean mustProcess(Object data) {
+    return data != UNDEFINED && (data != null || !accessors.nullEqualsUndefined());
+  }
+
+}
@@ -0,0 +1,215 @@
+package org.klojang.templates;
+
+import org.klojang.check.Check;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.klojang.check.CommonChecks.gte;
+import static org.klojang.templates.Setting.FRAGMENT_CACHE_SIZE;
+
+/**
+ * A cache of rendered nested templates, shared by all render sessions. Fragments end
+ * up in the cache via
+ * {@link RenderSession#populateCached(String, Object, java.time.Duration,
+ * java.util.function.Supplier) RenderSession.populateCached()}. The cache is bounded
+ * by the total number of (UTF-8 encoded) bytes of the fragments it contains. See
+ * {@link Setting#FRAGMENT_CACHE_SIZE}. When the cache is full, fragments are evicted
+ * on a least-recently-used basis. This class only lets you inspect and clear the
+ * cache.
+ *
+ * @author Ayco Holleman
+ */
+public final class FragmentCache {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FragmentCache.class);
+
+  static final FragmentCache INSTANCE = new FragmentCache();
+
+  /**
+   * Returns the fragment cache.
+   *
+   * @return the fragment cache
+   */
+  public static FragmentCache getInstance() {
+    return INSTANCE;
+  }
+
+  /*
+   * Fragments are keyed on the body of the nested template rather than on the nested
+   * template itself. The body of an included template is shared by all templates
+   * including it, so they share each other's fragments. A template that is parsed
+   * anew (e.g. when a file template is reloaded) gets a new body, so it never sees
+   * the fragments of the old version. These are left for the LRU to evict. Since a
+   * fragment has already been stringified and escaped, it can only be reused by
+   * sessions with the same accessors and stringifiers, which are compared by
+   * identity.
+   */
+  private record Key(TemplateBody body,
+        String name,
+        AccessorRegistry accessors,
+        StringifierRegistry stringifiers,
+        Object key) {
+
+    Key(SessionConfig config, Template template, Object key) {
+      this(template.body(),
+            template.getName(),
+            config.accessors(),
+            config.stringifiers(),
+            key);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      return obj instanceof Key k
+            && body == k.body
+            && name.equals(k.name)
+            && accessors == k.accessors
+            && stringifiers == k.stringifiers
+            && key.equals(k.key);
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = System.identityHashCode(body);
+      hash = hash * 31 + name.hashCode();
+      hash = hash * 31 + System.identityHashCode(accessors);
+      hash = hash * 31 + System.identityHashCode(stringifiers);
+      return hash * 31 + key.hashCode();
+    }
+
+  }
+
+  private record Entry(TextPart fragment, long expires) {}
+
+  private final LinkedHashMap<Key, Entry> cache = new LinkedHashMap<>(32, .75F, true);
+  private final int maxBytes;
+
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+
+  private long bytes;
+
+  private FragmentCache() {
+    maxBytes = FRAGMENT_CACHE_SIZE.getInt();
+    LOG.trace("Fragment cache size: {} bytes{}",
+          maxBytes,
+          maxBytes == 0 ? " (caching disabled)" : "");
+    Check.that(maxBytes, FRAGMENT_CACHE_SIZE.property()).is(gte(), 0);
+  }
+
+  /*
+   * Returns the fragment for the specified nested template and key, rendered by a
+   * session with the specified configuration, or null if there is no such fragment,
+   * or if it has expired.
+   */
+  synchronized TextPart get(SessionConfig config, Template template, Object key) {
+    if (maxBytes == 0) {
+      misses.increment();
+      return null;
+    }
+    Key k = new Key(config, template, key);
+    Entry entry = cache.get(k);
+    if (entry == null) {
+      misses.increment();
+      return null;
+    }
+    if (entry.expires - System.nanoTime() <= 0) {
+      LOG.trace("Fragment {} for template {} expired", key, template.getName());
+      cache.remove(k);
+      bytes -= entry.fragment.utf8().length;
+      misses.increment();
+      return null;
+    }
+    hits.increment();
+    return entry.fragment;
+  }
+
+  synchronized void put(SessionConfig config,
+        Template template,
+        Object key,
+        TextPart fragment,
+        long ttlNanos) {
+    int size = fragment.utf8().length;
+    if (maxBytes == 0 || size > maxBytes) {
+      return;
+    }
+    Entry entry = new Entry(fragment, System.nanoTime() + ttlNanos);
+    Entry old = cache.put(new Key(config, template, key), entry);
+    if (old != null) {
+      bytes -= old.fragment.utf8().length;
+    }
+    bytes += size;
+    Iterator<Map.Entry<Key, Entry>> iterator = cache.entrySet().iterator();
+    while (bytes > maxBytes) {
+      Map.Entry<Key, Entry> eldest = iterator.next();
+      LOG.trace("Fragment cache overflow. Evicting {}", eldest.getKey().key);
+      bytes -= eldest.getValue().fragment.utf8().length;
+      iterator.remove();
+      evictions.increment();
+    }
+  }
+
+  /**
+   * Returns the number of times a fresh fragment was found in the cache.
+   *
+   * @return the number of times a fresh fragment was found in the cache
+   */
+  public long hits() {
+    return hits.sum();
+  }
+
+  /**
+   * Returns the number of times a fragment was not found in the cache, or had
+   * expired.
+   *
+   * @return the number of times a fragment was not found in the cache, or had expired
+   */
+  public long misses() {
+    return misses.sum();
+  }
+
+  /**
+   * Returns the number of fragments that were evicted to make room for new ones.
+   *
+   * @return the number of fragments that were evicted to make room for new ones
+   */
+  public long evictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * Returns the number of fragments in the cache. This may include expired
+   * fragments.
+   *
+   * @return the number of fragments in the cache
+   */
+  public synchronized int size() {
+    return cache.size();
+  }
+
+  /**
+   * Returns the total number of (UTF-8 encoded) bytes of the fragments in the
+   * cache.
+   *
+   * @return the total number of bytes of the fragments in the cache
+   */
+  public synchronized long byteSize() {
+    return bytes;
+  }
+
+  /**
+   * Removes all fragments from the cache. The hit, miss and eviction counters are
+   * not reset.
+   */
+  public synchronized void clear() {
+    cache.clear();
+    bytes = 0;
+  }
+
+}
@@ -0,0 +1,84 @@
+package org.klojang.templates;
+
+/*
+ * A count-min sketch with 4-bit counters that estimates how often a key has been
+ * seen recently. Each key maps to four counters, stored in a single table of longs
+ * (16 counters per long). The estimated frequency of a key is the smallest of its
+ * four counters, so hash collisions can only make a key look more popular than it
+ * is, never less. When the number of increments reaches ten times the size of the
+ * table, all counters are halved, so that keys that were popular a long time ago
+ * gradually lose their advantage. This class is not thread-safe.
+ */
+final class FrequencySketch {
+
+  private static final long[] SEEDS = {
+        0xc3a5c85c97cb3127L,
+        0xb492b66fbe98f273L,
+        0x9ae16a3b2f90404fL,
+        0xcbf29ce484222325L};
+
+  private static final long RESET_MASK = 0x7777777777777777L;
+
+  private final long[] table;
+  private final int sampleSize;
+
+  private int additions;
+
+  FrequencySketch(int capacity) {
+    int size = Integer.highestOneBit(Math.max(16, capacity) - 1) << 1;
+    this.table = new long[size];
+    this.sampleSize = 10 * size;
+  }
+
+  int frequency(Object key) {
+    int hash = spread(key.hashCode());
+    int freq = Integer.MAX_VALUE;
+    for (int i = 0; i < 4; ++i) {
+      long counters = table[index(hash, i)];
+      freq = Math.min(freq, (int) ((counters >>> offset(hash, i)) & 0xF));
+    }
+    return freq;
+  }
+
+  void increment(Object key) {
+    int hash = spread(key.hashCode());
+    boolean added = false;
+    for (int i = 0; i < 4; ++i) {
+      int index = index(hash, i);
+      int offset = offset(hash, i);
+      if (((table[index] >>> offset) & 0xF) != 0xF) {
+        table[index] += 1L << offset;
+        added = true;
+      }
+    }
+    if (added && ++additions == sampleSize) {
+      reset();
+    }
+  }
+
+  private void reset() {
+    for (int i = 0; i < table.length; ++i) {
+      table[i] = (table[i] >>> 1) & RESET_MASK;
+    }
+    additions /= 2;
+  }
+
+  // The long containing the i-th counter for the key
+  private int index(int hash, int i) {
+    long h = (hash + SEEDS[i]) * SEEDS[i];
+    h += h >>> 32;
+    return (int) h & (table.length - 1);
+  }
+
+  // The position of the i-th counter for the key within its long
+  private static int offset(int hash, int i) {
+    return ((hash >>> (i << 3)) & 0xF) << 2;
+  }
+
+  private static int spread(int x) {
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    x = ((x >>> 16) ^ x) * 0x45d9f3b;
+    return (x >>> 16) ^ x;
+  }
+
+}
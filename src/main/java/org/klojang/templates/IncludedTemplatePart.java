@@ -16,19 +16,23 @@ final class IncludedTemplatePart extends NestedTemplatePart {
 
   private final boolean tagOnSeparateLine;
 
-  IncludedTemplatePart(int start, Template template, boolean tagOnSeparateLine) {
-    super(start, template);
+  IncludedTemplatePart(int start,
+      String name,
+      TemplateBody body,
+      boolean tagOnSeparateLine) {
+    super(start, name, body);
     this.tagOnSeparateLine = tagOnSeparateLine;
   }
 
   @Override
   public String toString() {
-    String basename = basename(template.path().get().toString());
+    String path = body.location().path();
+    String basename = basename(path);
     StringBuilder sb = new StringBuilder(32).append("~%%include:");
-    if (!template.getName().equals(basename)) {
-      sb.append(template.getName()).append(':');
+    if (!name.equals(basename)) {
+      sb.append(name).append(':');
     }
-    return sb.append(template.path().get()).append("%%").toString();
+    return sb.append(path).append("%%").toString();
   }
 
   boolean isTagOnSeparateLine() {
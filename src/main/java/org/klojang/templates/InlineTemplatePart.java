@@ -6,10 +6,11 @@ final class InlineTemplatePart extends NestedTemplatePart {
   private final boolean endTagOnSeparateLine;
 
   InlineTemplatePart(int start,
-      Template template,
+      String name,
+      TemplateBody body,
       boolean startTagOnSeparateLine,
       boolean endTagOnSeparateLine) {
-    super(start, template);
+    super(start, name, body);
     this.startTagOnSeparateLine = startTagOnSeparateLine;
     this.endTagOnSeparateLine = endTagOnSeparateLine;
   }
@@ -26,11 +27,11 @@ final class InlineTemplatePart extends NestedTemplatePart {
   public String toString() {
     return new StringBuilder(100)
         .append("~%%begin:")
-        .append(template.getName())
+        .append(name)
         .append('%')
-        .append(template)
+        .append(super.toString())
         .append("~%%end:")
-        .append(template.getName())
+        .append(name)
         .append('%')
         .toString();
   }
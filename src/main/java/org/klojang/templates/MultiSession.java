@@ -2,16 +2,30 @@ package org.klojang.templates;
 
 import org.klojang.check.Check;
 import org.klojang.check.Tag;
+import org.klojang.templates.RenderProgram.ByteOutput;
+import org.klojang.templates.x.MTag;
 import org.klojang.util.Path;
 
+import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Flow;
 import java.util.function.IntFunction;
 import java.util.function.Supplier;
 import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.klojang.check.CommonChecks.eq;
+import static org.klojang.check.CommonChecks.positive;
+import static org.klojang.templates.RenderErrorCode.UNEXPECTED_ERROR;
+
 record MultiSession(Template template, SoloSession[] sessions) implements RenderSession {
 
   @Override
@@ -113,6 +127,28 @@ record MultiSession(Template template, SoloSession[] sessions) implements Render
     return this;
   }
 
+  /*
+   * All instances of the template would pull their rows from the same iterator, so we
+   * only allow this if there is just one instance.
+   */
+  @Override
+  public RenderSession populateStreaming(String tmplName, Iterator<?> rows, String sep) {
+    Check.that(sessions.length).is(eq(), 1, "cannot stream rows into ${0} instances of ${1}",
+          sessions.length,
+          template.getName());
+    return sessions[0].populateStreaming(tmplName, rows, sep);
+  }
+
+  @Override
+  public RenderSession populateCached(String tmplName,
+        Object key,
+        Duration ttl,
+        Supplier<?> data,
+        String sep) {
+    stream().forEach(s -> s.populateCached(tmplName, key, ttl, data, sep));
+    return this;
+  }
+
   @Override
   public RenderSession repeat(String tmplName, String sep, int times) {
     Template nested = template.getNestedTemplate(tmplName);
@@ -193,6 +229,12 @@ record MultiSession(Template template, SoloSession[] sessions) implements Render
     return this;
   }
 
+  @Override
+  public RenderSession reset() {
+    stream().forEach(SoloSession::reset);
+    return this;
+  }
+
   @Override
   public RenderSession clear(String... tmplNames) {
     stream().forEach(s -> s.clear(tmplNames));
@@ -207,22 +249,87 @@ record MultiSession(Template template, SoloSession[] sessions) implements Render
   }
 
   @Override
-  public void render(OutputStream out) {
-    stream().forEach(s -> s.render(out));
+  public void render(OutputStream out, Charset charset) {
+    Check.notNull(out, Tag.OUTPUT);
+    Check.notNull(charset, MTag.CHARSET);
+    if (!charset.equals(UTF_8)) {
+      stream().forEach(s -> s.render(out, charset));
+      return;
+    }
+    // Collect the output of all sessions in a single buffer
+    ByteOutput bo = new ByteOutput(out, expectedByteSize());
+    stream().forEach(s -> new Renderer(s.state()).render(bo));
+    try {
+      bo.flush();
+    } catch (IOException e) {
+      throw new RenderException(UNEXPECTED_ERROR, e.toString());
+    }
+  }
+
+  @Override
+  public void render(WritableByteChannel channel) {
+    stream().forEach(s -> s.render(channel));
+  }
+
+  @Override
+  public ByteBuffer[] renderToBuffers() {
+    return stream()
+          .map(SoloSession::renderToBuffers)
+          .flatMap(Arrays::stream)
+          .toArray(ByteBuffer[]::new);
+  }
+
+  @Override
+  public Flow.Publisher<ByteBuffer> toPublisher(int chunkSize) {
+    Check.that(chunkSize, MTag.CHUNK_SIZE).is(positive());
+    return new RenderPublisher(stream().map(SoloSession::state).toList(), chunkSize);
   }
 
   @Override
   public void render(StringBuilder sb) {
-    stream().forEach(s -> s.render(sb));
+    Check.notNull(sb);
+    sb.ensureCapacity(sb.length() + expectedSize());
+    stream().forEach(s -> new Renderer(s.state()).render(sb, false));
   }
 
   @Override
   public String render() {
-    StringBuilder sb = new StringBuilder(255);
-    stream().forEach(s -> s.render(sb));
+    StringBuilder sb = new StringBuilder(expectedSize());
+    stream().forEach(s -> new Renderer(s.state()).render(sb, false));
     return sb.toString();
   }
 
+  private int expectedSize() {
+    long size = stream().mapToLong(s -> new Renderer(s.state()).expectedSize()).sum();
+    return (int) Math.min(size, Integer.MAX_VALUE - 8);
+  }
+
+  private int expectedByteSize() {
+    long size = stream()
+          .mapToLong(s -> new Renderer(s.state()).expectedByteSize())
+          .sum();
+    return (int) Math.min(size, Integer.MAX_VALUE - 8);
+  }
+
+  @Override
+  public List<RenderedFragment> renderDelta() {
+    List<RenderedFragment> fragments = new ArrayList<>();
+    for (int i = 0; i < sessions.length; ++i) {
+      fragments.addAll(new Renderer(sessions[i].state()).renderDelta("[" + i + "]"));
+    }
+    return fragments;
+  }
+
+  @Override
+  public int estimateSize() {
+    return stream().mapToInt(SoloSession::estimateSize).sum();
+  }
+
+  @Override
+  public int estimateByteSize() {
+    return stream().mapToInt(SoloSession::estimateByteSize).sum();
+  }
+
   @Override
   public Template getTemplate() {
     return template;
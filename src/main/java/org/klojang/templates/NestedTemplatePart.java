@@ -1,27 +1,46 @@
 package org.klojang.templates;
 
+import static org.klojang.util.CollectionMethods.implode;
+
 abstract sealed class NestedTemplatePart extends AbstractPart implements
     NamedPart permits IncludedTemplatePart, InlineTemplatePart {
 
-  final Template template;
+  final String name;
+  // Refers to the body rather than to the nested Template itself, so that the
+  // parts do not depend on the context in which the nested template is used.
+  // Template.nested(part) returns the Template.
+  final TemplateBody body;
+
+  // The position of this part among the nested template parts of its parent.
+  // Assigned once, by the TemplateBody containing this part.
+  private int slot = -1;
 
-  NestedTemplatePart(int start, Template template) {
+  NestedTemplatePart(int start, String name, TemplateBody body) {
     super(start);
-    this.template = template;
+    this.name = name;
+    this.body = body;
   }
 
   @Override
   public String name() {
-    return template.getName();
+    return name;
+  }
+
+  TemplateBody body() {
+    return body;
+  }
+
+  int slot() {
+    return slot;
   }
 
-  Template getTemplate() {
-    return template;
+  void setSlot(int slot) {
+    this.slot = slot;
   }
 
   @Override
   public String toString() {
-    return template.toString();
+    return implode(body.parts(), "");
   }
 
 }
@@ -97,7 +97,14 @@ public enum ParseErrorCode {
    * A placeholder block was not closed. (There was an uneven number of
    * {@code <!--%-->} tokens.)
    */
-  PLACEHOLDER_NOT_CLOSED("Placeholder not closed");
+  PLACEHOLDER_NOT_CLOSED("Placeholder not closed"),
+
+  /**
+   * A template (directly or indirectly) included itself. The message shows the
+   * paths of the templates in the cycle, for example
+   * {@code a.html -> b.html -> a.html}.
+   */
+  CIRCULAR_INCLUDE("Circular include: %s");
 
   private static final String ERR_BASE = "Error at line %d, column %d. ";
 
@@ -4,38 +4,9 @@ import org.klojang.util.StringMethods;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 final class ParseUtils {
 
-  // Determines whether the text between from and to finds itself on an otherwise
-  // empty line.
-  static boolean onSeparateLine(String src, int from, int to) {
-    char c;
-    for (int i = from - 1; i >= 0 && (c = src.charAt(i)) != '\n' && c != '\r'; --i) {
-      if (c != ' ' && c != '\t') {
-        return false;
-      }
-    }
-    int len = src.length();
-    for (int i = to; i < len && (c = src.charAt(i)) != '\n' && c != '\r'; ++i) {
-      if (c != ' ' && c != '\t') {
-        return false;
-      }
-    }
-    return true;
-  }
-
-  static Matcher getMatcher(Pattern pattern, UnparsedPart unparsed) {
-    return pattern.matcher(unparsed.text());
-  }
-
-  static UnparsedPart todo(UnparsedPart p, int from, int to) {
-    String s = p.text().substring(from, to);
-    return new UnparsedPart(s, p.start() + from);
-  }
-
   static void trimBoilerplate(List<Part> parts) {
     for (int i = 0; i < parts.size(); ++i) {
       Part part = parts.get(i);
@@ -51,7 +22,7 @@ final class ParseUtils {
     List<Part> out = new ArrayList<>(parts.size());
     for (Part p : parts) {
       if (p instanceof NestedTemplatePart ntp) {
-        if (ntp.getTemplate().parts().isEmpty()) {
+        if (ntp.body().parts().isEmpty()) {
           continue;
         }
       } else if (p instanceof TextPart tp) {
@@ -67,7 +38,10 @@ final class ParseUtils {
   private static void checkInlineTemplate(List<Part> parts,
       int idx,
       InlineTemplatePart itp) {
-    List<Part> childParts = itp.getTemplate().parts();
+    List<Part> childParts = itp.body().parts();
+    if (childParts.isEmpty()) {
+      return;
+    }
     if (itp.isStartTagOnSeparateLine()) {
       if (childParts.get(0) instanceof TextPart tp) {
         tp.setText(removeWhitespaceAfterTag(tp.text(), false));
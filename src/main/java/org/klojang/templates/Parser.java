@@ -1,41 +1,171 @@
 package org.klojang.templates;
 
-import org.klojang.templates.x.ClassPathResolver;
-import org.klojang.templates.x.FilePathResolver;
+import org.klojang.check.Check;
+import org.klojang.util.collection.IntArrayList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.regex.Matcher;
+import java.util.function.Supplier;
 
-import static org.klojang.templates.InlineTemplateParser.CommentType;
+import static org.klojang.check.CommonChecks.*;
+import static org.klojang.templates.ParseErrorCode.*;
 import static org.klojang.templates.ParseUtils.removeEmptyParts;
 import static org.klojang.templates.ParseUtils.trimBoilerplate;
-import static org.klojang.templates.Regex.*;
+import static org.klojang.templates.Regex.DITCH_BLOCK_TOKEN;
+import static org.klojang.templates.Regex.PLACEHOLDER_TOKEN;
 import static org.klojang.templates.Template.ROOT_TEMPLATE_NAME;
+import static org.klojang.util.ArrayMethods.pack;
 
+/*
+ * Parses the template source in a single pass, from left to right. The scanner
+ * recognizes the syntactical constructs described in the Regex class by hand, and
+ * maintains a stack of the inline templates it is in. Each inline template on the
+ * stack collects its own parts. When its end tag is found, it is popped off the stack
+ * and becomes a part of the enclosing template.
+ *
+ * The parser produces the same templates, and reports the same errors, as a parser
+ * that extracts the constructs one type at a time, in the following order (their
+ * "rank"): inline templates with both tags in HTML comments (<!-- ~%%begin:foo% -->),
+ * inline templates wrapped as a whole in an HTML comment (<!-- ~%%begin:foo%), inline
+ * templates without HTML comments, included templates in HTML comments, included
+ * templates, variables in HTML comments, variables. The rank determines which
+ * constructs can be adjacent to a tag "on an otherwise empty line" (see
+ * onSeparateLine()), which inline templates can be nested inside each other (see
+ * checkNesting()), and the order in which errors are reported (see close()).
+ *
+ * When a template contains more than one error, the error reported first is not
+ * always the one the extract-one-type-at-a-time parser would report first. Errors in
+ * begin tags (illegal or duplicate names) are reported as soon as the tag is found,
+ * and a missing end tag only once the end of the enclosing template is reached, or
+ * when an inline template is closed that cannot be nested within it. The remaining
+ * errors of a template are reported once the template is complete: included
+ * templates first, then variables, then leftovers of malformed tags. ParseErrorTest
+ * (firstError*) pins this down.
+ *
+ * Ditch blocks are removed up front. A construct cannot span a ditch block. The parts
+ * of an inline template, and the position of the errors within it, are relative to
+ * the start of the inline template (just after its begin tag).
+ */
 final class Parser {
 
   private static final Logger LOG = LoggerFactory.getLogger(Parser.class);
 
-  private interface PartialParser {
+  // The ranks of the constructs. See class comment.
+  private static final int DITCH_BLOCK = -1;
+  private static final int TAGS = 0;
+  private static final int BLOCK = 1;
+  private static final int NONE = 2;
+  private static final int CMT_INCLUDE = 3;
+  private static final int INCLUDE = 4;
+  private static final int CMT_VARIABLE = 5;
+  private static final int VARIABLE = 6;
 
-    List<Part> parse(UnparsedPart unparsed, Set<String> names) throws ParseException;
+  private static final String BEGIN = "~%%begin:";
+  private static final String END = "~%%end:";
+  private static final String INCLUDE_TAG = "~%%include:";
+  private static final String HTML_COMMENT_START = "<!--";
+  private static final String HTML_COMMENT_END = "-->";
+
+  private static final String[] ILLEGAL_PREFIXES = pack("begin", "end", "include");
+
+  // An inline template, together with the position of its tags
+  private record Inline(String name,
+        TemplateBody body,
+        int rank,
+        int start,
+        int tagEnd,
+        int endTagStart,
+        int end) {}
+
+  // An included template. It is requested from the cache as soon as it is found, so
+  // that it can be parsed in parallel, but it is validated and waited for once the
+  // template containing it is complete. nameStart is -1 if the include tag does not
+  // specify a name. flight is null if the location is invalid or circular.
+  private record Include(int rank,
+        int start,
+        int end,
+        String name,
+        int nameStart,
+        String path,
+        int pathStart,
+        TemplateLocation location,
+        TemplateCache.Flight flight) {}
+
+  // A template variable. It is validated once the template containing it is complete.
+  private record Var(int rank,
+        String prefix,
+        int prefixStart,
+        String name,
+        int nameStart,
+        String placeholder) {}
+
+  // The template being parsed, or one of the inline templates within it
+  private static final class Frame {
+
+    final Frame parent;
+    final String name;
+    final int rank;
+    final int start; // of the begin tag
+    final int nameStart;
+    final int offset; // just after the begin tag
+
+    final List<Object> parts = new ArrayList<>();
+    // The names of the inline templates, and eventually also of the included templates
+    final Set<String> names = new HashSet<>();
+    final List<Var> vars = new ArrayList<>();
+    final IntArrayList texts = new IntArrayList();
+
+    // Maps the start and the end (exclusive) of the constructs extracted from this
+    // template to their lowest rank
+    final Map<Integer, Integer> starts = new HashMap<>();
+    final Map<Integer, Integer> ends = new HashMap<>();
+
+    int end;
+
+    Frame(Frame parent, String name, int rank, int start, int nameStart, int offset) {
+      this.parent = parent;
+      this.name = name;
+      this.rank = rank;
+      this.start = start;
+      this.nameStart = nameStart;
+      this.offset = offset;
+    }
+
+    void addConstruct(int start, int end, int rank) {
+      starts.merge(start, rank, Math::min);
+      ends.merge(end, rank, Math::min);
+    }
 
   }
 
   private final String name; // template name
   private final TemplateLocation location;
   private final String src;
+  // The flight of the template being parsed. Connects it to the templates including
+  // it.
+  private final TemplateCache.Flight flight;
+
+  // The start of the ditch blocks, each followed by their end
+  private int[] ditchBlocks;
+  private int ditchIndex;
+
+  private Frame frame;
+  private int textStart;
 
   Parser(TemplateLocation location, String name) throws ParseException {
     this(location, name, location.read());
   }
 
   Parser(TemplateLocation location, String name, String src) {
-    this.name = name;
-    this.location = location;
+    this(src, new TemplateCache.Flight(location, name, null));
+  }
+
+  Parser(String src, TemplateCache.Flight flight) {
+    this.name = flight.name;
+    this.location = flight.location;
     this.src = src;
+    this.flight = flight;
   }
 
   Template parse() throws ParseException {
@@ -44,59 +174,646 @@ final class Parser {
 
   List<Part> getParts() throws ParseException {
     log(name, location);
-    // Accumulates template names for duplicate checks:
-    Set<String> names = new HashSet<>();
-    List<Part> parts = purgeDitchBlocks();
-    InlineTemplateParser p1 = new InlineTemplateParser(src, location);
-    parts = parse(parts, names, (x, y) -> p1.parse(x, y, CommentType.TAGS));
-    parts = parse(parts, names, (x, y) -> p1.parse(x, y, CommentType.BLOCK));
-    parts = parse(parts, names, (x, y) -> p1.parse(x, y, CommentType.NONE));
-    IncludedTemplateParser p2 = new IncludedTemplateParser(src, location);
-    parts = parse(parts, names, (x, y) -> p2.parse(x, y, CMT_INCLUDED_TEMPLATE));
-    parts = parse(parts, names, (x, y) -> p2.parse(x, y, INCLUDED_TEMPLATE));
-    VarParser p3 = new VarParser(src);
-    parts = parse(parts, names, (x, y) -> p3.parse(x, y, CMT_VARIABLE));
-    parts = parse(parts, names, (x, y) -> p3.parse(x, y, VARIABLE));
-    BoilerplateCollector bc = new BoilerplateCollector(src);
-    parts = bc.collectBoilerplate(parts);
+    ditchBlocks = findDitchBlocks();
+    frame = new Frame(null, name, -1, 0, 0, 0);
+    int len = src.length();
+    int limit = nextDitchBlock();
+    int i = 0;
+    textStart = 0;
+    while (i < len) {
+      if (i == limit) {
+        checkNesting(null);
+        addText(i);
+        int end = ditchBlocks[ditchIndex + 1];
+        frame.addConstruct(i, end, DITCH_BLOCK);
+        ditchIndex += 2;
+        limit = nextDitchBlock();
+        textStart = i = end;
+        continue;
+      }
+      char c = src.charAt(i);
+      int end = -1;
+      if (c == '<') {
+        end = scanComment(i, limit);
+      } else if (c == '~') {
+        end = scanTilde(i, limit);
+      }
+      i = end == -1 ? i + 1 : end;
+    }
+    checkNesting(null);
+    return close(len);
+  }
+
+  // Scans a construct starting with "<!--". Returns its end, or -1 if there is none.
+  private int scanComment(int i, int limit) throws ParseException {
+    if (!src.startsWith(HTML_COMMENT_START, i)) {
+      return -1;
+    }
+    int j = skipSpace(i + 4, limit);
+    if (src.startsWith(END, j)) {
+      Frame f = getClosedFrame(j, limit, true);
+      if (f != null) {
+        return closeInline(f, i, endTagEnd(f, j, limit));
+      }
+    }
+    if (src.startsWith(BEGIN, j)) {
+      int nameEnd = scanName(j + BEGIN.length(), limit);
+      if (nameEnd != -1 && charAt(nameEnd, limit) == '%') {
+        int k = skipSpace(nameEnd + 1, limit);
+        if (startsWith(HTML_COMMENT_END, k, limit)) {
+          openInline(i, j + BEGIN.length(), nameEnd, k + 3, TAGS);
+        } else {
+          openInline(i, j + BEGIN.length(), nameEnd, nameEnd + 1, BLOCK);
+        }
+        return frame.offset;
+      }
+      return -1;
+    }
+    if (src.startsWith(INCLUDE_TAG, j)) {
+      return scanInclude(i, j, limit, CMT_INCLUDE);
+    }
+    if (src.startsWith("~%", j)) {
+      return scanVariable(i, j, limit, true);
+    }
+    return -1;
+  }
+
+  // Scans a construct starting with "~". Returns its end, or -1 if there is none.
+  private int scanTilde(int i, int limit) throws ParseException {
+    if (src.startsWith(END, i)) {
+      Frame f = getClosedFrame(i, limit, false);
+      return f == null ? -1 : closeInline(f, i, endTagEnd(f, i, limit));
+    }
+    if (src.startsWith(BEGIN, i)) {
+      int nameEnd = scanName(i + BEGIN.length(), limit);
+      if (nameEnd != -1 && charAt(nameEnd, limit) == '%') {
+        openInline(i, i + BEGIN.length(), nameEnd, nameEnd + 1, NONE);
+        return frame.offset;
+      }
+      return -1;
+    }
+    if (src.startsWith(INCLUDE_TAG, i)) {
+      return scanInclude(i, i, limit, INCLUDE);
+    }
+    if (src.startsWith("~%", i)) {
+      return scanVariable(i, i, limit, false);
+    }
+    return -1;
+  }
+
+  /*
+   * Returns the inline template closed by the end tag at i, or null if the end tag
+   * does not close any of the inline templates we are in. If the inline template has
+   * both its tags in HTML comments, i is the start of the "~%%end:" part of the end
+   * tag.
+   */
+  private Frame getClosedFrame(int i, int limit, boolean comment) {
+    for (Frame f = frame; f.parent != null; f = f.parent) {
+      if ((f.rank == TAGS) == comment && endTagEnd(f, i, limit) != -1) {
+        return f;
+      }
+    }
+    return null;
+  }
+
+  // Returns the end of the end tag of the specified inline template, or -1 if its end
+  // tag does not start at i
+  private int endTagEnd(Frame f, int i, int limit) {
+    int nameStart = i + END.length();
+    int nameEnd = scanName(nameStart, limit);
+    if (nameEnd == -1
+          || charAt(nameEnd, limit) != '%'
+          || nameEnd - nameStart != f.name.length()
+          || !src.startsWith(f.name, nameStart)) {
+      return -1;
+    }
+    int end = nameEnd + 1;
+    return switch (f.rank) {
+      case TAGS -> {
+        int j = skipSpace(end, limit);
+        yield startsWith(HTML_COMMENT_END, j, limit) ? j + 3 : -1;
+      }
+      case BLOCK -> {
+        int j = skipSpace(end, limit);
+        if (!startsWith("--", j, limit)) {
+          yield -1;
+        }
+        yield charAt(j + 2, limit) == '>' ? j + 3 : j + 2;
+      }
+      default -> end;
+    };
+  }
+
+  private void openInline(int start, int nameStart, int nameEnd, int tagEnd, int rank)
+        throws ParseException {
+    String tmplName = src.substring(nameStart, nameEnd);
+    validateName(tmplName, nameStart);
+    frame.names.add(tmplName);
+    addText(start);
+    frame = new Frame(frame, tmplName, rank, start, nameStart, tagEnd);
+    textStart = tagEnd;
+    if (LOG.isTraceEnabled()) {
+      LOG.trace("Parsing inline template \"{}\"", tmplName);
+    }
+  }
+
+  private int closeInline(Frame closed, int endTagStart, int end)
+        throws ParseException {
+    checkNesting(closed);
+    Frame f = frame;
+    List<Part> parts = close(endTagStart);
+    frame = f.parent;
+    frame.addConstruct(f.start, end, f.rank);
+    if (endTagStart != f.offset) {
+      TemplateLocation myLoc = new TemplateLocation(location.resolver());
+      TemplateBody body = new TemplateBody(myLoc, List.copyOf(parts));
+      frame.parts.add(new Inline(f.name,
+            body,
+            f.rank,
+            f.start,
+            f.offset,
+            endTagStart,
+            end));
+    }
+    textStart = end;
+    return end;
+  }
+
+  private int scanInclude(int start, int tagStart, int limit, int rank)
+        throws ParseException {
+    int nameStart = tagStart + INCLUDE_TAG.length();
+    int nameEnd = scanName(nameStart, limit);
+    boolean comment = rank == CMT_INCLUDE;
+    int pathEnd = -1, pathStart = -1;
+    if (nameEnd != -1 && charAt(nameEnd, limit) == ':') {
+      pathStart = nameEnd + 1;
+      pathEnd = scanIncludePath(pathStart, limit, comment);
+    }
+    if (pathEnd == -1) {
+      nameEnd = -1;
+      pathStart = nameStart;
+      pathEnd = scanIncludePath(pathStart, limit, comment);
+      if (pathEnd == -1) {
+        return -1;
+      }
+    }
+    int end = comment ? skipSpace(pathEnd + 2, limit) + 3 : pathEnd + 2;
+    String path = src.substring(pathStart, pathEnd);
+    String tmplName = nameEnd == -1
+          ? IncludedTemplatePart.basename(path)
+          : src.substring(nameStart, nameEnd);
+    TemplateLocation loc = new TemplateLocation(path, location.resolver());
+    TemplateCache.Flight incFlight = null;
+    if (loc.isValid() && flight.getCycle(loc) == null) {
+      incFlight = TemplateCache.INSTANCE.request(loc, tmplName, flight);
+    }
+    addText(start);
+    frame.parts.add(new Include(rank,
+          start,
+          end,
+          tmplName,
+          nameEnd == -1 ? -1 : nameStart,
+          path,
+          pathStart,
+          loc,
+          incFlight));
+    frame.addConstruct(start, end, rank);
+    textStart = end;
+    return end;
+  }
+
+  /*
+   * Returns the end of the path of an include tag, given the start of the path. The
+   * path is the shortest sequence of path characters followed by "%%" (and, if the
+   * include tag is in an HTML comment, by the end of the comment). Returns -1 if there
+   * is no such sequence.
+   */
+  private int scanIncludePath(int pathStart, int limit, boolean comment) {
+    for (int i = pathStart; i < limit && isPathChar(src.charAt(i)); ++i) {
+      if (src.charAt(i) == '~' && isInlineTemplateTag(i, limit)) {
+        // Inline templates are extracted before included templates
+        return -1;
+      } else if (i > pathStart && startsWith("%%", i, limit)) {
+        if (!comment || startsWith(HTML_COMMENT_END, skipSpace(i + 2, limit), limit)) {
+          return i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  private int scanVariable(int start, int tagStart, int limit, boolean comment)
+        throws ParseException {
+    int i = tagStart + 2;
+    String prefix = null;
+    int prefixStart = i;
+    int groupEnd = scanVarGroup(i, limit);
+    if (groupEnd != -1) {
+      prefix = src.substring(i, groupEnd);
+      i = groupEnd + 1;
+    }
+    int nameStart = i;
+    int nameEnd = scanPath(i, limit);
+    if (nameEnd == -1) {
+      return -1;
+    }
+    int end = nameEnd + 1;
+    String placeholder = null;
+    if (comment) {
+      end = skipSpace(end, limit);
+      if (!startsWith(HTML_COMMENT_END, end, limit)) {
+        return -1;
+      }
+      end += 3;
+      int phEnd = scanPlaceholder(end, limit);
+      if (phEnd != -1) {
+        placeholder = src.substring(end, phEnd);
+        end = phEnd + PLACEHOLDER_TOKEN.length();
+      }
+    }
+    String varName = src.substring(nameStart, nameEnd);
+    addText(start);
+    frame.parts.add(new VariablePart(start - frame.offset, prefix, varName, placeholder));
+    frame.vars.add(new Var(comment ? CMT_VARIABLE : VARIABLE,
+          prefix,
+          prefixStart,
+          varName,
+          nameStart,
+          placeholder));
+    textStart = end;
+    return end;
+  }
+
+  // Returns the end of the placeholder text, or -1 if there is no placeholder
+  private int scanPlaceholder(int i, int limit) {
+    for (int j = i; j < limit; ++j) {
+      char c = src.charAt(j);
+      if (c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') {
+        return -1;
+      } else if (c == '<' && startsWith(PLACEHOLDER_TOKEN, j, limit)) {
+        return j;
+      } else if (c == '~' && isTemplateTag(j, limit)) {
+        // Nested template tags are extracted before variables
+        return -1;
+      }
+    }
+    return -1;
+  }
+
+  // Whether a begin tag, an include tag, or the end tag of an open inline template
+  // starts at i
+  private boolean isTemplateTag(int i, int limit) {
+    if (isInlineTemplateTag(i, limit)) {
+      return true;
+    } else if (src.startsWith(INCLUDE_TAG, i)) {
+      int nameStart = i + INCLUDE_TAG.length();
+      int nameEnd = scanName(nameStart, limit);
+      return (nameEnd != -1
+            && charAt(nameEnd, limit) == ':'
+            && scanIncludePath(nameEnd + 1, limit, false) != -1)
+            || scanIncludePath(nameStart, limit, false) != -1;
+    }
+    return false;
+  }
+
+  // Whether a begin tag or the end tag of an open inline template starts at i
+  private boolean isInlineTemplateTag(int i, int limit) {
+    if (src.startsWith(BEGIN, i)) {
+      int nameEnd = scanName(i + BEGIN.length(), limit);
+      return nameEnd != -1 && charAt(nameEnd, limit) == '%';
+    } else if (src.startsWith(END, i)) {
+      int nameEnd = scanName(i + END.length(), limit);
+      if (nameEnd != -1 && charAt(nameEnd, limit) == '%') {
+        String endName = src.substring(i + END.length(), nameEnd);
+        for (Frame f = frame; f.parent != null; f = f.parent) {
+          if (f.name.equals(endName)) {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  // Returns the position of the colon after a variable group name, or -1
+  private int scanVarGroup(int i, int limit) {
+    if (i >= limit || !isLetter(src.charAt(i))) {
+      return -1;
+    }
+    int j = i + 1;
+    while (j < limit && isVarGroupChar(src.charAt(j))) {
+      ++j;
+    }
+    return charAt(j, limit) == ':' ? j : -1;
+  }
+
+  // Returns the position of the percentage sign terminating a path, or -1
+  private int scanPath(int i, int limit) {
+    while (true) {
+      int j = scanName(i, limit);
+      if (j == -1) {
+        return -1;
+      }
+      char c = charAt(j, limit);
+      if (c == '%') {
+        return j;
+      } else if (c != '.') {
+        return -1;
+      }
+      i = j + 1;
+    }
+  }
+
+  // Returns the end of the name starting at i, or -1 if no name starts at i
+  private int scanName(int i, int limit) {
+    int j = i;
+    while (j < limit && isNameChar(src.charAt(j))) {
+      ++j;
+    }
+    return j == i ? -1 : j;
+  }
+
+  private int skipSpace(int i, int limit) {
+    return i < limit && src.charAt(i) == ' ' ? i + 1 : i;
+  }
+
+  private boolean startsWith(String s, int i, int limit) {
+    return i + s.length() <= limit && src.startsWith(s, i);
+  }
+
+  private char charAt(int i, int limit) {
+    return i < limit ? src.charAt(i) : 0;
+  }
+
+  private void validateName(String tmplName, int pos) throws ParseException {
+    Check.that(tmplName).isNot(equalTo(), ROOT_TEMPLATE_NAME,
+          error(ILLEGAL_TMPL_NAME, pos, tmplName));
+    Check.that(tmplName).isNot(in(), frame.names,
+          error(DUPLICATE_TMPL_NAME, pos, tmplName));
+  }
+
+  private void validateVar(Var var) throws ParseException {
+    Check.that(var.name).isNot(in(), frame.names,
+          error(VAR_WITH_TMPL_NAME, var.nameStart, var.name));
+    if (var.prefix != null) {
+      String def = VarGroup.DEF.getName();
+      Check.that(var.placeholder).is(notNull().orNot(var.prefix, EQ(), def),
+            error(NO_PLACEHOLDER_DEFINED, var.prefixStart, var.name));
+      Check.that(var.prefix).isNot(inArray(), ILLEGAL_PREFIXES,
+            error(ILLEGAL_VAR_PREFIX, var.prefixStart, var.prefix));
+    }
+  }
+
+  // Adds the text between the previous construct and the specified position
+  private void addText(int end) {
+    if (end > textStart) {
+      frame.texts.add(textStart);
+      frame.texts.add(end);
+      frame.parts.add(new TextPart(src.substring(textStart, end),
+            textStart - frame.offset));
+    }
+  }
+
+  /*
+   * Completes the parts of the current template. Errors are reported in the order in
+   * which the constructs used to be extracted: first the errors concerning the inline
+   * templates (which have been reported by now), then the errors concerning the
+   * included templates, then the errors concerning the variables, and finally the
+   * leftovers of malformed tags in the remaining text.
+   */
+  private List<Part> close(int end) throws ParseException {
+    addText(end);
+    Frame f = frame;
+    f.end = end;
+    Map<Include, TemplateBody> included = loadIncludedTemplates(f);
+    List<Var> vars = new ArrayList<>(f.vars);
+    vars.sort(Comparator.comparingInt(Var::rank));
+    for (Var var : vars) {
+      validateVar(var);
+    }
+    for (int i = 0; i < f.texts.size(); i += 2) {
+      checkGarbage(f.texts.get(i), f.texts.get(i + 1));
+    }
+    List<Part> parts = new ArrayList<>(f.parts.size());
+    for (Object obj : f.parts) {
+      if (obj instanceof Inline n) {
+        boolean sep0 = onSeparateLine(f, n.start, n.tagEnd, n.rank);
+        boolean sep1 = onSeparateLine(f, n.endTagStart, n.end, n.rank);
+        parts.add(new InlineTemplatePart(n.start - f.offset,
+              n.name,
+              n.body,
+              sep0,
+              sep1));
+      } else if (obj instanceof Include inc) {
+        boolean sep = onSeparateLine(f, inc.start, inc.end, inc.rank);
+        parts.add(new IncludedTemplatePart(inc.start - f.offset,
+              inc.name,
+              included.get(inc),
+              sep));
+      } else {
+        parts.add((Part) obj);
+      }
+    }
     trimBoilerplate(parts);
-    parts = removeEmptyParts(parts);
-    return parts;
+    return removeEmptyParts(parts);
   }
 
-  private List<Part> purgeDitchBlocks() {
-    Matcher m = Regex.DITCH_BLOCK.matcher(src);
-    if (!m.find()) {
-      return Collections.singletonList(new UnparsedPart(src, 0));
+  private Map<Include, TemplateBody> loadIncludedTemplates(Frame f)
+        throws ParseException {
+    List<Include> includes = new ArrayList<>();
+    for (Object obj : f.parts) {
+      if (obj instanceof Include inc) {
+        includes.add(inc);
+      }
     }
-    List<Part> parts = new ArrayList<>();
-    int end = 0;
-    do {
-      int start = m.start();
-      if (start > end) {
-        parts.add(new UnparsedPart(src.substring(end, start), end));
+    includes.sort(Comparator.comparingInt(Include::rank));
+    Map<Include, TemplateBody> templates = new HashMap<>();
+    for (Include inc : includes) {
+      validateName(inc.name, inc.nameStart == -1 ? inc.start : inc.nameStart);
+      if (inc.flight == null) {
+        Check.that(inc.location.isValid()).is(yes(),
+              error(INVALID_INCLUDE_PATH, inc.pathStart, inc.path));
+        throw error(CIRCULAR_INCLUDE, inc.pathStart, flight.getCycle(inc.location)).get();
       }
-      end = m.end();
-    } while (m.find());
-    if (end < src.length()) {
-      parts.add(new UnparsedPart(src.substring(end), end));
+      f.names.add(inc.name);
+      // The body of the cached template is shared by all templates including it. Its
+      // name and parent are only assigned when the including template is created.
+      Template cached = TemplateCache.INSTANCE.await(inc.flight, flight);
+      templates.put(inc, cached.body());
     }
-    return parts;
+    return templates;
   }
 
-  private static List<Part> parse(List<Part> in,
-        Set<String> names,
-        PartialParser parser)
+  private void checkGarbage(int from, int to) throws ParseException {
+    for (int i = indexOf(END, from, to); i != -1; i = indexOf(END, i + 1, to)) {
+      int nameEnd = scanName(i + END.length(), to);
+      if (nameEnd != -1 && charAt(nameEnd, to) == '%') {
+        int start = i;
+        if (i - 5 >= from && src.startsWith("<!-- ", i - 5)) {
+          start = i - 5;
+        } else if (i - 4 >= from && src.startsWith(HTML_COMMENT_START, i - 4)) {
+          start = i - 4;
+        }
+        String endName = src.substring(i + END.length(), nameEnd);
+        throw error(DANGLING_END_TAG, start, endName).get();
+      }
+    }
+    checkNotFound(BEGIN, from, to, BEGIN_TAG_NOT_TERMINATED);
+    checkNotFound(END, from, to, END_TAG_NOT_TERMINATED);
+    checkNotFound(INCLUDE_TAG, from, to, INCLUDE_TAG_NOT_TERMINATED);
+    checkNotFound(DITCH_BLOCK_TOKEN, from, to, DITCH_BLOCK_NOT_CLOSED);
+    checkNotFound(PLACEHOLDER_TOKEN, from, to, PLACEHOLDER_NOT_CLOSED);
+  }
+
+  private void checkNotFound(String token, int from, int to, ParseErrorCode code)
         throws ParseException {
-    List<Part> out = new ArrayList<>(in.size() + 10);
-    for (Part p : in) {
-      if (p instanceof UnparsedPart unparsed) {
-        out.addAll(parser.parse(unparsed, names));
+    int idx = indexOf(token, from, to);
+    Check.that(idx).is(eq(), -1, error(code, idx));
+  }
+
+  private int indexOf(String token, int from, int to) {
+    return src.indexOf(token, from, to);
+  }
+
+  /*
+   * Determines whether the construct between from and to finds itself on an otherwise
+   * empty line, given that constructs ranked before it also count as the start or end
+   * of a line.
+   */
+  private boolean onSeparateLine(Frame f, int from, int to, int rank) {
+    char c;
+    for (int i = from - 1;
+          i >= f.offset && (c = src.charAt(i)) != '\n' && c != '\r';
+          --i) {
+      if (c != ' ' && c != '\t') {
+        if (f.ends.getOrDefault(i + 1, Integer.MAX_VALUE) >= rank) {
+          return false;
+        }
+        break;
+      }
+    }
+    for (int i = to; i < f.end && (c = src.charAt(i)) != '\n' && c != '\r'; ++i) {
+      if (c != ' ' && c != '\t') {
+        return f.starts.getOrDefault(i, Integer.MAX_VALUE) < rank;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Inline templates used to be extracted from their parent one comment style at a
+   * time, in the order of their rank. Therefore an inline template with a lower rank
+   * than the inline template containing it ends up next to it, and the containing
+   * template loses its end tag. This method (called when an end tag for the specified
+   * inline template was found, or with null when an inline template is cut off by a
+   * ditch block or by the end of the template) reports the error that yields. In the
+   * simplest case, it is an inline template that has no end tag at all.
+   */
+  private void checkNesting(Frame closed) throws ParseException {
+    List<Frame> chain = new ArrayList<>();
+    for (Frame f = frame; f != null; f = f.parent) {
+      chain.add(0, f);
+    }
+    int d = closed == null ? 0 : chain.indexOf(closed);
+    for (int i = 1, level = 0; i < chain.size(); ) {
+      int m = lowestRank(chain, i, chain.size());
+      if (m > d) {
+        throw unclosed(chain.get(level), chain.get(m), null);
+      } else if (m == i) {
+        level = i++;
       } else {
-        out.add(p);
+        Frame broken = chain.get(lowestRank(chain, i, m));
+        throw unclosed(chain.get(level), broken, chain.get(m));
+      }
+    }
+  }
+
+  // Returns the index of first inline template with the lowest rank
+  private static int lowestRank(List<Frame> chain, int from, int to) {
+    int idx = from;
+    for (int i = from + 1; i < to; ++i) {
+      if (chain.get(i).rank < chain.get(idx).rank) {
+        idx = i;
       }
     }
-    return out;
+    return idx;
+  }
+
+  /*
+   * Creates the exception for an inline template that has no end tag within the
+   * specified parent template, possibly because another inline template inside it was
+   * moved to the parent template.
+   */
+  private ParseException unclosed(Frame parent, Frame unclosed, Frame moved) {
+    String parentSrc = src.substring(parent.offset);
+    if ((moved != null && moved.name.equals(unclosed.name))
+          || (unclosed.parent != parent && parent.names.contains(unclosed.name))) {
+      return DUPLICATE_TMPL_NAME.getException(parentSrc,
+            unclosed.nameStart - parent.offset,
+            unclosed.name);
+    }
+    // The position is relative to the text that remained after the extraction of
+    // the constructs ranked before the inline template
+    int from = parent.offset;
+    for (Map.Entry<Integer, Integer> e : parent.ends.entrySet()) {
+      if (e.getKey() <= unclosed.start && e.getValue() < unclosed.rank) {
+        from = Math.max(from, e.getKey());
+      }
+    }
+    return MISSING_END_TAG.getException(parentSrc,
+          unclosed.offset - from,
+          unclosed.name);
+  }
+
+  /*
+   * Returns a supplier of the exception for an error at the specified position. The
+   * position is converted to a position within the current template. Its source is
+   * only extracted if the error actually occurs.
+   */
+  private Supplier<ParseException> error(ParseErrorCode code,
+        int pos,
+        Object... args) {
+    Frame f = frame;
+    return () -> code.getException(src.substring(f.offset), pos - f.offset, args);
+  }
+
+  private int nextDitchBlock() {
+    return ditchIndex < ditchBlocks.length ? ditchBlocks[ditchIndex] : src.length();
+  }
+
+  private int[] findDitchBlocks() {
+    IntArrayList list = new IntArrayList();
+    int len = DITCH_BLOCK_TOKEN.length();
+    int i = src.indexOf(DITCH_BLOCK_TOKEN);
+    while (i != -1) {
+      int j = src.indexOf(DITCH_BLOCK_TOKEN, i + len);
+      if (j == -1) {
+        break;
+      }
+      list.add(i);
+      list.add(j + len);
+      i = src.indexOf(DITCH_BLOCK_TOKEN, j + len);
+    }
+    return list.toArray();
+  }
+
+  private static boolean isNameChar(char c) {
+    return c != '~' && c != '%' && c != ':' && c != '.'
+          && c != '\n' && c != '\r' && c != 0;
+  }
+
+  private static boolean isLetter(char c) {
+    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+  }
+
+  private static boolean isVarGroupChar(char c) {
+    return isLetter(c) || (c >= '0' && c <= '9') || c == '_' || c == '-';
+  }
+
+  private static boolean isPathChar(char c) {
+    return isLetter(c)
+          || (c >= '0' && c <= '9')
+          || "_~:;/?#!$&%,@+.=-[]()".indexOf(c) != -1;
   }
 
   private static void log(String name, TemplateLocation location) {
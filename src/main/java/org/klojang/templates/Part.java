@@ -5,8 +5,4 @@ sealed interface Part permits AbstractPart, NamedPart {
   // start index of this part within the template
   int start();
 
-  Template getParentTemplate();
-
-  void setParentTemplate(Template template);
-
 }
@@ -56,7 +56,7 @@ final class PartsPrinter {
       } else /* TemplatePart */ {
         printCell(out, t.getName(), w0);
         printCell(out, "TEMPLATE", w1);
-        Template t2 = ((NestedTemplatePart) p).getTemplate();
+        Template t2 = t.nested((NestedTemplatePart) p);
         String name = t2.getName();
         printCell(out, name, w2);
         String s = "~%%begin:" + name + '%';
@@ -92,8 +92,8 @@ final class PartsPrinter {
     int i = Math.max(HDR_TEMPLATE.length(), t.getName().length());
     for (Part p : t.parts()) {
       if (p instanceof NestedTemplatePart ntp) {
-        i = Math.max(i, ntp.getTemplate().getName().length());
-        i = Math.max(i, getMaxTmplName(ntp.getTemplate()));
+        i = Math.max(i, ntp.name().length());
+        i = Math.max(i, getMaxTmplName(t.nested(ntp)));
       }
     }
     return i;
@@ -105,7 +105,7 @@ final class PartsPrinter {
       if (p instanceof VariablePart vp) {
         i = Math.max(i, vp.name().length());
       } else if (p instanceof NestedTemplatePart ntp) {
-        i = Math.max(i, getMaxVarName(ntp.getTemplate()));
+        i = Math.max(i, getMaxVarName(t.nested(ntp)));
       }
     }
     return i;
@@ -0,0 +1,139 @@
+package org.klojang.templates;
+
+import org.klojang.check.Check;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.klojang.check.CommonChecks.directory;
+
+/**
+ * Parses the templates in a directory at build time, and writes them to a
+ * {@link TemplateStore template store} within the same directory, under the name
+ * {@value TemplateStore#CLASSPATH_STORE}. If the directory is the output directory
+ * of your build (e.g. {@code target/classes}), the template store ends up in your
+ * jar file, and {@link Template#fromResource(Class, String) Template.fromResource()}
+ * will load the templates from the store instead of parsing them. Cold start and
+ * first-request latency then no longer include parsing the templates. If any of the
+ * templates contains an error, all errors are printed, no template store is written,
+ * and a {@link ParseException} is thrown, thus failing the build.
+ *
+ * <p>The templates are parsed as classpath resources, with the directory as the
+ * root of the classpath. Thus, the path of an included template is taken to be
+ * relative to the directory. This matches the way included templates are resolved
+ * at runtime if their path is absolute (e.g. {@code /views/employees.html}). Relative
+ * include paths are resolved against the package of the class passed to
+ * {@code fromResource()} at runtime, so use absolute include paths in templates that
+ * you precompile.
+ *
+ * <p>With Maven, you can run the precompiler using the
+ * <a href="https://www.mojohaus.org/exec-maven-plugin/">exec-maven-plugin</a>, after
+ * the resources have been copied to the output directory:
+ *
+ * <blockquote><pre>{@code
+ * <plugin>
+ *   <groupId>org.codehaus.mojo</groupId>
+ *   <artifactId>exec-maven-plugin</artifactId>
+ *   <executions>
+ *     <execution>
+ *       <id>precompile-templates</id>
+ *       <phase>process-classes</phase>
+ *       <goals>
+ *         <goal>java</goal>
+ *       </goals>
+ *       <configuration>
+ *         <mainClass>org.klojang.templates.Precompiler</mainClass>
+ *         <arguments>
+ *           <argument>${project.build.outputDirectory}</argument>
+ *           <argument>views/**.html</argument>
+ *         </arguments>
+ *       </configuration>
+ *     </execution>
+ *   </executions>
+ * </plugin>
+ * }</pre></blockquote>
+ *
+ * @author Ayco Holleman
+ */
+public final class Precompiler {
+
+  private Precompiler() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Precompiles the templates in a directory. The first argument must be the
+   * directory. The second argument is optional and specifies a glob pattern for the
+   * templates to precompile, relative to the directory. It defaults to
+   * {@code "**.html"}.
+   *
+   * @param args the directory and, optionally, the glob pattern
+   * @throws ParseException if any of the templates contains an error
+   * @throws IOException if the template store cannot be written
+   */
+  public static void main(String... args) throws ParseException, IOException {
+    if (args.length == 0 || args.length > 2) {
+      System.err.println("Usage: Precompiler <directory> [<glob>]");
+      System.exit(2);
+    }
+    Path dir = Path.of(args[0]);
+    PreloadReport report = precompile(dir, args.length == 1 ? "**.html" : args[1]);
+    System.out.printf("Precompiled %d template(s) in %s%n",
+          report.templates().size(),
+          dir);
+  }
+
+  /**
+   * Precompiles the templates within the specified directory (and its
+   * subdirectories) whose path relative to the directory matches the specified glob
+   * pattern.
+   *
+   * @param dir the directory containing the templates
+   * @param glob the glob pattern, for example {@code "**.html"}
+   * @return the report of parsing the templates
+   * @throws ParseException if any of the templates contains an error
+   * @throws IOException if the template store cannot be written
+   */
+  public static PreloadReport precompile(Path dir, String glob)
+        throws ParseException, IOException {
+    Check.notNull(dir, "dir").has(Path::toFile, directory());
+    Check.notNull(glob, "glob");
+    List<String> paths = Preloader.list(dir, glob).stream()
+          .map(file -> "/" + dir.relativize(Path.of(file)).toString().replace('\\', '/'))
+          .toList();
+    PreloadReport report = Template.preload(new DirectoryResolver(dir), paths);
+    for (Map.Entry<String, ParseException> e : report.errors().entrySet()) {
+      System.err.printf("%s: %s%n", e.getKey(), e.getValue().getMessage());
+    }
+    report.check();
+    Path store = dir.resolve(TemplateStore.CLASSPATH_STORE);
+    Files.createDirectories(store.getParent());
+    TemplateStore.write(store, report.templates().values());
+    return report;
+  }
+
+  // Resolves paths the way a ClassPathResolver would if the directory were the root
+  // of the classpath
+  private record DirectoryResolver(Path dir) implements PathResolver {
+
+    @Override
+    public boolean isValidPath(String path) {
+      return Files.isRegularFile(file(path));
+    }
+
+    @Override
+    public InputStream resolve(String path) throws IOException {
+      return Files.newInputStream(file(path));
+    }
+
+    private Path file(String path) {
+      return dir.resolve(path.startsWith("/") ? path.substring(1) : path);
+    }
+
+  }
+
+}
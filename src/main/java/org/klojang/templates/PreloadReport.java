@@ -0,0 +1,53 @@
+package org.klojang.templates;
+
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * The outcome of {@link Template#preload(PathResolver, java.util.Collection)
+ * preloading} a set of templates. All maps are unmodifiable, and they are keyed on
+ * the paths passed to (or found by) the preload method, in the order in which the
+ * paths were passed (or found).
+ *
+ * @param templates the templates that were parsed successfully
+ * @param errors the templates that could not be parsed, with the exception
+ *       explaining why. A template that could not be read at all, because the
+ *       {@code PathResolver} threw an unchecked exception, is reported with error
+ *       code {@link ParseErrorCode#INVALID_INCLUDE_PATH INVALID_INCLUDE_PATH}, and the
+ *       unchecked exception as its cause.
+ * @param loadTimes the time it took to load each template. This includes the time
+ *       it took to parse its included templates, or to wait for another thread to
+ *       parse them.
+ * @param elapsed the time it took to preload all templates
+ * @author Ayco Holleman
+ */
+public record PreloadReport(Map<String, Template> templates,
+      Map<String, ParseException> errors,
+      Map<String, Duration> loadTimes,
+      Duration elapsed) {
+
+  /**
+   * Returns whether all templates were parsed successfully.
+   *
+   * @return whether all templates were parsed successfully
+   */
+  public boolean succeeded() {
+    return errors.isEmpty();
+  }
+
+  /**
+   * Throws the {@code ParseException} for the first template that could not be
+   * parsed, if any. This allows you to fail fast at startup:
+   * {@code Template.preloadDirectory(dir, "**.html").check()}.
+   *
+   * @return this {@code PreloadReport}
+   * @throws ParseException if any of the templates could not be parsed
+   */
+  public PreloadReport check() throws ParseException {
+    if (!errors.isEmpty()) {
+      throw errors.values().iterator().next();
+    }
+    return this;
+  }
+
+}
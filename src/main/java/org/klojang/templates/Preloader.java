@@ -0,0 +1,109 @@
+package org.klojang.templates;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.stream.Stream;
+
+import static org.klojang.templates.ParseErrorCode.INVALID_INCLUDE_PATH;
+import static org.klojang.templates.Template.ROOT_TEMPLATE_NAME;
+
+/*
+ * Loads a set of templates into the TemplateCache in parallel. Templates included by
+ * several of them are parsed just once, because the cache makes threads requesting a
+ * template that is being parsed wait for the result.
+ */
+final class Preloader {
+
+  private Preloader() {
+    throw new UnsupportedOperationException();
+  }
+
+  static PreloadReport preload(PathResolver resolver,
+        Collection<String> paths,
+        Executor executor) {
+    long start = System.nanoTime();
+    Map<String, Template> templates = new ConcurrentHashMap<>();
+    Map<String, ParseException> errors = new ConcurrentHashMap<>();
+    Map<String, Duration> loadTimes = new ConcurrentHashMap<>();
+    CompletableFuture<?>[] futures = paths.stream()
+          .map(path -> CompletableFuture.runAsync(() -> {
+            long t0 = System.nanoTime();
+            try {
+              templates.put(path, load(resolver, path));
+            } catch (ParseException e) {
+              errors.put(path, e);
+            } catch (RuntimeException e) {
+              // E.g. a PathResolver that throws, or returns null. That must not
+              // abort the preloading of the other templates.
+              errors.put(path, wrap(path, e));
+            }
+            loadTimes.put(path, Duration.ofNanos(System.nanoTime() - t0));
+          }, executor))
+          .toArray(CompletableFuture[]::new);
+    try {
+      CompletableFuture.allOf(futures).join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException re) {
+        throw re;
+      }
+      throw e;
+    }
+    return new PreloadReport(ordered(paths, templates),
+          ordered(paths, errors),
+          ordered(paths, loadTimes),
+          Duration.ofNanos(System.nanoTime() - start));
+  }
+
+  private static Template load(PathResolver resolver, String path)
+        throws ParseException {
+    TemplateLocation location = new TemplateLocation(path, resolver);
+    return TemplateCache.INSTANCE.get(location, ROOT_TEMPLATE_NAME);
+  }
+
+  private static ParseException wrap(String path, RuntimeException e) {
+    ParseException pe = INVALID_INCLUDE_PATH.getTracelessException(path);
+    pe.initCause(e);
+    return pe;
+  }
+
+  // Returns the paths of the files below the directory whose relative path matches
+  // the glob
+  static List<String> list(Path dir, String glob) {
+    PathMatcher matcher = dir.getFileSystem().getPathMatcher("glob:" + glob);
+    try (Stream<Path> files = Files.walk(dir)) {
+      return files.filter(Files::isRegularFile)
+            .filter(file -> matcher.matches(dir.relativize(file)))
+            .map(Path::toString)
+            .sorted()
+            .toList();
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private static <T> Map<String, T> ordered(Collection<String> paths,
+        Map<String, T> map) {
+    Map<String, T> result = new LinkedHashMap<>();
+    for (String path : paths) {
+      T value = map.get(path);
+      if (value != null) {
+        result.put(path, value);
+      }
+    }
+    return Collections.unmodifiableMap(result);
+  }
+
+}
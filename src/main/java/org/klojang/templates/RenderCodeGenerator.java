@@ -0,0 +1,335 @@
+package org.klojang.templates;
+
+import org.klojang.templates.RenderProgram.DelayedValues;
+import org.klojang.templates.RenderProgram.Generated;
+import org.klojang.templates.x.Lazy;
+
+import java.lang.classfile.ClassFile;
+import java.lang.classfile.ClassHierarchyResolver;
+import java.lang.classfile.CodeBuilder;
+import java.lang.classfile.Label;
+import java.lang.constant.ClassDesc;
+import java.lang.constant.DynamicConstantDesc;
+import java.lang.constant.MethodTypeDesc;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.lang.constant.ConstantDescs.*;
+import static org.klojang.templates.RenderProgram.*;
+
+/*
+ * Translates a RenderProgram into a hidden class using the ClassFile API. Each
+ * template (the root template and each of the nested templates) becomes a method of
+ * the hidden class, consisting of straight-line code for its text parts and
+ * variables, and a loop over the child sessions for each of its nested templates.
+ * The TextPart and VariablePart instances of the program are passed to the hidden
+ * class as its class data, and loaded using ldc instructions with dynamic constants
+ * (MethodHandles.classDataAt). Unlike fields, such constants are resolved once and
+ * folded into the compiled code by the JIT compiler, whichever way the generated
+ * renderer is reached. The slots of the nested templates are int constants.
+ *
+ * Each method loads the value array of its render state once, and then loads the
+ * values of the variables straight from the array, at constant indices. A template
+ * without nested templates of its own may be rendered from a RowBlock, in which case
+ * its render state is a view on a row of the RowBlock. Its method therefore gets a
+ * second copy of its code, for which the index of a value is computed from the
+ * column of the variable (a constant), the number of rows and the row.
+ */
+final class RenderCodeGenerator {
+
+  private static final ClassDesc CD_THIS = ClassDesc.of(
+        "org.klojang.templates.GeneratedRenderer");
+  private static final ClassDesc CD_GENERATED = desc(Generated.class);
+  private static final ClassDesc CD_OUTPUT = desc(Output.class);
+  private static final ClassDesc CD_PROGRAM = desc(RenderProgram.class);
+  private static final ClassDesc CD_STATE = desc(RenderState.class);
+  private static final ClassDesc CD_SESSION_DATA = desc(SessionData.class);
+  private static final ClassDesc CD_TEXT_PART = desc(TextPart.class);
+  private static final ClassDesc CD_VAR_PART = desc(VariablePart.class);
+  private static final ClassDesc CD_DELAYED = desc(DelayedValues.class);
+  private static final ClassDesc CD_ROW_BLOCK = desc(RowBlock.class);
+  private static final ClassDesc CD_LAZY = desc(Lazy.class);
+  private static final ClassDesc CD_VALUES = CD_Object.arrayType();
+
+  // (RenderState, Output, DelayedValues) -> void
+  private static final MethodTypeDesc MTD_RENDER = MethodTypeDesc.of(CD_void,
+        CD_STATE,
+        CD_OUTPUT,
+        CD_DELAYED);
+  // RenderProgram.delayed(RenderState, VariablePart, Lazy, Output, DelayedValues)
+  private static final MethodTypeDesc MTD_DELAYED = MethodTypeDesc.of(CD_void,
+        CD_STATE,
+        CD_VAR_PART,
+        CD_LAZY,
+        CD_OUTPUT,
+        CD_DELAYED);
+  // RenderProgram.next(SessionData, int, Output)
+  private static final MethodTypeDesc MTD_NEXT = MethodTypeDesc.of(CD_STATE,
+        CD_SESSION_DATA,
+        CD_int,
+        CD_OUTPUT);
+
+  // Local variable slots
+  private static final int THIS = 0;
+  private static final int STATE = 1;
+  private static final int OUT = 2;
+  private static final int DELAYED = 3;
+  private static final int SESSION_DATA = 4;
+  private static final int ROW = 5;
+  private static final int INDEX = 6;
+  private static final int VALUES = 7;
+  private static final int ROWS = 8;
+  private static final int ROW_NUM = 9;
+  private static final int VALUE = 10;
+
+  static Generated generate(Template template,
+        int[] code,
+        TextPart[] texts,
+        VariablePart[] vars,
+        Template[] templates) throws Throwable {
+    byte[] bytes = new RenderCodeGenerator(template, code, texts.length, templates)
+          .generate();
+    // The class data: the text parts, followed by the variable parts
+    List<Object> data = new ArrayList<>(texts.length + vars.length);
+    data.addAll(Arrays.asList(texts));
+    data.addAll(Arrays.asList(vars));
+    MethodHandles.Lookup lookup = MethodHandles.lookup()
+          .defineHiddenClassWithClassData(bytes, List.copyOf(data), true);
+    return (Generated) lookup.findConstructor(lookup.lookupClass(),
+          MethodType.methodType(void.class)).invoke();
+  }
+
+  private final Template template;
+  private final int[] code;
+  // The index of the first VariablePart within the class data
+  private final int varOffset;
+  // The nested templates, indexed by the operand of the ENTER instruction
+  private final Template[] templates;
+
+  private RenderCodeGenerator(Template template,
+        int[] code,
+        int varOffset,
+        Template[] templates) {
+    this.template = template;
+    this.code = code;
+    this.varOffset = varOffset;
+    this.templates = templates;
+  }
+
+  private byte[] generate() {
+    ClassHierarchyResolver resolver = ClassHierarchyResolver.defaultResolver()
+          .orElse(ClassHierarchyResolver.ofResourceParsing(
+                RenderCodeGenerator.class.getClassLoader()));
+    ClassFile cf = ClassFile.of(ClassFile.ClassHierarchyResolverOption.of(resolver));
+    return cf.build(CD_THIS, clb -> {
+      clb.withFlags(ClassFile.ACC_FINAL | ClassFile.ACC_SUPER);
+      clb.withInterfaceSymbols(CD_GENERATED);
+      clb.withMethodBody(INIT_NAME, MTD_void, ClassFile.ACC_PUBLIC, cob -> cob
+            .aload(THIS)
+            .invokespecial(CD_Object, INIT_NAME, MTD_void)
+            .return_());
+      clb.withMethodBody("render", MTD_RENDER, ClassFile.ACC_PUBLIC,
+            cob -> emitTemplate(cob, template, 0, code.length));
+      // Each nested template gets a method named after the index of its first
+      // instruction in the RenderProgram.
+      for (int pc = 0; pc < code.length; pc += length(code[pc])) {
+        if (code[pc] == ENTER) {
+          int from = pc + 3;
+          int to = code[pc + 2] - 1;
+          Template t = templates[code[pc + 1]];
+          clb.withMethodBody("t" + from, MTD_RENDER, ClassFile.ACC_PRIVATE,
+                cob -> emitTemplate(cob, t, from, to));
+        }
+      }
+    });
+  }
+
+  private static int length(int instruction) {
+    return switch (instruction) {
+      case TEXT -> 2;
+      case VAR, ENTER -> 3;
+      default -> 1;
+    };
+  }
+
+  private void emitTemplate(CodeBuilder cob, Template t, int from, int to) {
+    boolean vars = false;
+    boolean leaf = true;
+    for (int pc = from; pc < to; pc = next(pc)) {
+      vars |= code[pc] == VAR;
+      leaf &= code[pc] != ENTER;
+    }
+    if (!vars) {
+      emitParts(cob, from, to, null);
+      return;
+    }
+    Label rows = cob.newLabel();
+    if (leaf) {
+      // if (state.block() != null) goto rows;
+      cob.aload(STATE)
+            .invokevirtual(CD_STATE, "block", MethodTypeDesc.of(CD_ROW_BLOCK))
+            .ifnonnull(rows);
+    }
+    // Object[] values = state.values();
+    cob.aload(STATE)
+          .invokevirtual(CD_STATE, "values", MethodTypeDesc.of(CD_VALUES))
+          .astore(VALUES);
+    emitParts(cob, from, to, null);
+    if (leaf) {
+      // rows: Object[] values = state.block().values();
+      //       int rows = state.block().size(); int row = state.row();
+      cob.labelBinding(rows);
+      cob.aload(STATE)
+            .invokevirtual(CD_STATE, "block", MethodTypeDesc.of(CD_ROW_BLOCK))
+            .dup()
+            .invokevirtual(CD_ROW_BLOCK, "values", MethodTypeDesc.of(CD_VALUES))
+            .astore(VALUES)
+            .invokevirtual(CD_ROW_BLOCK, "size", MethodTypeDesc.of(CD_int))
+            .istore(ROWS);
+      cob.aload(STATE)
+            .invokevirtual(CD_STATE, "row", MethodTypeDesc.of(CD_int))
+            .istore(ROW_NUM);
+      emitParts(cob, from, to, RowBlock.columns(t.parts()));
+    }
+  }
+
+  // Emits the code for the parts of a template, followed by a return instruction. If
+  // columns is not null, the render state is a view on a row of a RowBlock.
+  private void emitParts(CodeBuilder cob, int from, int to, int[] columns) {
+    int pc = from;
+    while (pc < to) {
+      switch (code[pc]) {
+        case TEXT -> {
+          // out.text(<texts[i]>)
+          cob.aload(OUT)
+                .loadConstant(classData(code[pc + 1], CD_TEXT_PART))
+                .invokeinterface(CD_OUTPUT,
+                      "text",
+                      MethodTypeDesc.of(CD_void, CD_TEXT_PART));
+        }
+        case VAR -> emitVariable(cob, code[pc + 1], code[pc + 2], columns);
+        case ENTER -> emitNestedTemplate(cob,
+              templates[code[pc + 1]].slot(),
+              "t" + (pc + 3));
+        default -> throw new IllegalStateException("Unexpected instruction: " + code[pc]);
+      }
+      pc = next(pc);
+    }
+    cob.return_();
+  }
+
+  private void emitVariable(CodeBuilder cob, int partIndex, int var, int[] columns) {
+    Label plain = cob.newLabel();
+    Label end = cob.newLabel();
+    cob.aload(VALUES);
+    if (columns == null) {
+      // Object value = values[partIndex];
+      cob.loadConstant(partIndex);
+    } else {
+      // Object value = values[column * rows + row];
+      cob.loadConstant(columns[partIndex])
+            .iload(ROWS)
+            .imul()
+            .iload(ROW_NUM)
+            .iadd();
+    }
+    cob.aaload().astore(VALUE);
+    // if (value == null) goto end;
+    cob.aload(VALUE).ifnull(end);
+    // if (!(value instanceof Lazy)) goto plain;
+    cob.aload(VALUE).instanceOf(CD_LAZY).ifeq(plain);
+    // RenderProgram.delayed(state, <vars[i]>, (Lazy) value, out, delayed); goto end;
+    cob.aload(STATE)
+          .loadConstant(classData(varOffset + var, CD_VAR_PART))
+          .aload(VALUE)
+          .checkcast(CD_LAZY)
+          .aload(OUT)
+          .aload(DELAYED)
+          .invokestatic(CD_PROGRAM, "delayed", MTD_DELAYED)
+          .goto_(end);
+    // plain: out.value(value.toString());
+    cob.labelBinding(plain);
+    cob.aload(OUT)
+          .aload(VALUE)
+          .invokevirtual(CD_Object, "toString", MethodTypeDesc.of(CD_String))
+          .invokeinterface(CD_OUTPUT, "value", MethodTypeDesc.of(CD_void, CD_String));
+    cob.labelBinding(end);
+  }
+
+  // Returns the index of the instruction following the one at the specified index,
+  // skipping the body of a nested template
+  private int next(int pc) {
+    return switch (code[pc]) {
+      case TEXT -> pc + 2;
+      case VAR -> pc + 3;
+      case ENTER -> code[pc + 2];
+      default -> throw new IllegalStateException("Unexpected instruction: " + code[pc]);
+    };
+  }
+
+  private static void emitNestedTemplate(CodeBuilder cob, int slot, String method) {
+    Label repeat = cob.newLabel();
+    Label end = cob.newLabel();
+    // SessionData sd = state.getSessionData(slot);
+    cob.aload(STATE)
+          .loadConstant(slot)
+          .invokevirtual(CD_STATE,
+                "getSessionData",
+                MethodTypeDesc.of(CD_SESSION_DATA, CD_int))
+          .astore(SESSION_DATA);
+    // if (sd == null) goto end;
+    cob.aload(SESSION_DATA).ifnull(end);
+    // int i = 0; RenderState row = RenderProgram.next(sd, i, out);
+    cob.iconst_0().istore(INDEX);
+    cob.aload(SESSION_DATA)
+          .iload(INDEX)
+          .aload(OUT)
+          .invokestatic(CD_PROGRAM, "next", MTD_NEXT)
+          .astore(ROW);
+    // if (row != null) goto repeat;
+    cob.aload(ROW).ifnonnull(repeat);
+    // RenderProgram.fragment(sd, out); goto end;
+    cob.aload(SESSION_DATA)
+          .aload(OUT)
+          .invokestatic(CD_PROGRAM,
+                "fragment",
+                MethodTypeDesc.of(CD_void, CD_SESSION_DATA, CD_OUTPUT))
+          .goto_(end);
+    // this.t<n>(row, out, delayed);
+    cob.labelBinding(repeat);
+    cob.aload(THIS)
+          .aload(ROW)
+          .aload(OUT)
+          .aload(DELAYED)
+          .invokevirtual(CD_THIS, method, MTD_RENDER);
+    // row = RenderProgram.next(sd, ++i, out); if (row == null) goto end;
+    cob.iinc(INDEX, 1);
+    cob.aload(SESSION_DATA)
+          .iload(INDEX)
+          .aload(OUT)
+          .invokestatic(CD_PROGRAM, "next", MTD_NEXT)
+          .astore(ROW);
+    cob.aload(ROW).ifnull(end);
+    // out.value(sd.separator()); goto repeat;
+    cob.aload(OUT)
+          .aload(SESSION_DATA)
+          .invokevirtual(CD_SESSION_DATA, "separator", MethodTypeDesc.of(CD_String))
+          .invokeinterface(CD_OUTPUT, "value", MethodTypeDesc.of(CD_void, CD_String));
+    cob.goto_(repeat);
+    cob.labelBinding(end);
+  }
+
+  // Returns a dynamic constant for the element at the specified index in the class
+  // data
+  private static DynamicConstantDesc<Object> classData(int index, ClassDesc type) {
+    return DynamicConstantDesc.ofNamed(BSM_CLASS_DATA_AT, DEFAULT_NAME, type, index);
+  }
+
+  private static ClassDesc desc(Class<?> c) {
+    return ClassDesc.of(c.getName());
+  }
+
+}
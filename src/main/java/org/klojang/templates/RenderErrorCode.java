@@ -1,5 +1,6 @@
 package org.klojang.templates;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.function.Supplier;
 
@@ -94,6 +95,15 @@ public enum RenderErrorCode {
       + "in multiple passes you must always provide the same number of source data "
       + "objects. Received %d source data object(s) in first round. Now got %d."),
 
+  /**
+   * A nested template populated via
+   * {@link RenderSession#populateStreaming(String, Iterator, String)
+   * RenderSession.populateStreaming()} was rendered a second time, but its rows had
+   * already been consumed by the first rendering.
+   */
+  STREAM_CONSUMED("Rows for template %s already consumed. A template populated "
+      + "via populateStreaming() can be rendered only once"),
+
   /**
    * An unexpected error occurred while rendering the template.
    */
@@ -0,0 +1,809 @@
+package org.klojang.templates;
+
+import org.klojang.check.Check;
+import org.klojang.templates.x.Lazy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.klojang.check.CommonChecks.gte;
+import static org.klojang.templates.Setting.BYTECODE_RENDERER;
+import static org.klojang.templates.Setting.PARALLEL_THRESHOLD;
+
+/*
+ * The compiled form of a Template. The parts of the template, and of all templates
+ * nested inside it, are flattened into a single array of instructions, with the
+ * operands pointing into constant pools for text, variables and nested templates.
+ * The program is executed by a simple, iterative interpreter. The recursive
+ * traversal of the template's parts in the Renderer class remains available as the
+ * reference implementation.
+ */
+final class RenderProgram {
+
+  private static final Logger LOG = LoggerFactory.getLogger(RenderProgram.class);
+
+  // Appends a chunk of boilerplate text. Operand: index into the text pool.
+  static final int TEXT = 0;
+  // Appends the value of a variable. Operands: the index of the VariablePart
+  // within its template's parts (which is the key under which the RenderState
+  // stores the value), and the index of the VariablePart in the variable pool.
+  static final int VAR = 1;
+  // Enters a nested template. Operands: the index of the nested template in the
+  // template pool, and the instruction to jump to if the nested template is not
+  // to be rendered.
+  static final int ENTER = 2;
+  // Moves on to the next repetition of the nested template being rendered, or
+  // leaves the nested template if there are no more repetitions. No operands.
+  static final int EXIT = 3;
+
+  // The number of repetitions from which a nested template is rendered in parallel
+  static final int PARALLEL = Check.that(PARALLEL_THRESHOLD.getInt(),
+        PARALLEL_THRESHOLD.property()).is(gte(), 0).ok();
+
+  // Whether to translate the program into a hidden class
+  static final boolean GENERATE = BYTECODE_RENDERER.getBoolean();
+
+  // The minimum number of child sessions rendered by a single task
+  private static final int MIN_RANGE_SIZE = 64;
+
+  /*
+   * The destination of the output of a RenderProgram. Boilerplate text is passed as
+   * a TextPart so that byte-oriented destinations can write the pre-encoded text.
+   */
+  interface Output {
+
+    void text(TextPart text) throws IOException;
+
+    void value(String value) throws IOException;
+
+    /*
+     * Called before the value of a variable that was set using
+     * RenderSession.setDelayed() is generated. Returns whether the value should
+     * actually be generated and passed to value(). By default, it should.
+     */
+    default boolean delayed() {
+      return true;
+    }
+
+    /*
+     * Whether the execution of the program should be suspended. By default, it
+     * should not.
+     */
+    default boolean full() {
+      return false;
+    }
+
+    /*
+     * Whether nested templates with many repetitions may be rendered in parallel,
+     * ahead of the rest of the output. By default, they may not.
+     */
+    default boolean parallel() {
+      return false;
+    }
+
+    /*
+     * Returns an empty output into which a range of repetitions is rendered when a
+     * nested template is rendered in parallel. By default, the range is rendered to
+     * a String.
+     */
+    default Output fork() {
+      return new CharOutput(new StringBuilder());
+    }
+
+    /*
+     * Appends the output of a range of repetitions, rendered into an output that was
+     * returned by fork().
+     */
+    default void join(Output range) throws IOException {
+      value(((CharOutput) range).out.toString());
+    }
+
+  }
+
+  /*
+   * A RenderProgram translated into a hidden class by the RenderCodeGenerator.
+   */
+  interface Generated {
+
+    void render(RenderState state, Output out, DelayedValues delayed)
+          throws IOException;
+
+  }
+
+  // Signals that the program could not be translated into a hidden class
+  private static final Generated INTERPRET = (state, out, delayed) -> {
+    throw new AssertionError();
+  };
+
+  static final class CharOutput implements Output {
+
+    private final Appendable out;
+
+    CharOutput(Appendable out) {
+      this.out = out;
+    }
+
+    @Override
+    public void text(TextPart text) throws IOException {
+      out.append(text.text());
+    }
+
+    @Override
+    public void value(String value) throws IOException {
+      out.append(value);
+    }
+
+    @Override
+    public boolean parallel() {
+      return true;
+    }
+
+  }
+
+  /*
+   * Writes UTF-8 encoded bytes to an OutputStream. Boilerplate text is written in its
+   * pre-encoded form. Only the values of template variables need to be encoded. The
+   * bytes are collected in a buffer, sized using the estimated size of the output,
+   * so that the stream sees a few large writes rather than one per part. Byte arrays
+   * that are larger than the buffer are written straight to the stream. The caller
+   * must call flush() when done.
+   */
+  static final class ByteOutput implements Output {
+
+    private static final int MIN_BUFFER_SIZE = 512;
+    private static final int MAX_BUFFER_SIZE = 64 * 1024;
+
+    private final OutputStream out;
+    private final byte[] buf;
+    private int count;
+    private long size; // total number of bytes written
+
+    ByteOutput(OutputStream out, int estimatedSize) {
+      this.out = out;
+      int size = Math.clamp(estimatedSize, MIN_BUFFER_SIZE, MAX_BUFFER_SIZE);
+      this.buf = new byte[size];
+    }
+
+    @Override
+    public void text(TextPart text) throws IOException {
+      write(text.utf8());
+    }
+
+    @Override
+    public void value(String value) throws IOException {
+      write(value.getBytes(UTF_8));
+    }
+
+    // Writes the buffered bytes to the stream and flushes it
+    void flush() throws IOException {
+      drain();
+      out.flush();
+    }
+
+    private void write(byte[] bytes) throws IOException {
+      size += bytes.length;
+      if (bytes.length > buf.length - count) {
+        drain();
+        if (bytes.length > buf.length) {
+          out.write(bytes);
+          return;
+        }
+      }
+      System.arraycopy(bytes, 0, buf, count, bytes.length);
+      count += bytes.length;
+    }
+
+    // Returns the total number of bytes written so far
+    long size() {
+      return size;
+    }
+
+    private void drain() throws IOException {
+      if (count > 0) {
+        out.write(buf, 0, count);
+        count = 0;
+      }
+    }
+
+    @Override
+    public boolean parallel() {
+      return true;
+    }
+
+  }
+
+  /*
+   * Collects the output as a sequence of ByteBuffers that can be written to a channel
+   * using a single gathering write. Boilerplate text is represented by views of the
+   * read-only, direct ByteBuffers of the TextParts. The UTF-8 encoded values of the
+   * variables (and the separators) between two TextParts are gathered into a single
+   * heap buffer.
+   */
+  static final class BufferOutput implements Output {
+
+    private final List<ByteBuffer> buffers = new ArrayList<>();
+
+    private byte[] scratch = new byte[256];
+    private int start; // start of pending bytes in scratch
+    private int end; // end of pending bytes in scratch
+
+    @Override
+    public void text(TextPart text) {
+      flush();
+      buffers.add(text.buffer());
+    }
+
+    @Override
+    public void value(String value) {
+      byte[] bytes = value.getBytes(UTF_8);
+      if (end + bytes.length > scratch.length) {
+        // Buffers already handed out keep a reference to the old array
+        flush();
+        scratch = new byte[Math.max(scratch.length * 2, bytes.length)];
+        start = end = 0;
+      }
+      System.arraycopy(bytes, 0, scratch, end, bytes.length);
+      end += bytes.length;
+    }
+
+    @Override
+    public boolean parallel() {
+      return true;
+    }
+
+    // Keep the views of the direct buffers of the TextParts, rather than re-encode
+    // the output of the range.
+    @Override
+    public Output fork() {
+      return new BufferOutput();
+    }
+
+    @Override
+    public void join(Output range) {
+      BufferOutput other = (BufferOutput) range;
+      flush();
+      other.flush();
+      buffers.addAll(other.buffers);
+    }
+
+    ByteBuffer[] getBuffers() {
+      flush();
+      return buffers.toArray(ByteBuffer[]::new);
+    }
+
+    private void flush() {
+      if (end > start) {
+        buffers.add(ByteBuffer.wrap(scratch, start, end - start).slice());
+        start = end;
+      }
+    }
+
+  }
+
+  /*
+   * Measures the size of the output rather than producing it. Values that are to be
+   * generated lazily are not generated, but counted.
+   */
+  static final class SizeOutput implements Output {
+
+    private final boolean countBytes;
+
+    private long chars;
+    private long bytes;
+    private int delayed;
+
+    SizeOutput(boolean countBytes) {
+      this.countBytes = countBytes;
+    }
+
+    @Override
+    public void text(TextPart text) {
+      chars += text.text().length();
+      bytes += text.utf8().length;
+    }
+
+    @Override
+    public void value(String value) {
+      chars += value.length();
+      if (countBytes) {
+        bytes += utf8Length(value);
+      }
+    }
+
+    @Override
+    public boolean delayed() {
+      ++delayed;
+      return false;
+    }
+
+  }
+
+  // Returns the number of bytes required to encode the string as UTF-8
+  static int utf8Length(String s) {
+    int len = s.length();
+    int bytes = len;
+    for (int i = 0; i < len; ++i) {
+      char c = s.charAt(i);
+      if (c >= 0x80) {
+        if (c < 0x800) {
+          ++bytes;
+        } else if (Character.isSurrogate(c)) {
+          // A surrogate pair (2 chars) takes 4 bytes. An unpaired
+          // surrogate gets replaced with a single '?'.
+          if (Character.isHighSurrogate(c)
+                && i + 1 < len
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+            bytes += 2;
+            ++i;
+          }
+        } else {
+          bytes += 2;
+        }
+      }
+    }
+    return bytes;
+  }
+
+  static RenderProgram compile(Template template) {
+    return new Compiler().compile(template);
+  }
+
+  private static final class Compiler {
+
+    private int[] code = new int[32];
+    private int pc;
+    private final List<TextPart> texts = new ArrayList<>();
+    private final List<VariablePart> vars = new ArrayList<>();
+    private final List<Template> templates = new ArrayList<>();
+    private int maxDepth;
+
+    RenderProgram compile(Template template) {
+      emit(template, 0);
+      return new RenderProgram(template,
+            Arrays.copyOf(code, pc),
+            texts.toArray(TextPart[]::new),
+            vars.toArray(VariablePart[]::new),
+            templates.toArray(Template[]::new),
+            maxDepth);
+    }
+
+    private void emit(Template template, int depth) {
+      maxDepth = Math.max(maxDepth, depth);
+      List<Part> parts = template.parts();
+      for (int i = 0; i < parts.size(); ++i) {
+        Part part = parts.get(i);
+        if (part instanceof TextPart tp) {
+          texts.add(tp);
+          add(TEXT, texts.size() - 1);
+        } else if (part instanceof VariablePart vp) {
+          vars.add(vp);
+          add(VAR, i, vars.size() - 1);
+        } else {
+          Template nested = template.nested((NestedTemplatePart) part);
+          templates.add(nested);
+          add(ENTER, templates.size() - 1, -1);
+          int jumpOperand = pc - 1;
+          emit(nested, depth + 1);
+          add(EXIT);
+          code[jumpOperand] = pc;
+        }
+      }
+    }
+
+    private void add(int... instruction) {
+      if (pc + instruction.length > code.length) {
+        code = Arrays.copyOf(code, Math.max(code.length * 2, pc + instruction.length));
+      }
+      System.arraycopy(instruction, 0, code, pc, instruction.length);
+      pc += instruction.length;
+    }
+
+  }
+
+  private final Template template;
+  private final int[] code;
+  private final TextPart[] texts;
+  private final VariablePart[] vars;
+  private final Template[] templates;
+  private final int maxDepth;
+
+  // Created upon first execution if GENERATE is true
+  private volatile Generated generated;
+
+  // Moving average of the length of values generated by delayed variables. Used to
+  // estimate the size of the output when it cannot be calculated exactly. Updated
+  // once per rendering, with the mean length of the delayed values generated by it.
+  private volatile float avgDelayedLength = 16;
+
+  // Moving average of the number of chars the template rendered to, or -1 if it has
+  // not been rendered to a String yet. Used to presize the StringBuilder, so that the
+  // size of the output need not be calculated before each rendering.
+  private volatile float avgLength = -1;
+
+  // Same for the number of bytes the template rendered to when rendering to an
+  // OutputStream using UTF-8.
+  private volatile float avgByteLength = -1;
+
+  private RenderProgram(Template template,
+        int[] code,
+        TextPart[] texts,
+        VariablePart[] vars,
+        Template[] templates,
+        int maxDepth) {
+    this.template = template;
+    this.code = code;
+    this.texts = texts;
+    this.vars = vars;
+    this.templates = templates;
+    this.maxDepth = maxDepth;
+  }
+
+  Template template() {
+    return template;
+  }
+
+  /*
+   * Returns the number of chars (or UTF-8 bytes) that the template will render to.
+   * This is an exact number, unless the template contains delayed variables. The length
+   * of their values is estimated from previous renderings.
+   */
+  int estimateSize(RenderState state, boolean bytes) {
+    SizeOutput so = new SizeOutput(bytes);
+    try {
+      run(state, so);
+    } catch (IOException e) {
+      throw new AssertionError(e); // SizeOutput does not do I/O
+    }
+    long size = (bytes ? so.bytes : so.chars)
+          + (long) Math.ceil(so.delayed * avgDelayedLength);
+    return (int) Math.min(size, Integer.MAX_VALUE - 8);
+  }
+
+  /*
+   * Returns the number of chars to reserve for the output of the template. Only the
+   * first time round is this calculated exactly (see estimateSize()). After that it
+   * is derived from the moving average of the size of the output, with some head
+   * room, so that a slightly larger output does not make the buffer grow.
+   */
+  int expectedSize(RenderState state) {
+    float avg = avgLength;
+    if (avg < 0) {
+      return estimateSize(state, false);
+    }
+    return withHeadRoom(avg);
+  }
+
+  // Records the number of chars the template rendered to
+  void recordSize(int length) {
+    float avg = avgLength;
+    avgLength = avg < 0 ? length : avg + (length - avg) / 4;
+  }
+
+  /*
+   * Returns the number of bytes to reserve for the UTF-8 encoded output of the
+   * template. ByteOutput caps its buffer at 64 KiB anyway, so rather than calculating
+   * the size of the output the first time round, we simply go for the largest buffer.
+   */
+  int expectedByteSize() {
+    float avg = avgByteLength;
+    return avg < 0 ? Integer.MAX_VALUE : withHeadRoom(avg);
+  }
+
+  // Records the number of bytes the template rendered to
+  void recordByteSize(long length) {
+    float avg = avgByteLength;
+    avgByteLength = avg < 0 ? length : avg + (length - avg) / 4;
+  }
+
+  private static int withHeadRoom(float avg) {
+    return (int) Math.min(avg * 1.125F + 16, Integer.MAX_VALUE - 8);
+  }
+
+  void run(RenderState root, Output out) throws IOException {
+    if (GENERATE && PARALLEL == 0) {
+      Generated g = generated();
+      if (g != INTERPRET) {
+        DelayedValues delayed = new DelayedValues();
+        g.render(root, out, delayed);
+        recordDelayed(delayed);
+        return;
+      }
+    }
+    new Execution(root, PARALLEL).resume(out);
+  }
+
+  private Generated generated() {
+    Generated g = generated;
+    if (g == null) {
+      synchronized (this) {
+        if ((g = generated) == null) {
+          try {
+            g = generate();
+          } catch (VirtualMachineError e) {
+            throw e;
+          } catch (Throwable t) {
+            LOG.debug("Could not generate renderer for template {}: {}",
+                  template.getName(),
+                  t.toString());
+            g = INTERPRET;
+          }
+          generated = g;
+        }
+      }
+    }
+    return g;
+  }
+
+  Generated generate() throws Throwable {
+    return RenderCodeGenerator.generate(template, code, texts, vars, templates);
+  }
+
+  // Called by generated code
+  static void var(RenderState state,
+        int partIndex,
+        VariablePart part,
+        Output out,
+        DelayedValues delayed) throws IOException {
+    Object val = state.getVar(partIndex);
+    if (val != null) {
+      if (val instanceof Lazy lazy) {
+        delayed(state, part, lazy, out, delayed);
+      } else {
+        out.value(val.toString());
+      }
+    }
+  }
+
+  // Generates the value of a delayed variable, unless the output only measures it
+  static void delayed(RenderState state,
+        VariablePart part,
+        Lazy lazy,
+        Output out,
+        DelayedValues delayed) throws IOException {
+    if (out.delayed()) {
+      String s = Renderer.eval(lazy, state, part);
+      out.value(s);
+      delayed.length += s.length();
+      ++delayed.count;
+    }
+  }
+
+  private void recordDelayed(DelayedValues delayed) {
+    if (delayed.count > 0) {
+      float avg = avgDelayedLength;
+      avgDelayedLength = avg + ((float) delayed.length / delayed.count - avg) / 4;
+    }
+  }
+
+  /*
+   * The number and total length of the values generated by delayed variables during
+   * a single rendering.
+   */
+  static final class DelayedValues {
+    long length;
+    int count;
+  }
+
+  /*
+   * Returns the render state of the i-th repetition of a nested template, or null if
+   * there are no more repetitions. Rows from a RowStream are not pulled when the
+   * output only measures the size of the template. Instead, the rows are counted as a
+   * single delayed value. Also called by generated code.
+   */
+  static RenderState next(SessionData sd, int i, Output out) {
+    if (sd.stream() != null && !out.delayed()) {
+      return null;
+    }
+    return sd.next(i);
+  }
+
+  // Called by generated code
+  static void fragment(SessionData sd, Output out) throws IOException {
+    if (sd.fragment() != null) {
+      out.text(sd.fragment());
+    }
+  }
+
+  void run(RenderState root, Output out, int parallelThreshold) throws IOException {
+    new Execution(root, parallelThreshold).resume(out);
+  }
+
+  Execution start(RenderState root) {
+    return new Execution(root, PARALLEL);
+  }
+
+  /*
+   * Renders the child sessions of a nested template in ranges, using the common
+   * ForkJoinPool. Each range is rendered into an output obtained from out.fork().
+   * Returns the output for each range, in order. The delayed values generated by the
+   * child sessions are added to the specified DelayedValues.
+   */
+  private static Output[] renderParallel(Template nested,
+        SessionData sd,
+        Output out,
+        int parallelThreshold,
+        DelayedValues delayed) {
+    RenderProgram program = nested.program();
+    int size = sd.size();
+    int tasks = ForkJoinPool.getCommonPoolParallelism() * 4;
+    int rangeSize = Math.max(MIN_RANGE_SIZE, -Math.floorDiv(-size, tasks));
+    int ranges = -Math.floorDiv(-size, rangeSize);
+    DelayedValues[] rangeDelayed = new DelayedValues[ranges];
+    Output[] output = IntStream.range(0, ranges).parallel().mapToObj(r -> {
+      int from = r * rangeSize;
+      int to = Math.min(from + rangeSize, size);
+      Output range = out.fork();
+      DelayedValues dv = rangeDelayed[r] = new DelayedValues();
+      try {
+        for (int i = from; i < to; ++i) {
+          if (i > from) {
+            range.value(sd.separator());
+          }
+          program.new Execution(sd.state(i), parallelThreshold, dv).resume(range);
+        }
+      } catch (IOException e) {
+        throw new AssertionError(e); // forked outputs do not do I/O
+      }
+      return range;
+    }).toArray(Output[]::new);
+    for (DelayedValues dv : rangeDelayed) {
+      delayed.length += dv.length;
+      delayed.count += dv.count;
+    }
+    return output;
+  }
+
+  /*
+   * A single execution of the program. The execution can be suspended whenever the
+   * output reports it is full, and then be resumed with the next instruction.
+   */
+  final class Execution {
+
+    // The stack of nested templates currently being rendered. For each level we
+    // keep track of the render state of the enclosing template, the child sessions
+    // being iterated, the current repetition, and the start of the nested
+    // template's instructions.
+    private final RenderState[] outer = new RenderState[maxDepth];
+    private final SessionData[] sessions = new SessionData[maxDepth];
+    private final int[] repetition = new int[maxDepth];
+    private final int[] body = new int[maxDepth];
+
+    private int depth = -1;
+    private RenderState state;
+    private int pc;
+
+    private final int parallelThreshold;
+
+    private final DelayedValues delayed;
+    // Whether this execution renders an entire template, rather than part of the
+    // output of another execution. Only then does it update the average length of
+    // the delayed values when it finishes.
+    private final boolean topLevel;
+
+    private Execution(RenderState root, int parallelThreshold) {
+      this(root, parallelThreshold, new DelayedValues(), true);
+    }
+
+    private Execution(RenderState root, int parallelThreshold, DelayedValues delayed) {
+      this(root, parallelThreshold, delayed, false);
+    }
+
+    private Execution(RenderState root,
+          int parallelThreshold,
+          DelayedValues delayed,
+          boolean topLevel) {
+      this.state = root;
+      this.parallelThreshold = parallelThreshold;
+      this.delayed = delayed;
+      this.topLevel = topLevel;
+    }
+
+    boolean isFinished() {
+      return pc == code.length;
+    }
+
+    /*
+     * Executes the program until it is finished, or until the output is full.
+     * Returns true if the program has finished.
+     */
+    boolean resume(Output out) throws IOException {
+      final int[] code = RenderProgram.this.code;
+      final RenderState[] outer = this.outer;
+      final SessionData[] sessions = this.sessions;
+      final int[] repetition = this.repetition;
+      final int[] body = this.body;
+      int depth = this.depth;
+      RenderState state = this.state;
+      int pc = this.pc;
+      try {
+        while (pc < code.length && !out.full()) {
+          switch (code[pc]) {
+            case TEXT -> {
+              out.text(texts[code[pc + 1]]);
+              pc += 2;
+            }
+            case VAR -> {
+              Object val = state.getVar(code[pc + 1]);
+              if (val != null) {
+                if (val instanceof Lazy lazy) {
+                  delayed(state, vars[code[pc + 2]], lazy, out, delayed);
+                } else {
+                  out.value(val.toString());
+                }
+              }
+              pc += 3;
+            }
+            case ENTER -> {
+              SessionData sd = state.getSessionData(templates[code[pc + 1]]);
+              RenderState first = sd == null ? null : next(sd, 0, out);
+              if (first == null) {
+                if (sd != null && sd.fragment() != null) {
+                  out.text(sd.fragment());
+                }
+                pc = code[pc + 2];
+              } else if (parallelThreshold > 0
+                    && sd.size() >= parallelThreshold
+                    && out.parallel()) {
+                Output[] ranges = renderParallel(templates[code[pc + 1]],
+                      sd,
+                      out,
+                      parallelThreshold,
+                      delayed);
+                for (int i = 0; i < ranges.length; ++i) {
+                  if (i > 0) {
+                    out.value(sd.separator());
+                  }
+                  out.join(ranges[i]);
+                }
+                pc = code[pc + 2];
+              } else {
+                ++depth;
+                outer[depth] = state;
+                sessions[depth] = sd;
+                repetition[depth] = 0;
+                body[depth] = pc + 3;
+                state = first;
+                pc += 3;
+              }
+            }
+            default /* EXIT */ -> {
+              SessionData sd = sessions[depth];
+              RenderState next = next(sd, ++repetition[depth], out);
+              if (next != null) {
+                out.value(sd.separator());
+                state = next;
+                pc = body[depth];
+              } else {
+                state = outer[depth];
+                outer[depth] = null;
+                sessions[depth] = null;
+                --depth;
+                ++pc;
+              }
+            }
+          }
+        }
+      } finally {
+        this.depth = depth;
+        this.state = state;
+        this.pc = pc;
+      }
+      if (pc == code.length && topLevel) {
+        recordDelayed(delayed);
+        delayed.count = 0;
+      }
+      return pc == code.length;
+    }
+
+  }
+
+}
@@ -0,0 +1,192 @@
+package org.klojang.templates;
+
+import org.klojang.templates.RenderProgram.Execution;
+import org.klojang.templates.RenderProgram.Output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/*
+ * Publishes the output of one or more render sessions as a stream of UTF-8 encoded
+ * ByteBuffers. Each subscriber gets its own rendering of the sessions. Output is
+ * produced on demand, in chunks of at most chunkSize bytes, on the thread that
+ * requests it. The RenderProgram is suspended as soon as enough output has been
+ * produced for the next chunk, so delayed values are only generated when the chunk
+ * containing them is requested.
+ */
+final class RenderPublisher implements Flow.Publisher<ByteBuffer> {
+
+  private final List<RenderState> states;
+  private final int chunkSize;
+
+  RenderPublisher(List<RenderState> states, int chunkSize) {
+    this.states = states;
+    this.chunkSize = chunkSize;
+  }
+
+  @Override
+  public void subscribe(Flow.Subscriber<? super ByteBuffer> subscriber) {
+    // Reactive Streams rule 1.9: a null subscriber must result in an NPE (rather
+    // than in the IllegalArgumentException Check.notNull() would throw)
+    Objects.requireNonNull(subscriber, "subscriber");
+    RenderSubscription subscription = new RenderSubscription(subscriber);
+    subscriber.onSubscribe(subscription);
+  }
+
+  /*
+   * Buffers the output of the RenderProgram until there is enough of it for a chunk.
+   */
+  private static final class ChunkOutput implements Output {
+
+    private final int chunkSize;
+
+    private byte[] buf;
+    private int readPos;
+    private int writePos;
+
+    ChunkOutput(int chunkSize) {
+      this.chunkSize = chunkSize;
+      this.buf = new byte[chunkSize];
+    }
+
+    @Override
+    public void text(TextPart text) {
+      write(text.utf8());
+    }
+
+    @Override
+    public void value(String value) {
+      write(value.getBytes(UTF_8));
+    }
+
+    @Override
+    public boolean full() {
+      return writePos - readPos >= chunkSize;
+    }
+
+    boolean isEmpty() {
+      return writePos == readPos;
+    }
+
+    ByteBuffer nextChunk() {
+      int len = Math.min(chunkSize, writePos - readPos);
+      ByteBuffer chunk = ByteBuffer.wrap(Arrays.copyOfRange(buf, readPos, readPos + len));
+      readPos += len;
+      if (readPos == writePos) {
+        readPos = writePos = 0;
+      }
+      return chunk;
+    }
+
+    private void write(byte[] bytes) {
+      if (writePos + bytes.length > buf.length) {
+        int pending = writePos - readPos;
+        if (pending + bytes.length > buf.length) {
+          byte[] tmp = new byte[Math.max(buf.length * 2, pending + bytes.length)];
+          System.arraycopy(buf, readPos, tmp, 0, pending);
+          buf = tmp;
+        } else {
+          System.arraycopy(buf, readPos, buf, 0, pending);
+        }
+        readPos = 0;
+        writePos = pending;
+      }
+      System.arraycopy(bytes, 0, buf, writePos, bytes.length);
+      writePos += bytes.length;
+    }
+
+  }
+
+  private final class RenderSubscription implements Flow.Subscription {
+
+    private final Flow.Subscriber<? super ByteBuffer> subscriber;
+    private final ChunkOutput out = new ChunkOutput(chunkSize);
+    private final AtomicLong demand = new AtomicLong();
+    // Guards against concurrent and re-entrant (onNext -> request -> onNext)
+    // execution of the drain loop.
+    private final AtomicInteger wip = new AtomicInteger();
+
+    private int sessionIndex;
+    private Execution execution;
+    private volatile boolean done;
+
+    RenderSubscription(Flow.Subscriber<? super ByteBuffer> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      if (done) {
+        return;
+      }
+      if (n <= 0) {
+        done = true;
+        subscriber.onError(new IllegalArgumentException(
+              "Number of requested chunks must be positive (received " + n + ")"));
+        return;
+      }
+      demand.getAndAccumulate(n, (x, y) -> {
+        long sum = x + y;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+      });
+      drain();
+    }
+
+    @Override
+    public void cancel() {
+      done = true;
+    }
+
+    private void drain() {
+      if (wip.getAndIncrement() != 0) {
+        return;
+      }
+      int missed = 1;
+      do {
+        while (!done && demand.get() > 0) {
+          ByteBuffer chunk;
+          try {
+            chunk = produceChunk();
+          } catch (IOException | RuntimeException e) {
+            done = true;
+            subscriber.onError(e);
+            return;
+          }
+          if (chunk == null) {
+            done = true;
+            subscriber.onComplete();
+            return;
+          }
+          demand.decrementAndGet();
+          subscriber.onNext(chunk);
+        }
+        missed = wip.addAndGet(-missed);
+      } while (missed != 0);
+    }
+
+    // Returns null if all sessions have been rendered
+    private ByteBuffer produceChunk() throws IOException {
+      while (!out.full()) {
+        if (execution == null || execution.isFinished()) {
+          if (sessionIndex == states.size()) {
+            break;
+          }
+          RenderState state = states.get(sessionIndex++);
+          execution = state.getSessionConfig().template().program().start(state);
+        }
+        execution.resume(out);
+      }
+      return out.isEmpty() ? null : out.nextChunk();
+    }
+
+  }
+
+}
@@ -1,9 +1,19 @@
 package org.klojang.templates;
 
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Flow;
 import java.util.function.IntFunction;
 import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
 
 /**
  * A {@code RenderSession} lets you populate a template and then render it. You obtain a
@@ -333,6 +343,110 @@ public sealed interface RenderSession permits SoloSession, MultiSession {
         VarGroup varGroup,
         List<String> names);
 
+  /**
+   * Populates a nested template with the elements of the specified {@code Stream}. See
+   * {@link #populateStreaming(String, Iterator, String)}. The stream is not closed by
+   * this {@code RenderSession}.
+   *
+   * @param nestedTemplateName the name of the nested template
+   * @param rows the data for the repetitions of the nested template
+   * @param separator the separator to place between instances of the template. May
+   *       be {@code null} (no separator).
+   * @return this {@code RenderSession}
+   */
+  default RenderSession populateStreaming(String nestedTemplateName,
+        Stream<?> rows,
+        String separator) {
+    return populateStreaming(nestedTemplateName, rows.iterator(), separator);
+  }
+
+  /**
+   * Populates a nested template with the elements of the specified {@code Iterator}.
+   * Equivalent to calling {@code populateStreaming(nestedTemplateName, rows, null)}.
+   *
+   * @param nestedTemplateName the name of the nested template
+   * @param rows the data for the repetitions of the nested template
+   * @return this {@code RenderSession}
+   */
+  default RenderSession populateStreaming(String nestedTemplateName, Iterator<?> rows) {
+    return populateStreaming(nestedTemplateName, rows, null);
+  }
+
+  /**
+   * Populates a nested template with the elements of the specified {@code Iterator}.
+   * The nested template is repeated for each element, as with
+   * {@link #populate(String, Object, String) populate()}. However, the elements are
+   * not retrieved until the template is rendered. Each element is then inserted into
+   * the nested template, rendered, and discarded before the next element is retrieved.
+   * Thus, the memory used by this {@code RenderSession} does not grow with the number
+   * of elements, and you can, for example, render a database cursor with millions of
+   * rows straight into an {@code OutputStream}. The flip side is that the nested
+   * template can be rendered only once, that its child sessions are not accessible,
+   * and that its variables and doubly-nested templates cannot be set other than via
+   * the elements of the {@code Iterator}. When rendering to a {@code String} (or to
+   * anything other than an {@code OutputStream}, {@code Channel} or
+   * {@code Publisher}), the entire output must still be held in memory, of course.
+   * Rendering this {@code RenderSession} a second time results in a
+   * {@link RenderException} with error code
+   * {@link RenderErrorCode#STREAM_CONSUMED STREAM_CONSUMED}.
+   *
+   * @param nestedTemplateName the name of the nested template
+   * @param rows the data for the repetitions of the nested template
+   * @param separator the separator to place between instances of the template. May
+   *       be {@code null} (no separator).
+   * @return this {@code RenderSession}
+   */
+  RenderSession populateStreaming(String nestedTemplateName,
+        Iterator<?> rows,
+        String separator);
+
+  /**
+   * Populates a nested template using the data provided by the specified supplier,
+   * unless the output of the nested template for the specified key can be found in
+   * the {@link FragmentCache}. In that case, the supplier is not called, and the cached
+   * output is inserted into the output of this {@code RenderSession}. Otherwise the
+   * nested template is populated as though by a call to
+   * {@link #populate(String, Object) populate()}, rendered immediately, and stored in
+   * the cache. Since the nested template is rendered immediately, it must be fully
+   * populated by the data provided by the supplier. Its variables and nested templates
+   * cannot be set afterwards.
+   *
+   * @param nestedTemplateName the name of the nested template
+   * @param key an object that identifies the output of the nested template. For
+   *       example the ID of the product displayed in the nested template.
+   * @param ttl how long the cached output of the nested template remains fresh
+   * @param data a supplier of the data for the nested template. Only called if the
+   *       nested template is not present in the cache.
+   * @return this {@code RenderSession}
+   */
+  default RenderSession populateCached(String nestedTemplateName,
+        Object key,
+        Duration ttl,
+        Supplier<?> data) {
+    return populateCached(nestedTemplateName, key, ttl, data, null);
+  }
+
+  /**
+   * Populates a nested template using the data provided by the specified supplier,
+   * unless the output of the nested template for the specified key can be found in
+   * the {@link FragmentCache}. See
+   * {@link #populateCached(String, Object, Duration, Supplier)}.
+   *
+   * @param nestedTemplateName the name of the nested template
+   * @param key an object that identifies the output of the nested template
+   * @param ttl how long the cached output of the nested template remains fresh
+   * @param data a supplier of the data for the nested template. Only called if the
+   *       nested template is not present in the cache.
+   * @param separator the separator to place between instances of the template if
+   *       the supplier returns an array or {@code Collection}. May be {@code null}.
+   * @return this {@code RenderSession}
+   */
+  RenderSession populateCached(String nestedTemplateName,
+        Object key,
+        Duration ttl,
+        Supplier<?> data,
+        String separator);
+
   /**
    * Causes the specified nested template to become visible and to be repeated the
    * specified number of times.
@@ -708,8 +822,8 @@ public sealed interface RenderSession permits SoloSession, MultiSession {
 
   /**
    * Depopulates and hides the specified nested templates. Note that you cannot clear the
-   * entire session. If that is what you want, you should simply create a new one using
-   * {@link Template#newRenderSession()}.
+   * entire session this way. If that is what you want, call {@link #reset()} or create
+   * a new session using {@link Template#newRenderSession()}.
    *
    * @param nestedTemplateNames the nested templates to depopulate
    * @return this {@code RenderSession}
@@ -717,11 +831,93 @@ public sealed interface RenderSession permits SoloSession, MultiSession {
   RenderSession clear(String... nestedTemplateNames);
 
   /**
-   * Renders the template.
+   * Returns this {@code RenderSession} to the state it was in when it was created. All
+   * variables are unset and all nested templates are depopulated. Unlike a new
+   * session, a reset session holds on to the data structures it allocated while being
+   * populated, including the child sessions of nested templates, and reuses them
+   * when it is populated again. This lets you render the same template over and over
+   * again with hardly any garbage being produced by the session itself. Any
+   * {@code RenderSession} previously obtained via {@link #in(String) in()} or
+   * {@link #getChildSessions(String) getChildSessions()} must not be used anymore
+   * after the session has been reset. See also {@link SessionPool}.
+   *
+   * @return this {@code RenderSession}
+   */
+  RenderSession reset();
+
+  /**
+   * Renders the template. The template is written to the output stream as UTF-8 encoded
+   * bytes. Equivalent to calling {@code render(out, StandardCharsets.UTF_8)}.
+   *
+   * @param out the output stream to which to write the populated template
+   */
+  default void render(OutputStream out) {
+    render(out, UTF_8);
+  }
+
+  /**
+   * Renders the template, using the specified character set to encode it. The
+   * boilerplate text of the template is encoded only once (when the template is
+   * parsed), so only the values of the template variables need to be encoded for
+   * each rendering.
    *
    * @param out the output stream to which to write the populated template
+   * @param charset the character set to use
    */
-  void render(OutputStream out);
+  void render(OutputStream out, Charset charset);
+
+  /**
+   * Renders the template to the specified channel, using UTF-8 encoding. The template
+   * is first rendered into a sequence of {@code ByteBuffer} objects (see
+   * {@link #renderToBuffers()}), which is then written to the channel. If the channel
+   * is a {@link GatheringByteChannel}, this happens by means of gathering writes, so
+   * the boilerplate text of the template is never copied into an intermediate buffer.
+   * The channel must be in blocking mode.
+   *
+   * @param channel the channel to which to write the populated template
+   */
+  void render(WritableByteChannel channel);
+
+  /**
+   * Renders the template into a sequence of UTF-8 encoded {@code ByteBuffer} objects.
+   * The boilerplate text of the template is represented by read-only, direct
+   * {@code ByteBuffer} objects that are shared by all renderings of the template. (The
+   * returned array contains independent views of those buffers, so you are free to
+   * change their position and limit.) The values of the template variables are
+   * encoded into heap buffers. The returned buffers are ready to be written (e.g.
+   * using {@link GatheringByteChannel#write(ByteBuffer[])}). Do not attempt to write to
+   * them.
+   *
+   * @return the populated template as a sequence of {@code ByteBuffer} objects
+   */
+  ByteBuffer[] renderToBuffers();
+
+  /**
+   * Returns a {@code Publisher} that renders the template in chunks of at most 8192
+   * bytes. Equivalent to calling {@code toPublisher(8192)}.
+   *
+   * @return a {@code Publisher} that renders the template
+   * @see #toPublisher(int)
+   */
+  default Flow.Publisher<ByteBuffer> toPublisher() {
+    return toPublisher(8192);
+  }
+
+  /**
+   * Returns a {@code Publisher} that renders the template as a stream of UTF-8 encoded
+   * {@code ByteBuffer} chunks. Each subscriber receives its own rendering of the
+   * template. Rendering proceeds on demand, on the thread that calls
+   * {@link Flow.Subscription#request(long) request()}, and only as far as necessary to
+   * produce the requested number of chunks. Thus, a slow subscriber never causes the
+   * entire template to be buffered in memory. Values set using
+   * {@link #setDelayed(String, Supplier) setDelayed()} are generated when the chunk
+   * containing them is requested. The template must not be modified while it is being
+   * published.
+   *
+   * @param chunkSize the maximum size (in bytes) of the chunks
+   * @return a {@code Publisher} that renders the template
+   */
+  Flow.Publisher<ByteBuffer> toPublisher(int chunkSize);
 
   /**
    * Renders the template.
@@ -733,10 +929,52 @@ public sealed interface RenderSession permits SoloSession, MultiSession {
   /**
    * Renders the template.
    *
-   * @return the populated template (UTF8-encoded)
+   * @return the populated template
    */
   String render();
 
+  /**
+   * Returns the output that has changed since the previous call to
+   * {@code renderDelta()}. This lets you push partial updates to a client that
+   * already has the output of this {@code RenderSession}. The first call returns a
+   * single {@link RenderedFragment} containing the entire output. Subsequent calls
+   * return a fragment for each variable that has been set or unset since the
+   * previous call, and for each nested template that has been populated, repeated,
+   * enabled or cleared since the previous call. In the latter case, the fragment
+   * contains the output of all repetitions of the nested template. Variables whose
+   * value is generated at render time (see {@link #setDelayed(String, Supplier)
+   * setDelayed()}) are only included if they have been set again.
+   *
+   * @return the output that has changed since the previous call to
+   *       {@code renderDelta()}
+   */
+  List<RenderedFragment> renderDelta();
+
+  /**
+   * Returns the number of characters that the template will render to in its current
+   * state. The number is calculated from the boilerplate text of the template, the
+   * number of repetitions of the nested templates, the separators between them, and
+   * the stringified values of the variables. It is exact, unless the template contains
+   * variables whose value is generated at render time (see
+   * {@link #setDelayed(String, Supplier) setDelayed()}). The length of those values is
+   * estimated using a moving average of the length of the values generated in
+   * previous renderings of the template. Calculating the size takes a walk over the
+   * values in the session, so the render methods only use it the first time a
+   * template is rendered. After that they pre-size their buffers from the size of the
+   * output of previous renderings.
+   *
+   * @return the (estimated) number of characters that the template will render to
+   */
+  int estimateSize();
+
+  /**
+   * Returns the number of bytes that the template will render to when using UTF-8
+   * encoding. See {@link #estimateSize()}.
+   *
+   * @return the (estimated) number of bytes that the template will render to
+   */
+  int estimateByteSize();
+
   /**
    * Returns the template being populated by this {@code RenderSession}.
    *
@@ -5,6 +5,8 @@ import org.klojang.util.Path;
 import org.klojang.util.collection.IntList;
 
 import java.util.*;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static java.util.stream.Collectors.toList;
 import static org.klojang.check.CommonChecks.*;
@@ -17,28 +19,63 @@ import static org.klojang.util.ObjectMethods.nullToEmpty;
 
 final class RenderState {
 
-  private static final SoloSession[] ZERO_SESSIONS = new SoloSession[0];
+  static final SoloSession[] ZERO_SESSIONS = new SoloSession[0];
+  private static final SessionData[] NO_CHILDREN = new SessionData[0];
+  private static final Object[] NO_VALUES = new Object[0];
 
   private final SessionConfig config;
 
-  // variables that have not been set yet
-  private final Set<String> todo;
+  // variables that have not been set yet. The bits correspond to the position of
+  // the variables in Template.getVariables().
+  private final BitSet todo;
 
-  private final Map<Template, SessionData> children;
+  // The child sessions of the nested templates, indexed by Template.slot()
+  private final SessionData[] children;
 
   // variable occurrence values. A variable may occur multiple times
   // within the same template, and occurrences may end up having
-  // different values due to being escaped differently. The keys in
-  // the map are the indices of VarPart parts.
-  private final Map<Integer, Object> varValues;
+  // different values due to being escaped differently. The array
+  // is indexed by the indices of VarPart parts.
+  private final Object[] varValues;
+
+  // The indices of the variable parts and nested template parts whose output has
+  // changed since the last call to RenderSession.renderDelta(). Only created once
+  // renderDelta() has been called, because until then everything counts as changed.
+  private BitSet dirty;
+
+  // Whether the output of this render state has been returned by
+  // RenderSession.renderDelta()
+  private boolean baseline;
+
+  // Child sessions left over from before the last call to reset(), indexed by
+  // Template.slot(). They are handed out again by createChildSessions().
+  private SoloSession[][] recycled;
+
+  // If not null, this render state is a view on a row of a RowBlock, and the values
+  // and unset variables are kept by the RowBlock.
+  private final RowBlock block;
+  private final int row;
 
   RenderState(SessionConfig config) {
     this.config = config;
-    int sz = config.template().countNestedTemplates();
-    this.children = new IdentityHashMap<>(sz);
-    sz = config.template().countVariableOccurrences();
-    this.varValues = HashMap.newHashMap(sz);
-    this.todo = new HashSet<>(config.template().getVariables());
+    Template t = config.template();
+    int sz = t.countNestedTemplates();
+    this.children = sz == 0 ? NO_CHILDREN : new SessionData[sz];
+    sz = t.getVariables().size();
+    this.varValues = sz == 0 ? NO_VALUES : new Object[t.parts().size()];
+    this.todo = new BitSet(sz);
+    todo.set(0, sz);
+    this.block = null;
+    this.row = -1;
+  }
+
+  RenderState(RowBlock block, int row) {
+    this.config = block.config();
+    this.children = NO_CHILDREN;
+    this.varValues = NO_VALUES;
+    this.todo = null;
+    this.block = block;
+    this.row = row;
   }
 
   SessionConfig getSessionConfig() {
@@ -46,7 +83,11 @@ final class RenderState {
   }
 
   SessionData getSessionData(Template tmpl) {
-    return children.get(tmpl);
+    return children[tmpl.slot()];
+  }
+
+  SessionData getSessionData(int slot) {
+    return children[slot];
   }
 
   SoloSession[] createChildSessions(Template t, String separator, int repeats) {
@@ -54,17 +95,108 @@ final class RenderState {
     if (repeats == 0) {
       sessions = ZERO_SESSIONS;
     } else {
-      sessions = new SoloSession[repeats];
+      sessions = recycle(t, repeats);
+    }
+    this.children[t.slot()] = new SessionData(sessions, nullToEmpty(separator));
+    touch(t);
+    return sessions;
+  }
+
+  private SoloSession[] recycle(Template t, int repeats) {
+    SoloSession[] old = recycled == null ? null : recycled[t.slot()];
+    if (old == null) {
+      SoloSession[] sessions = new SoloSession[repeats];
       for (int i = 0; i < repeats; ++i) {
         sessions[i] = config.newChildSession(t);
       }
+      return sessions;
+    }
+    recycled[t.slot()] = null;
+    if (old.length == repeats) {
+      return old;
+    }
+    SoloSession[] sessions = Arrays.copyOf(old, repeats);
+    for (int i = old.length; i < repeats; ++i) {
+      sessions[i] = config.newChildSession(t);
     }
-    this.children.put(t, new SessionData(sessions, nullToEmpty(separator)));
     return sessions;
   }
 
+  /*
+   * Whether the repetitions of the specified nested template can be stored in a
+   * RowBlock. This is the case if the nested template has no nested templates of its
+   * own, and it has not been populated yet. If there are child sessions left over from
+   * before the last reset(), we prefer to reuse those.
+   */
+  boolean canCreateRows(Template t) {
+    return t.countNestedTemplates() == 0
+          && children[t.slot()] == null
+          && (recycled == null || recycled[t.slot()] == null);
+  }
+
+  // Creates a RowBlock for the specified nested template rather than child sessions
+  RowBlock createRows(Template t, String separator, int repeats) {
+    SessionConfig cfg = new SessionConfig(t, config.accessors(), config.stringifiers());
+    RowBlock rows = new RowBlock(cfg, repeats);
+    this.children[t.slot()] = new SessionData(rows, nullToEmpty(separator));
+    touch(t);
+    return rows;
+  }
+
+  // Lets the specified nested template pull its repetitions from an iterator
+  void createStream(Template t,
+        String separator,
+        Iterator<?> rows,
+        VarGroup varGroup,
+        List<String> names) {
+    RowStream stream = new RowStream(config.newChildSession(t), rows, varGroup, names);
+    this.children[t.slot()] = new SessionData(stream, nullToEmpty(separator));
+    touch(t);
+  }
+
+  /*
+   * Replaces the RowBlock of a nested template (if any) with regular child sessions.
+   * This happens when the client asks for the child sessions of the nested template.
+   */
+  private SessionData materialize(Template t) {
+    SessionData sd = children[t.slot()];
+    if (sd == null || sd.rows() == null) {
+      return sd;
+    }
+    RowBlock rows = sd.rows();
+    SessionConfig cfg = rows.config();
+    List<Part> parts = t.parts();
+    int vars = t.getVariables().size();
+    SoloSession[] sessions = new SoloSession[rows.size()];
+    for (int i = 0; i < sessions.length; ++i) {
+      RenderState state = new RenderState(cfg);
+      for (int j = 0; j < parts.size(); ++j) {
+        if (parts.get(j) instanceof VariablePart) {
+          state.varValues[j] = rows.get(j, i);
+        }
+      }
+      for (int j = 0; j < vars; ++j) {
+        if (rows.isSet(j, i)) {
+          state.todo.clear(j);
+        }
+      }
+      if (baseline) {
+        state.markClean();
+      }
+      sessions[i] = new SoloSession(cfg, state);
+    }
+    sd = new SessionData(sessions, sd.separator());
+    children[t.slot()] = sd;
+    return sd;
+  }
+
+  void setFragment(Template t, TextPart fragment) {
+    this.children[t.slot()] = new SessionData(ZERO_SESSIONS, "", fragment);
+    touch(t);
+  }
+
   SoloSession[] getOrCreateChildSessions(Template t, String separator, int repeats) {
-    SessionData children = this.children.get(t);
+    SessionData children = materialize(t);
     if (children == null) {
       return createChildSessions(t, separator, repeats);
     } else if (children.sessions().length == repeats) {
@@ -77,32 +209,125 @@ final class RenderState {
   }
 
   boolean isProcessed(Template template) {
-    return children.get(template) != null;
+    return children[template.slot()] != null;
   }
 
   boolean isDisabled(Template template) {
-    SessionData sd = children.get(template);
-    return sd != null && sd.sessions().length == 0;
+    SessionData sd = children[template.slot()];
+    return sd != null
+          && sd.size() == 0
+          && sd.fragment() == null
+          && sd.stream() == null;
   }
 
   SoloSession[] getChildSessions(Template template) {
-    return ifNotNull(children.get(template), SessionData::sessions);
+    return ifNotNull(materialize(template), SessionData::sessions);
   }
 
   Object getVar(int partIndex) {
-    return varValues.get(partIndex);
+    if (block != null) {
+      return block.get(partIndex, row);
+    }
+    return varValues[partIndex];
+  }
+
+  // The values of the variable occurrences, indexed by part index. Empty if this
+  // render state is a view on a row of a RowBlock. Accessed directly by generated
+  // renderers.
+  Object[] values() {
+    return varValues;
+  }
+
+  RowBlock block() {
+    return block;
+  }
+
+  int row() {
+    return row;
   }
 
   void setVar(int partIndex, Object value) {
-    varValues.put(partIndex, value);
+    if (block != null) {
+      block.set(partIndex, row, value);
+      return;
+    }
+    varValues[partIndex] = value;
+    if (dirty != null) {
+      dirty.set(partIndex);
+    }
+  }
+
+  BitSet dirty() {
+    return dirty;
+  }
+
+  boolean hasBaseline() {
+    return baseline;
+  }
+
+  // Marks the current output of this render state and its descendants as known to
+  // the client of RenderSession.renderDelta()
+  void markClean() {
+    if (block != null) {
+      return;
+    }
+    if (dirty == null) {
+      dirty = new BitSet();
+    } else {
+      dirty.clear();
+    }
+    baseline = true;
+    for (SessionData sd : children) {
+      if (sd != null) {
+        for (SoloSession s : sd.sessions()) {
+          s.state().markClean();
+        }
+      }
+    }
+  }
+
+  // Marks the output of the specified nested template as changed
+  private void touch(Template t) {
+    if (dirty == null) {
+      return;
+    }
+    List<Part> parts = config.template().parts();
+    for (int i = 0; i < parts.size(); ++i) {
+      if (parts.get(i) instanceof NestedTemplatePart ntp && ntp.slot() == t.slot()) {
+        dirty.set(i);
+        return;
+      }
+    }
   }
 
   void done(String var) {
-    todo.remove(var);
+    int i = config.template().varOrdinal(var);
+    if (i == -1) {
+      return;
+    }
+    if (block != null) {
+      block.done(i, row);
+    } else {
+      todo.clear(i);
+    }
+  }
+
+  private boolean isTodo(int varOrdinal) {
+    return block == null ? todo.get(varOrdinal) : !block.isSet(varOrdinal, row);
   }
 
   List<String> todo() {
-    return List.copyOf(todo);
+    return todoStream().toList();
+  }
+
+  private Stream<String> todoStream() {
+    Template t = config.template();
+    if (block != null) {
+      return IntStream.range(0, t.getVariables().size())
+            .filter(this::isTodo)
+            .mapToObj(t::varName);
+    }
+    return todo.stream().mapToObj(t::varName);
   }
 
   List<String> getAllUnsetVariables(boolean relative) {
@@ -119,13 +344,13 @@ final class RenderState {
   // collects absolute paths
   private static void collectUnsetVariables(RenderState state, ArrayList<String> vars) {
     Template myTmpl = state.config.template();
-    state.todo.stream().map(var -> getFQN(myTmpl, var)).forEach(vars::add);
+    state.todoStream().map(var -> getFQN(myTmpl, var)).forEach(vars::add);
     myTmpl.getNestedTemplates().forEach(t -> {
-      SessionData children = state.children.get(t);
+      SessionData children = state.children[t.slot()];
       if (children == null) {
         TemplateUtils.collectFQNs(t, vars);
-      } else if (children.sessions().length > 0) {
-        collectUnsetVariables(children.sessions()[0].state(), vars);
+      } else if (children.size() > 0) {
+        collectUnsetVariables(children.state(0), vars);
       }
     });
   }
@@ -135,15 +360,15 @@ final class RenderState {
         RenderState state,
         ArrayList<Path> vars,
         Path path) {
-    state.todo.stream().map(path::append).forEach(vars::add);
+    state.todoStream().map(path::append).forEach(vars::add);
     Template tmpl = state.config.template();
     tmpl.getNestedTemplates().forEach(t -> {
       Path next = path.append(t.getName());
-      SessionData sd = state.children.get(t);
+      SessionData sd = state.children[t.slot()];
       if (sd == null) {
         TemplateUtils.collectFQNs(t, vars, next);
-      } else if (sd.sessions().length > 0) {
-        collectUnsetVariables(sd.sessions()[0].state(), vars, next);
+      } else if (sd.size() > 0) {
+        collectUnsetVariables(sd.state(0), vars, next);
       }
     });
   }
@@ -153,14 +378,14 @@ final class RenderState {
   }
 
   private static boolean ready(RenderState state) {
-    if (state.todo.isEmpty()) {
+    if (state.todoStream().findAny().isEmpty()) {
       for (Template t : state.config.template().getNestedTemplates()) {
-        SessionData sd = state.children.get(t);
+        SessionData sd = state.children[t.slot()];
         if (sd == null) {
           if (t.hasVariables()) {
             return false;
           }
-        } else if (sd.sessions().length > 0 && !ready(sd.sessions()[0].state())) {
+        } else if (sd.size() > 0 && !ready(sd.state(0))) {
           return false;
         }
       }
@@ -179,14 +404,17 @@ final class RenderState {
       IntList occurrences = state.config.template().variables().get(name);
       Check.that(occurrences).is(notNull(),
             NO_SUCH_VARIABLE.getExceptionSupplier(name));
-      state.todo.add(name);
-      occurrences.stream().forEach(state.varValues.keySet()::remove);
+      state.todo.set(state.config.template().varOrdinal(name));
+      occurrences.forEach(i -> state.varValues[i] = null);
+      if (state.dirty != null) {
+        occurrences.forEach(state.dirty::set);
+      }
     } else {
       Template tmpl = state.config.template();
       Check.that(name).is(in(), tmpl.getNestedTemplateNames(),
             NO_SUCH_TEMPLATE.getExceptionSupplier(getFQN(tmpl, name)));
       Template nested = tmpl.getNestedTemplate(name);
-      SessionData children = state.children.get(nested);
+      SessionData children = state.materialize(nested);
       if (children != null) {
         Arrays.stream(children.sessions()).forEach(s -> unset(s.state(), path.shift()));
       }
@@ -194,20 +422,45 @@ final class RenderState {
   }
 
   void clear(Template tmpl) {
-    Arrays.stream(children.get(tmpl).sessions()).forEach(this::clear);
-    children.remove(tmpl);
+    Arrays.stream(children[tmpl.slot()].sessions()).forEach(this::clear);
+    children[tmpl.slot()] = null;
+    touch(tmpl);
   }
 
   private void clear(SoloSession session) {
     RenderState state = session.state();
-    state.varValues.clear();
-    state.todo.addAll(state.config.template().getVariables());
-    state.children.values()
-          .stream()
+    Arrays.fill(state.varValues, null);
+    state.todo.set(0, state.config.template().getVariables().size());
+    Arrays.stream(state.children)
+          .filter(Objects::nonNull)
           .map(SessionData::sessions)
           .flatMap(Arrays::stream)
           .forEach(this::clear);
-    state.children.clear();
+    Arrays.fill(state.children, null);
+  }
+
+  // Returns this render state to its initial state. The child sessions are reset as
+  // well and kept around for reuse by createChildSessions().
+  void reset() {
+    Arrays.fill(varValues, null);
+    todo.set(0, config.template().getVariables().size());
+    dirty = null;
+    baseline = false;
+    for (int i = 0; i < children.length; ++i) {
+      SessionData sd = children[i];
+      if (sd != null) {
+        children[i] = null;
+        if (sd.sessions().length != 0) {
+          for (SoloSession s : sd.sessions()) {
+            s.state().reset();
+          }
+          if (recycled == null) {
+            recycled = new SoloSession[children.length][];
+          }
+          recycled[i] = sd.sessions();
+        }
+      }
+    }
   }
 
   boolean isSet(Path path) {
@@ -217,7 +470,8 @@ final class RenderState {
   private static boolean isSet(RenderState state, Path path) {
     String name = path.segment(0);
     if (path.size() == 1) {
-      if (state.todo.contains(name)) {
+      int i = state.config.template().varOrdinal(name);
+      if (i != -1 && state.isTodo(i)) {
         return false;
       }
       Template tmpl = state.config.template();
@@ -229,13 +483,13 @@ final class RenderState {
     Check.that(name).is(in(), tmpl.getNestedTemplateNames(),
           NO_SUCH_TEMPLATE.getExceptionSupplier(getFQN(tmpl, name)));
     Template nested = tmpl.getNestedTemplate(name);
-    SessionData children = state.children.get(nested);
+    SessionData children = state.children[nested.slot()];
     if (children == null) {
       return false;
-    } else if (children.sessions().length == 0) {
+    } else if (children.size() == 0) {
       return true;
     }
-    return isSet(children.sessions()[0].state(), path.shift());
+    return isSet(children.state(0), path.shift());
   }
 
 }
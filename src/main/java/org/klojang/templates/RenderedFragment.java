@@ -0,0 +1,18 @@
+package org.klojang.templates;
+
+/**
+ * A piece of output that has changed since the previous call to
+ * {@link RenderSession#renderDelta()}. The path identifies the location of the
+ * fragment within the template. It consists of the names of the nested templates
+ * leading up to the variable or nested template whose output has changed,
+ * each followed by the index of the repetition (e.g.
+ * {@code companies[0].departments[2].name}). If a variable occurs multiple times
+ * within the same template, all but the first occurrence get a suffix indicating
+ * which occurrence it is (e.g. {@code name#1}). The path of the fragment containing
+ * the entire output of a {@code RenderSession} is an empty string.
+ *
+ * @param path the path of the variable or nested template
+ * @param text the new output of the variable or nested template
+ * @author Ayco Holleman
+ */
+public record RenderedFragment(String path, String text) {}
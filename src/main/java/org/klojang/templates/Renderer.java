@@ -1,14 +1,26 @@
 package org.klojang.templates;
 
+import org.klojang.templates.RenderProgram.BufferOutput;
+import org.klojang.templates.RenderProgram.ByteOutput;
+import org.klojang.templates.RenderProgram.CharOutput;
+import org.klojang.templates.RenderProgram.Output;
 import org.klojang.templates.x.Lazy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
 
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.klojang.templates.RenderErrorCode.UNEXPECTED_ERROR;
 import static org.klojang.templates.RenderUtil.stringify;
 import static org.klojang.templates.TemplateUtils.getFQN;
@@ -24,16 +36,213 @@ final class Renderer {
     this.state = state;
   }
 
-  void render(OutputStream out) {
-    Appendable appendable = out instanceof Appendable a ? a : new PrintStream(out);
+  void render(OutputStream out, Charset charset) {
     try {
-      render(state, appendable);
+      if (charset.equals(UTF_8)) {
+        ByteOutput bo = new ByteOutput(out, program().expectedByteSize());
+        render(bo);
+        bo.flush();
+      } else {
+        // Some character sets are stateful (e.g. UTF-16 writes a byte order mark),
+        // so we must use a single encoder for the entire output.
+        Writer writer = new OutputStreamWriter(out, charset);
+        execute(new CharOutput(writer));
+        writer.flush();
+      }
+    } catch (IOException e) {
+      throw new RenderException(UNEXPECTED_ERROR, e.toString());
+    }
+  }
+
+  // Renders to a ByteOutput that may be shared with other renderers. The caller
+  // flushes it.
+  void render(ByteOutput out) {
+    long start = out.size();
+    try {
+      execute(out);
     } catch (IOException e) {
       throw new RenderException(UNEXPECTED_ERROR, e.toString());
     }
+    program().recordByteSize(out.size() - start);
+  }
+
+  String render() {
+    StringBuilder sb = new StringBuilder(expectedSize());
+    render(sb, false);
+    return sb.toString();
   }
 
   void render(StringBuilder sb) {
+    render(sb, true);
+  }
+
+  /*
+   * Renders to the specified StringBuilder. Callers that have already made room for
+   * the output pass false.
+   */
+  void render(StringBuilder sb, boolean presize) {
+    RenderProgram program = program();
+    if (presize) {
+      sb.ensureCapacity(sb.length() + program.expectedSize(state));
+    }
+    int start = sb.length();
+    try {
+      execute(new CharOutput(sb));
+    } catch (IOException e) {
+      throw new RenderException(UNEXPECTED_ERROR, e.toString());
+    }
+    program.recordSize(sb.length() - start);
+  }
+
+  // The number of chars to reserve for the output. See RenderProgram.expectedSize().
+  int expectedSize() {
+    return program().expectedSize(state);
+  }
+
+  // The number of bytes to reserve for the UTF-8 encoded output
+  int expectedByteSize() {
+    return program().expectedByteSize();
+  }
+
+  private RenderProgram program() {
+    return state.getSessionConfig().template().program();
+  }
+
+  int estimateSize(boolean bytes) {
+    Template t = state.getSessionConfig().template();
+    return t.program().estimateSize(state, bytes);
+  }
+
+  ByteBuffer[] renderBuffers() {
+    BufferOutput out = new BufferOutput();
+    try {
+      execute(out);
+    } catch (IOException e) {
+      throw new RenderException(UNEXPECTED_ERROR, e.toString());
+    }
+    return out.getBuffers();
+  }
+
+  void render(WritableByteChannel channel) {
+    ByteBuffer[] buffers = renderBuffers();
+    try {
+      write(channel, buffers);
+    } catch (IOException e) {
+      throw new RenderException(UNEXPECTED_ERROR, e.toString());
+    }
+  }
+
+  private static void write(WritableByteChannel channel, ByteBuffer[] buffers)
+        throws IOException {
+    if (channel instanceof GatheringByteChannel gbc) {
+      int i = 0;
+      while (i < buffers.length) {
+        gbc.write(buffers, i, buffers.length - i);
+        while (i < buffers.length && !buffers[i].hasRemaining()) {
+          ++i;
+        }
+      }
+    } else {
+      for (ByteBuffer bb : buffers) {
+        while (bb.hasRemaining()) {
+          channel.write(bb);
+        }
+      }
+    }
+  }
+
+  /*
+   * Returns the output that has changed since the previous call to renderDelta(). The
+   * first call returns the entire output. The path prefix is the path of the render
+   * state itself (an empty string for a root session).
+   */
+  List<RenderedFragment> renderDelta(String prefix) {
+    List<RenderedFragment> fragments = new ArrayList<>();
+    if (state.hasBaseline()) {
+      collectDelta(state, prefix, fragments);
+    } else {
+      fragments.add(new RenderedFragment(prefix, render()));
+      state.markClean();
+    }
+    return fragments;
+  }
+
+  private static void collectDelta(RenderState state0,
+        String prefix,
+        List<RenderedFragment> fragments) {
+    Template t = state0.getSessionConfig().template();
+    List<Part> parts = t.parts();
+    BitSet dirty = state0.dirty();
+    for (int i = 0; i < parts.size(); ++i) {
+      Part part = parts.get(i);
+      if (part instanceof VariablePart vp) {
+        if (dirty.get(i)) {
+          String path = path(prefix, vp.name()) + occurrence(parts, i);
+          Object val = state0.getVar(i);
+          String text;
+          if (val == null) {
+            text = "";
+          } else if (val instanceof Lazy lazy) {
+            text = eval(lazy, state0, vp);
+          } else {
+            text = val.toString();
+          }
+          fragments.add(new RenderedFragment(path, text));
+        }
+      } else if (part instanceof NestedTemplatePart ntp) {
+        SessionData sd = state0.getSessionData(t.nested(ntp));
+        String path = path(prefix, ntp.name());
+        if (dirty.get(i)) {
+          StringBuilder sb = new StringBuilder();
+          if (sd != null) {
+            if (sd.fragment() != null) {
+              sb.append(sd.fragment().text());
+            }
+            RenderState state;
+            for (int j = 0; (state = sd.next(j)) != null; ++j) {
+              if (j > 0) {
+                sb.append(sd.separator());
+              }
+              new Renderer(state).render(sb);
+              state.markClean();
+            }
+          }
+          fragments.add(new RenderedFragment(path, sb.toString()));
+        } else if (sd != null) {
+          // A RowBlock has not changed since it was last rendered, because it is
+          // converted to child sessions once they are requested by the client.
+          SoloSession[] sessions = sd.sessions();
+          for (int j = 0; j < sessions.length; ++j) {
+            collectDelta(sessions[j].state(), path + '[' + j + ']', fragments);
+          }
+        }
+      }
+    }
+    dirty.clear();
+  }
+
+  private static String path(String prefix, String name) {
+    return prefix.isEmpty() ? name : prefix + '.' + name;
+  }
+
+  // Returns "#n" for the n-th occurrence of a variable (n > 0) and "" for the first
+  private static String occurrence(List<Part> parts, int partIndex) {
+    String name = ((VariablePart) parts.get(partIndex)).name();
+    int n = 0;
+    for (int i = 0; i < partIndex; ++i) {
+      if (parts.get(i) instanceof VariablePart vp && vp.name().equals(name)) {
+        ++n;
+      }
+    }
+    return n == 0 ? "" : "#" + n;
+  }
+
+  /*
+   * Renders the template by walking its parts recursively rather than by executing
+   * its RenderProgram. This is the reference implementation against which the output
+   * of the RenderProgram can be compared.
+   */
+  void renderRecursive(StringBuilder sb) {
     try {
       render(state, sb);
     } catch (IOException e) {
@@ -41,6 +250,14 @@ final class Renderer {
     }
   }
 
+  private void execute(Output out) throws IOException {
+    Template t = state.getSessionConfig().template();
+    if (LOG.isTraceEnabled()) {
+      log(t);
+    }
+    t.program().run(state, out);
+  }
+
   private void render(RenderState state0, Appendable out) throws IOException {
     if (LOG.isTraceEnabled()) {
       log(state0.getSessionConfig().template());
@@ -68,31 +285,35 @@ final class Renderer {
   private void renderNestedTemplate(Appendable out,
         NestedTemplatePart part,
         RenderState state) throws IOException {
-    SessionData sd = state.getSessionData(part.getTemplate());
+    Template t = state.getSessionConfig().template().nested(part);
+    SessionData sd = state.getSessionData(t);
     if (sd != null) {
-      Template t = part.getTemplate();
-      if (t.isTextOnly()) {
+      if (sd.fragment() != null) {
+        out.append(sd.fragment().text());
+      } else if (t.isTextOnly()) {
         // Then the RenderSession[] array will contain only null values
         // and we just want to know its length to determine the number
         // of repetitions
         String text = ((TextPart) t.parts().get(0)).text();
-        for (int i = 0; i < sd.sessions().length; ++i) {
+        for (int i = 0; sd.next(i) != null; ++i) {
           if (i > 0) {out.append(sd.separator());}
           out.append(text);
         }
       } else {
-        for (int i = 0; i < sd.sessions().length; ++i) {
+        RenderState row;
+        for (int i = 0; (row = sd.next(i)) != null; ++i) {
           if (i > 0) {out.append(sd.separator());}
-          render(sd.sessions()[i].state(), out);
+          render(row, out);
         }
       }
     }
   }
 
-  private static String eval(Lazy lazy, RenderState state, VariablePart part) {
+  static String eval(Lazy lazy, RenderState state, VariablePart part) {
     StringifierRegistry reg = state.getSessionConfig().stringifiers();
     Object val = lazy.value().get();
-    Stringifier stringifier = reg.getStringifier(part, lazy.varGroup(), val);
+    Template t = state.getSessionConfig().template();
+    Stringifier stringifier = reg.getStringifier(t, part, lazy.varGroup(), val);
     return stringify(val, stringifier, part, lazy.varGroup());
   }
 
@@ -0,0 +1,88 @@
+package org.klojang.templates;
+
+import java.util.BitSet;
+import java.util.List;
+
+/*
+ * The values of all repetitions ("rows") of a nested template that has no nested
+ * templates of its own, stored in a single columnar table. A RowBlock replaces the
+ * array of child sessions that RenderState would otherwise create for the nested
+ * template, so that populating it with many rows does not cost a SoloSession and a
+ * RenderState (with its own value array and BitSet) per row. The per-row render
+ * states handed out by row() are lightweight views on the table. They are created on
+ * demand, while populating and rendering, and not retained. RenderState converts the
+ * RowBlock into regular child sessions as soon as the client asks for them, e.g. via
+ * RenderSession.getChildSessions() or RenderSession.in().
+ */
+final class RowBlock {
+
+  private final SessionConfig config;
+  private final int rows;
+
+  // Maps part indices to columns. -1 for text parts.
+  private final int[] columns;
+
+  // The values of the variable occurrences, column by column
+  private final Object[] values;
+
+  // The variables that have not been set yet, variable by variable. Bit
+  // (varOrdinal * rows + row) is set if the variable is unset in the row.
+  private final BitSet todo;
+
+  RowBlock(SessionConfig config, int rows) {
+    this.config = config;
+    this.rows = rows;
+    Template t = config.template();
+    List<Part> parts = t.parts();
+    this.columns = columns(parts);
+    int cols = (int) parts.stream().filter(VariablePart.class::isInstance).count();
+    this.values = new Object[cols * rows];
+    int vars = t.getVariables().size();
+    this.todo = new BitSet(vars * rows);
+    todo.set(0, vars * rows);
+  }
+
+  SessionConfig config() {
+    return config;
+  }
+
+  int size() {
+    return rows;
+  }
+
+  RenderState row(int row) {
+    return new RenderState(this, row);
+  }
+
+  // The values, column by column. Accessed directly by generated renderers.
+  Object[] values() {
+    return values;
+  }
+
+  Object get(int partIndex, int row) {
+    return values[columns[partIndex] * rows + row];
+  }
+
+  void set(int partIndex, int row, Object value) {
+    values[columns[partIndex] * rows + row] = value;
+  }
+
+  boolean isSet(int varOrdinal, int row) {
+    return !todo.get(varOrdinal * rows + row);
+  }
+
+  void done(int varOrdinal, int row) {
+    todo.clear(varOrdinal * rows + row);
+  }
+
+  // Maps the part indices of a template to columns
+  static int[] columns(List<Part> parts) {
+    int[] columns = new int[parts.size()];
+    int cols = 0;
+    for (int i = 0; i < columns.length; ++i) {
+      columns[i] = parts.get(i) instanceof VariablePart ? cols++ : -1;
+    }
+    return columns;
+  }
+
+}
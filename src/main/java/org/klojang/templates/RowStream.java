@@ -0,0 +1,49 @@
+package org.klojang.templates;
+
+import java.util.Iterator;
+import java.util.List;
+
+import static org.klojang.templates.RenderErrorCode.STREAM_CONSUMED;
+import static org.klojang.templates.TemplateUtils.getFQN;
+
+/*
+ * The source data for a nested template populated via
+ * RenderSession.populateStreaming(). The rows are pulled from the iterator one at a
+ * time while the nested template is being rendered. Each row is inserted into the same
+ * child session, which is reset before the next row is inserted. Thus, no matter how
+ * many rows the iterator produces, only one of them is in memory at any time. A
+ * RowStream can only be rendered once. Once the iterator is exhausted, rendering it
+ * again results in a RenderException, rather than in a silently empty template.
+ */
+final class RowStream {
+
+  private final SoloSession session;
+  private final Iterator<?> rows;
+  private final VarGroup varGroup;
+  private final List<String> names;
+
+  private boolean consumed;
+
+  RowStream(SoloSession session, Iterator<?> rows, VarGroup varGroup, List<String> names) {
+    this.session = session;
+    this.rows = rows;
+    this.varGroup = varGroup;
+    this.names = names;
+  }
+
+  // Returns the render state for the next row, or null if there are no more rows
+  RenderState next() {
+    if (consumed) {
+      throw STREAM_CONSUMED.getException(getFQN(session.getTemplate()));
+    }
+    if (!rows.hasNext()) {
+      consumed = true;
+      return null;
+    }
+    Object row = rows.next();
+    session.reset();
+    session.insert(row, varGroup, names);
+    return session.state();
+  }
+
+}
@@ -1,3 +1,55 @@
 package org.klojang.templates;
 
-record SessionData(SoloSession[] sessions, String separator) {}
+/*
+ * The child sessions of a nested template, or (if fragment is not null) the cached
+ * output of the nested template, in which case sessions is an empty array. If rows is
+ * not null, the repetitions of the nested template are stored in a RowBlock rather
+ * than in child sessions. If stream is not null, the repetitions are produced while
+ * the nested template is being rendered. In both cases sessions is an empty array as
+ * well.
+ */
+record SessionData(SoloSession[] sessions,
+      String separator,
+      TextPart fragment,
+      RowBlock rows,
+      RowStream stream) {
+
+  SessionData(SoloSession[] sessions, String separator) {
+    this(sessions, separator, null, null, null);
+  }
+
+  SessionData(SoloSession[] sessions, String separator, TextPart fragment) {
+    this(sessions, separator, fragment, null, null);
+  }
+
+  SessionData(RowBlock rows, String separator) {
+    this(RenderState.ZERO_SESSIONS, separator, null, rows, null);
+  }
+
+  SessionData(RowStream stream, String separator) {
+    this(RenderState.ZERO_SESSIONS, separator, null, null, stream);
+  }
+
+  // The number of repetitions of the nested template. Zero for a RowStream.
+  int size() {
+    return rows == null ? sessions.length : rows.size();
+  }
+
+  // The render state of the i-th repetition of the nested template
+  RenderState state(int i) {
+    return rows == null ? sessions[i].state() : rows.row(i);
+  }
+
+  /*
+   * Returns the render state of the i-th repetition of the nested template, or null if
+   * there are no more repetitions. Must be called with i = 0, 1, 2, etc. because a
+   * RowStream produces its rows in order.
+   */
+  RenderState next(int i) {
+    if (stream != null) {
+      return stream.next();
+    }
+    return i < size() ? state(i) : null;
+  }
+
+}
@@ -0,0 +1,109 @@
+package org.klojang.templates;
+
+import org.klojang.check.Check;
+import org.klojang.templates.x.MTag;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.klojang.check.CommonChecks.yes;
+
+/**
+ * A bounded pool of {@link RenderSession render sessions} for a single template. The
+ * pool lets you render the same template over and over again (for example, once for
+ * each HTTP request) without creating a new session, with all its child sessions, for
+ * each rendering. Sessions are returned to the pool after use, at which point they
+ * are {@link RenderSession#reset() reset}. If the pool is full, the returned session
+ * is simply dropped. If the pool is empty, {@link #acquire()} creates a new session.
+ * Thus, the capacity of the pool only determines how many idle sessions are kept
+ * around. {@code SessionPool} is thread-safe and lock-free. Obtain a
+ * {@code SessionPool} via {@link Template#newSessionPool(int)}.
+ *
+ * <blockquote><pre>{@code
+ * private static final SessionPool POOL = TEMPLATE.newSessionPool(16);
+ *
+ * void handle(Request request, OutputStream out) {
+ *   RenderSession session = POOL.acquire();
+ *   try {
+ *     session.insert(request.getData());
+ *     session.render(out);
+ *   } finally {
+ *     POOL.release(session);
+ *   }
+ * }
+ * }</pre></blockquote>
+ *
+ * @author Ayco Holleman
+ */
+public final class SessionPool {
+
+  private final SessionConfig config;
+  private final AtomicReferenceArray<SoloSession> idle;
+
+  SessionPool(SessionConfig config, int capacity) {
+    this.config = config;
+    this.idle = new AtomicReferenceArray<>(capacity);
+  }
+
+  /**
+   * Returns an idle session from the pool, or a new session if the pool is empty.
+   *
+   * @return a {@code RenderSession} for the template of this pool
+   */
+  public RenderSession acquire() {
+    int start = start();
+    for (int i = 0; i < idle.length(); ++i) {
+      int slot = (start + i) % idle.length();
+      SoloSession session = idle.get(slot);
+      if (session != null && idle.compareAndSet(slot, session, null)) {
+        return session;
+      }
+    }
+    return config.newRenderSession();
+  }
+
+  /**
+   * Resets the specified session and returns it to the pool. The session must have
+   * been obtained from this pool, and it must not be used anymore by the caller
+   * after it has been released.
+   *
+   * @param session the session to return to the pool
+   */
+  public void release(RenderSession session) {
+    Check.notNull(session, MTag.SESSION);
+    Check.that(session instanceof SoloSession s && s.config() == config)
+          .is(yes(), "session not acquired from this pool");
+    SoloSession solo = (SoloSession) session;
+    solo.reset();
+    int start = start();
+    for (int i = 0; i < idle.length(); ++i) {
+      int slot = (start + i) % idle.length();
+      if (idle.get(slot) == null && idle.compareAndSet(slot, null, solo)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Returns the template for which this pool hands out sessions.
+   *
+   * @return the template for which this pool hands out sessions
+   */
+  public Template getTemplate() {
+    return config.template();
+  }
+
+  /**
+   * Returns the maximum number of idle sessions kept by this pool.
+   *
+   * @return the maximum number of idle sessions kept by this pool
+   */
+  public int capacity() {
+    return idle.length();
+  }
+
+  // Spread threads over the slots of the pool to reduce contention
+  private int start() {
+    return (int) (Thread.currentThread().threadId() % idle.length());
+  }
+
+}
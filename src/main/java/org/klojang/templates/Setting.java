@@ -20,14 +20,114 @@ public enum Setting {
    * <p>Specifies the maximum size of an internally maintained cache of
    * {@link Template} instances - used to reduce the overhead of parsing template
    * files. When the cache reaches the specified size, {@code Template} instances are
-   * evicted on a least-recently-used basis. A value of -1 means the cache is allowed
-   * to grow to any size. A value of 0 disables caching.
-   * This is useful during
+   * evicted on a least-recently-used basis, although templates that are requested
+   * only once are not allowed to push out templates that are requested frequently.
+   * A value of -1 means the cache is allowed to grow to any size. A value of 0
+   * disables caching. This is useful during
    * development and/or debugging as the template file will be re-loaded and
-   * re-parsed every time you press the refresh button in the browser.
+   * re-parsed every time you press the refresh button in the browser. The cache can
+   * also be bounded by the amount of memory taken up by the templates. See
+   * {@link #TMPL_CACHE_HEAP_SIZE}.
    * </p>
    */
-  TMPL_CACHE_SIZE("org.klojang.templates.cacheSize", "KJT_CACHE_SIZE", "-1");
+  TMPL_CACHE_SIZE("org.klojang.templates.cacheSize", "KJT_CACHE_SIZE", "-1"),
+
+  /**
+   * <p>System Property: {@code org.klojang.templates.cacheHeapSize}<br>
+   * Environment Variable: {@code KJT_CACHE_HEAP_SIZE}<br>Default Value:
+   * {@code -1}.
+   *
+   * <p>Specifies the maximum number of bytes taken up by the templates in the
+   * {@link Template} cache. The size of a template is estimated from the length of
+   * its boilerplate text and the names of its variables and nested templates. When
+   * the cache reaches the specified size, templates are evicted in the same way as
+   * when the cache reaches the number of templates specified by
+   * {@link #TMPL_CACHE_SIZE}. If both settings are specified, the cache must stay
+   * within both limits. A value of -1 means the amount of memory is not limited. A
+   * value of 0 disables caching.
+   */
+  TMPL_CACHE_HEAP_SIZE("org.klojang.templates.cacheHeapSize",
+        "KJT_CACHE_HEAP_SIZE",
+        "-1"),
+
+  /**
+   * <p>System Property: {@code org.klojang.templates.hotReload}<br>Environment
+   * Variable: {@code KJT_HOT_RELOAD}<br>Default Value: {@code false}.
+   *
+   * <p>Whether to watch the files from which templates are created (using
+   * {@link Template#fromFile(String) Template.fromFile()}) for changes. When a file
+   * changes, the templates created from it, and the templates that include them, are
+   * evicted from the cache and re-parsed in the background. Thus, you can edit your
+   * templates while the application is running, without having to disable caching
+   * altogether (see {@link #TMPL_CACHE_SIZE}). Templates loaded from the classpath
+   * or via a custom {@link PathResolver} are not watched.
+   */
+  HOT_RELOAD("org.klojang.templates.hotReload", "KJT_HOT_RELOAD", "false"),
+
+  /**
+   * <p>System Property: {@code org.klojang.templates.templateStore}<br>
+   * Environment Variable: {@code KJT_TEMPLATE_STORE}<br>Default Value: none.
+   *
+   * <p>Specifies the path of a {@link TemplateStore template store}: a file
+   * containing templates that have already been parsed. When the template cache
+   * needs to load a template, it first looks it up in the store. Only if the
+   * template is not in the store, or if its source code has changed since the store
+   * was written, is the template parsed. If the file cannot be opened, a warning is
+   * logged and all templates are parsed. See
+   * {@link TemplateStore#write(java.nio.file.Path, java.util.Collection)
+   * TemplateStore.write()}.
+   */
+  TMPL_STORE("org.klojang.templates.templateStore", "KJT_TEMPLATE_STORE", null),
+
+  /**
+   * <p>System Property: {@code org.klojang.templates.parallelThreshold}<br>
+   * Environment Variable: {@code KJT_PARALLEL_THRESHOLD}<br>Default Value:
+   * {@code 0}.
+   *
+   * <p>Specifies the number of repetitions from which a nested template is rendered
+   * in parallel. The child sessions of the nested template are then split into
+   * ranges, which are rendered into separate buffers using the common
+   * {@link java.util.concurrent.ForkJoinPool ForkJoinPool}. The buffers are joined
+   * in order, so the output is the same as when rendering sequentially. Note that the
+   * values of variables set using
+   * {@link RenderSession#setDelayed(String, java.util.function.Supplier)
+   * setDelayed()} will then be generated on the threads of the pool, and that
+   * {@link RenderSession#toPublisher() publishers} never render in parallel. A value
+   * of 0 (the default) disables parallel rendering.
+   */
+  PARALLEL_THRESHOLD("org.klojang.templates.parallelThreshold",
+        "KJT_PARALLEL_THRESHOLD",
+        "0"),
+
+  /**
+   * <p>System Property: {@code org.klojang.templates.fragmentCacheSize}<br>
+   * Environment Variable: {@code KJT_FRAGMENT_CACHE_SIZE}<br>Default Value:
+   * {@code 16777216} (16 MB).
+   *
+   * <p>Specifies the maximum number of bytes taken up by the nested templates cached
+   * by {@link FragmentCache}. When the cache reaches the specified size, fragments are
+   * evicted on a least-recently-used basis. A value of 0 disables caching.
+   */
+  FRAGMENT_CACHE_SIZE("org.klojang.templates.fragmentCacheSize",
+        "KJT_FRAGMENT_CACHE_SIZE",
+        "16777216"),
+
+  /**
+   * <p>System Property: {@code org.klojang.templates.bytecodeRenderer}<br>
+   * Environment Variable: {@code KJT_BYTECODE_RENDERER}<br>Default Value:
+   * {@code false}.
+   *
+   * <p>Whether to generate a dedicated class for each template the first time it is
+   * rendered. The class contains straight-line code for the text and variables of
+   * the template, which the JIT compiler can optimize much better than the generic
+   * rendering code. Templates are still rendered the regular way if the class cannot
+   * be generated, if parallel rendering is enabled (see
+   * {@link #PARALLEL_THRESHOLD}), or if the output is to be
+   * {@link RenderSession#toPublisher() published}.
+   */
+  BYTECODE_RENDERER("org.klojang.templates.bytecodeRenderer",
+        "KJT_BYTECODE_RENDERER",
+        "false");
 
   private final String sysprop;
   private final String envvar;
@@ -11,13 +11,16 @@ import org.klojang.util.collection.IntList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.time.Duration;
 import java.util.*;
+import java.util.concurrent.Flow;
 import java.util.function.IntFunction;
 import java.util.function.Supplier;
 
-import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.Collections.singletonMap;
 import static org.klojang.check.CommonChecks.*;
 import static org.klojang.check.CommonProperties.size;
@@ -73,7 +76,7 @@ final class SoloSession implements RenderSession {
     VariablePart part = (VariablePart) config.template().parts().get(partIndex);
     VarGroup group = part.varGroup().orElse(varGroup);
     StringifierRegistry reg = config.stringifiers();
-    Stringifier stringifier = reg.getStringifier(part, group, value);
+    Stringifier stringifier = reg.getStringifier(config.template(), part, group, value);
     String strval = stringify(value, stringifier, part, varGroup);
     state.setVar(partIndex, strval);
   }
@@ -226,6 +229,14 @@ final class SoloSession implements RenderSession {
     if (tmpl.isTextOnly()) {
       return enable(list.size(), separator, tmpl);
     }
+    if (!list.isEmpty() && state.canCreateRows(tmpl)) {
+      // Store the repetitions in a columnar table rather than in child sessions
+      RowBlock rows = state.createRows(tmpl, separator, list.size());
+      for (int i = 0; i < list.size(); ++i) {
+        new SoloSession(rows.config(), rows.row(i)).insert(list.get(i), group, names);
+      }
+      return this;
+    }
     SoloSession[] sessions = state.getOrCreateChildSessions(tmpl, separator, list.size());
     for (int i = 0; i < sessions.length; ++i) {
       sessions[i].insert(list.get(i), group, names);
@@ -233,6 +244,52 @@ final class SoloSession implements RenderSession {
     return this;
   }
 
+  @Override
+  public RenderSession populateStreaming(String tmpl, Iterator<?> rows, String separator) {
+    Check.notNull(rows, MTag.ROWS);
+    Template t = getNestedTemplate(tmpl);
+    Check.that(state.getChildSessions(t)).is(NULL(),
+          REPETITIONS_FIXED.getExceptionSupplier(tmpl));
+    state.createStream(t, separator, rows, null, null);
+    return this;
+  }
+
+  @Override
+  public RenderSession populateCached(String tmpl,
+        Object key,
+        Duration ttl,
+        Supplier<?> data,
+        String separator) {
+    Check.notNull(key, MTag.KEY);
+    Check.notNull(ttl, MTag.TTL).isNot(Duration::isNegative);
+    Check.notNull(data, MTag.DATA_SUPPLIER);
+    Template t = getNestedTemplate(tmpl);
+    Check.that(state.getChildSessions(t)).is(NULL(),
+          REPETITIONS_FIXED.getExceptionSupplier(tmpl));
+    TextPart fragment = FragmentCache.INSTANCE.get(state.getSessionConfig(), t, key);
+    if (fragment == null) {
+      doPopulate(t, data.get(), null, separator, null);
+      SessionData sd = state.getSessionData(t);
+      StringBuilder sb = new StringBuilder();
+      if (sd != null) {
+        for (int i = 0; i < sd.size(); ++i) {
+          if (i > 0) {
+            sb.append(sd.separator());
+          }
+          new Renderer(sd.state(i)).render(sb);
+        }
+      }
+      fragment = TextPart.fragment(sb.toString());
+      FragmentCache.INSTANCE.put(state.getSessionConfig(),
+            t,
+            key,
+            fragment,
+            ttl.toNanos());
+    }
+    state.setFragment(t, fragment);
+    return this;
+  }
+
   @Override
   public RenderSession repeat(String tmpl, String separator, int times) {
     Check.that(times).isNot(negative());
@@ -387,8 +444,38 @@ final class SoloSession implements RenderSession {
   }
 
   @Override
-  public void render(OutputStream out) {
-    Check.notNull(out).then(x -> new Renderer(state).render(x));
+  public RenderSession reset() {
+    state.reset();
+    return this;
+  }
+
+  @Override
+  public void render(OutputStream out, Charset charset) {
+    Check.notNull(out, Tag.OUTPUT);
+    Check.notNull(charset, MTag.CHARSET);
+    new Renderer(state).render(out, charset);
+  }
+
+  @Override
+  public void render(WritableByteChannel channel) {
+    Check.notNull(channel, MTag.CHANNEL);
+    new Renderer(state).render(channel);
+  }
+
+  @Override
+  public ByteBuffer[] renderToBuffers() {
+    return new Renderer(state).renderBuffers();
+  }
+
+  @Override
+  public Flow.Publisher<ByteBuffer> toPublisher(int chunkSize) {
+    Check.that(chunkSize, MTag.CHUNK_SIZE).is(positive());
+    return new RenderPublisher(List.of(state), chunkSize);
+  }
+
+  @Override
+  public List<RenderedFragment> renderDelta() {
+    return new Renderer(state).renderDelta("");
   }
 
   @Override
@@ -398,9 +485,17 @@ final class SoloSession implements RenderSession {
 
   @Override
   public String render() {
-    ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
-    new Renderer(state).render(out);
-    return out.toString(UTF_8);
+    return new Renderer(state).render();
+  }
+
+  @Override
+  public int estimateSize() {
+    return new Renderer(state).estimateSize(false);
+  }
+
+  @Override
+  public int estimateByteSize() {
+    return new Renderer(state).estimateSize(true);
   }
 
   @Override
@@ -412,6 +507,10 @@ final class SoloSession implements RenderSession {
     return state;
   }
 
+  SessionConfig config() {
+    return config;
+  }
+
   Template getNestedTemplate(String name) {
     Check.notNull(name, MTag.TEMPLATE_NAME);
     Template t = config.template().nested(name);
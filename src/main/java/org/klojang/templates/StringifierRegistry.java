@@ -437,8 +437,10 @@ public final class StringifierRegistry {
     this.defStringifier = defStringifier;
   }
 
-  Stringifier getStringifier(VariablePart part, VarGroup varGroup, Object value)
-      throws RenderException {
+  Stringifier getStringifier(Template tmpl,
+      VariablePart part,
+      VarGroup varGroup,
+      Object value) throws RenderException {
     Stringifier sf;
     if (part.varGroup().isPresent()) {
       VarGroup vg = part.varGroup().get();
@@ -454,7 +456,6 @@ public final class StringifierRegistry {
         return sf;
       }
     }
-    Template tmpl = part.getParentTemplate();
     String var = part.name();
     if (null != (sf = stringifiers.get(new StringifierId(tmpl, var)))) {
       return sf;
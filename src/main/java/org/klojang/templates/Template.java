@@ -5,17 +5,21 @@ import org.klojang.check.Tag;
 import org.klojang.templates.x.ClassPathResolver;
 import org.klojang.templates.x.FilePathResolver;
 import org.klojang.templates.x.MTag;
-import org.klojang.util.collection.IntArrayList;
 import org.klojang.util.collection.IntList;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import static java.util.stream.Collectors.toList;
-import static java.util.stream.Collectors.toUnmodifiableList;
 import static org.klojang.check.CommonChecks.*;
+import static org.klojang.templates.AccessorRegistry.STANDARD_ACCESSORS;
+import static org.klojang.templates.StringifierRegistry.STANDARD_STRINGIFIERS;
 import static org.klojang.templates.TemplateLocation.STRING;
 import static org.klojang.templates.x.Messages.ERR_NO_SUCH_TEMPLATE;
 import static org.klojang.util.CollectionMethods.implode;
@@ -138,42 +142,140 @@ public final class Template {
         return TemplateCache.INSTANCE.get(location, ROOT_TEMPLATE_NAME);
     }
 
+    /**
+     * Parses the specified templates, and the templates they include, in parallel,
+     * using the common {@link ForkJoinPool}, and stores them in the template cache.
+     * Equivalent to {@code preload(resolver, paths, ForkJoinPool.commonPool())}.
+     *
+     * @param resolver the {@code PathResolver}
+     * @param paths the paths to be resolved by the {@code PathResolver}
+     * @return a report of the templates that were parsed successfully, the
+     *         templates that contained errors, and the time it took to load them
+     */
+    public static PreloadReport preload(PathResolver resolver, Collection<String> paths) {
+        return preload(resolver, paths, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Parses the specified templates, and the templates they include, in parallel,
+     * using the specified {@code Executor}, and stores them in the template cache.
+     * Call this method at application startup to make parse errors surface
+     * immediately rather than when a template is first used, and to spare the first
+     * requests the cost of parsing their templates. A template that cannot be parsed
+     * does not prevent the other templates from being loaded. Note that if caching is
+     * disabled (see {@link Setting#TMPL_CACHE_SIZE}), this method only validates the
+     * templates. This method returns once all templates have been loaded.
+     *
+     * @param resolver the {@code PathResolver}
+     * @param paths the paths to be resolved by the {@code PathResolver}
+     * @param executor the {@code Executor} to use for parsing the templates
+     * @return a report of the templates that were parsed successfully, the
+     *         templates that contained errors, and the time it took to load them
+     */
+    public static PreloadReport preload(PathResolver resolver,
+            Collection<String> paths,
+            Executor executor) {
+        Check.notNull(resolver, "resolver");
+        Check.notNull(paths, "paths");
+        Check.notNull(executor, "executor");
+        return Preloader.preload(resolver, paths, executor);
+    }
+
+    /**
+     * Parses all files within the specified directory (and its subdirectories) whose
+     * path relative to the directory matches the specified glob pattern, and stores
+     * them in the template cache. Equivalent to
+     * {@code preloadDirectory(dir, glob, ForkJoinPool.commonPool())}.
+     *
+     * @param dir the directory containing the templates
+     * @param glob the glob pattern, for example {@code "**.html"}
+     * @return a report of the templates that were parsed successfully, the
+     *         templates that contained errors, and the time it took to load them
+     * @see java.nio.file.FileSystem#getPathMatcher(String)
+     */
+    public static PreloadReport preloadDirectory(Path dir, String glob) {
+        return preloadDirectory(dir, glob, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Parses all files within the specified directory (and its subdirectories) whose
+     * path relative to the directory matches the specified glob pattern, using the
+     * specified {@code Executor}, and stores them in the template cache. The
+     * templates are cached just as if they had been loaded using
+     * {@link #fromFile(String) fromFile()}, with the path of the directory and the
+     * relative path of the file joined together. See
+     * {@link #preload(PathResolver, Collection, Executor)}.
+     *
+     * @param dir the directory containing the templates
+     * @param glob the glob pattern, for example {@code "**.html"}
+     * @param executor the {@code Executor} to use for parsing the templates
+     * @return a report of the templates that were parsed successfully, the
+     *         templates that contained errors, and the time it took to load them
+     * @see java.nio.file.FileSystem#getPathMatcher(String)
+     */
+    public static PreloadReport preloadDirectory(Path dir,
+            String glob,
+            Executor executor) {
+        Check.notNull(dir, "dir").has(Path::toFile, directory());
+        Check.notNull(glob, "glob");
+        List<String> paths = Preloader.list(dir, glob);
+        return preload(new FilePathResolver(), paths, executor);
+    }
+
+    /**
+     * Returns statistics about the cache of {@code Template} instances created from
+     * files, classpath resources and {@link PathResolver path resolvers}.
+     *
+     * @return statistics about the template cache
+     */
+    public static TemplateCacheMXBean cacheStatistics() {
+        return TemplateCache.INSTANCE;
+    }
+
+    /**
+     * Sets the {@code Executor} used to parse included templates. By default
+     * included templates are parsed in parallel, using the common
+     * {@link ForkJoinPool}. When the parser encounters an include tag, it hands the
+     * included template over to the executor and moves on. Once the including
+     * template has been parsed, the parser waits for the included templates, or
+     * parses them itself if the executor has not got round to them yet. Thus, a
+     * template including many other templates, which include other templates in turn,
+     * is no longer parsed depth-first on a single thread. Pass {@code null} to parse
+     * included templates on the thread that parses the including template.
+     *
+     * @param executor the {@code Executor} used to parse included templates, or
+     *         {@code null} to parse them sequentially
+     */
+    public static void setIncludeExecutor(Executor executor) {
+        TemplateCache.INSTANCE.setIncludeExecutor(executor);
+    }
+
     private final String name;
-    private final TemplateLocation location;
-    private final List<Part> parts;
-    private final Map<String, IntList> varIndices;
-    private final IntList textIndices;
-    private final Map<String, Integer> tmplIndices;
-    // All variable names and nested template together
-    private final List<String> names;
+    // The parts and lookup tables, which are shared by all inclusions of a template
+    private final TemplateBody body;
+    private final Template parent;
+    // The position of this template among the nested templates of its parent
+    private final int slot;
+    private final List<Template> nestedTemplates;
 
-    private Template parent;
+    private RenderProgram program;
 
     Template(String name, TemplateLocation location, List<Part> parts) {
-        parts.forEach(p -> {
-            p.setParentTemplate(this);
-            if (p instanceof NestedTemplatePart ntp) {
-                ntp.getTemplate().parent = this;
-            }
-        });
-        this.name = name;
-        this.location = location;
-        this.parts = parts;
-        this.varIndices = getVarIndices(parts);
-        this.tmplIndices = getTmplIndices(parts);
-        this.names = getNames(parts);
-        this.textIndices = getTextIndices(parts);
+        this(name, new TemplateBody(location, parts), null, -1);
     }
 
-    Template(Template cached, String name) {
+    private Template(String name, TemplateBody body, Template parent, int slot) {
         this.name = name;
-        this.location = cached.location;
-        this.parts = cached.parts;
-        this.varIndices = cached.varIndices;
-        this.tmplIndices = cached.tmplIndices;
-        this.nestedTemplates = cached.nestedTemplates;
-        this.names = cached.names;
-        this.textIndices = cached.textIndices;
+        this.body = body;
+        this.parent = parent;
+        this.slot = slot;
+        List<NestedTemplatePart> nested = body.nestedParts();
+        Template[] children = new Template[nested.size()];
+        for (int i = 0; i < children.length; ++i) {
+            NestedTemplatePart ntp = nested.get(i);
+            children[i] = new Template(ntp.name(), ntp.body(), this, i);
+        }
+        this.nestedTemplates = List.of(children);
     }
 
     /**
@@ -232,7 +334,7 @@ public final class Template {
      * @return the path to the source code for this {@code Template}
      */
     public Optional<String> path() {
-        return Optional.ofNullable(location.path());
+        return Optional.ofNullable(body.location().path());
     }
 
     /**
@@ -246,7 +348,7 @@ public final class Template {
      * @see TemplateUtils#getAllVariableFQNames(Template)
      */
     public Set<String> getVariables() {
-        return varIndices.keySet();
+        return body.varIndices().keySet();
     }
 
     /**
@@ -256,7 +358,7 @@ public final class Template {
      * @return all occurrences of all variables within this {@code Template}
      */
     public List<VariableOccurrence> getVariableOccurrences() {
-        return parts.stream()
+        return body.parts().stream()
                 .filter(VariablePart.class::isInstance)
                 .map(VariablePart.class::cast)
                 .map(VariablePart::toOccurrence)
@@ -272,7 +374,7 @@ public final class Template {
      * @return the total number of variables in this {@code Template}
      */
     public int countVariableOccurrences() {
-        return (int) parts.stream().filter(VariablePart.class::isInstance).count();
+        return (int) body.parts().stream().filter(VariablePart.class::isInstance).count();
     }
 
     /**
@@ -285,11 +387,9 @@ public final class Template {
      * specified name
      */
     public boolean hasVariable(String name) {
-        return Check.notNull(name).ok(varIndices::containsKey);
+        return Check.notNull(name).ok(body.varIndices()::containsKey);
     }
 
-    private List<Template> nestedTemplates;
-
     /**
      * Returns all templates nested inside this {@code Template} (non-recursive). The
      * returned {@code List} is unmodifiable.
@@ -297,14 +397,6 @@ public final class Template {
      * @return all templates nested inside this {@code Template}
      */
     public List<Template> getNestedTemplates() {
-        if (nestedTemplates == null) {
-            return nestedTemplates = tmplIndices.values()
-                    .stream()
-                    .map(parts::get)
-                    .map(NestedTemplatePart.class::cast)
-                    .map(NestedTemplatePart::getTemplate)
-                    .collect(toUnmodifiableList());
-        }
         return nestedTemplates;
     }
 
@@ -315,7 +407,7 @@ public final class Template {
      * @return the names of all nested templates
      */
     public Set<String> getNestedTemplateNames() {
-        return tmplIndices.keySet();
+        return body.tmplSlots().keySet();
     }
 
     /**
@@ -327,7 +419,7 @@ public final class Template {
      * the specified name
      */
     public boolean hasNestedTemplate(String name) {
-        return Check.notNull(name).ok(tmplIndices::containsKey);
+        return Check.notNull(name).ok(body.tmplSlots()::containsKey);
     }
 
     /**
@@ -337,7 +429,7 @@ public final class Template {
      * @return the number of nested templates
      */
     public int countNestedTemplates() {
-        return tmplIndices.size();
+        return nestedTemplates.size();
     }
 
     /**
@@ -349,16 +441,19 @@ public final class Template {
      * @return the {@code Template} with the specified name
      */
     public Template getNestedTemplate(String name) {
-        Check.notNull(name).is(keyIn(), tmplIndices, ERR_NO_SUCH_TEMPLATE);
+        Check.notNull(name).is(keyIn(), body.tmplSlots(), ERR_NO_SUCH_TEMPLATE);
         return nested(name);
     }
 
     Template nested(String name) {
-        Integer partIndex = tmplIndices.get(name);
-        if (partIndex != null) {
-            return ((NestedTemplatePart) parts.get(partIndex)).getTemplate();
-        }
-        return null;
+        Integer slot = body.tmplSlots().get(name);
+        return slot == null ? null : nestedTemplates.get(slot);
+    }
+
+    // Returns the nested template corresponding to the specified part of this
+    // template
+    Template nested(NestedTemplatePart part) {
+        return nestedTemplates.get(part.slot());
     }
 
     /**
@@ -368,7 +463,7 @@ public final class Template {
      * @return the names of all variables and nested templates in this {@code Template}
      */
     public List<String> getNames() {
-        return names;
+        return body.names();
     }
 
     /**
@@ -378,7 +473,7 @@ public final class Template {
      * @return whether this is a text-only template
      */
     public boolean isTextOnly() {
-        return names.isEmpty();
+        return body.names().isEmpty();
     }
 
     /**
@@ -395,7 +490,7 @@ public final class Template {
     }
 
     private boolean hasVariables(Template t) {
-        if (t.varIndices.size() == 0) {
+        if (t.body.varIndices().isEmpty()) {
             return t.getNestedTemplates().stream().anyMatch(this::hasVariables);
         }
         return true;
@@ -467,6 +562,98 @@ public final class Template {
         return new SessionConfig(this, accessors, stringifiers).newRenderSession();
     }
 
+    /**
+     * Renders this {@code Template} using the specified source data. Equivalent to
+     * {@code newRenderSession().insert(data).render()}, but faster, because the values
+     * in the source data are written straight to the output, without first being
+     * stored in a {@code RenderSession}. Use this method if you do not need the
+     * flexibility of a {@code RenderSession} (e.g. to set individual variables, or to
+     * render the template more than once).
+     *
+     * @param data the source data. Must provide values for all variables and nested
+     *             templates that should show up in the output
+     * @return the populated template
+     */
+    public String render(Object data) {
+        StringBuilder sb = new StringBuilder();
+        render(data, sb);
+        return sb.toString();
+    }
+
+    /**
+     * Renders this {@code Template} using the specified source data. Equivalent to
+     * {@code newRenderSession().insert(data).render(out)}. See
+     * {@link #render(Object)}.
+     *
+     * @param data the source data
+     * @param out  the {@code Appendable} to which to write the populated template
+     */
+    public void render(Object data, Appendable out) {
+        render(data, out, STANDARD_ACCESSORS, STANDARD_STRINGIFIERS);
+    }
+
+    /**
+     * Renders this {@code Template} using the specified source data. Equivalent to
+     * {@code newRenderSession(accessors, stringifiers).insert(data).render(out)}. See
+     * {@link #render(Object)}.
+     *
+     * @param data         the source data
+     * @param out          the {@code Appendable} to which to write the populated
+     *                     template
+     * @param accessors    the {@code AccessorRegistry} used to extract values from the
+     *                     source data
+     * @param stringifiers the {@code StringifierRegistry} used to stringify those
+     *                     values
+     */
+    public void render(Object data,
+                       Appendable out,
+                       AccessorRegistry accessors,
+                       StringifierRegistry stringifiers) {
+        Check.notNull(out, Tag.OUTPUT);
+        Check.notNull(accessors, MTag.ACCESSORS);
+        Check.notNull(stringifiers, MTag.STRINGIFIERS);
+        try {
+            new DirectRenderer(accessors, stringifiers).render(this, data, out);
+        } catch (IOException e) {
+            throw new RenderException(RenderErrorCode.UNEXPECTED_ERROR, e.toString());
+        }
+    }
+
+    /**
+     * Returns a {@link SessionPool} that hands out {@code RenderSession} instances for
+     * this {@code Template}. The sessions use the
+     * {@link AccessorRegistry#STANDARD_ACCESSORS predefined accessors} and the
+     * {@link StringifierRegistry#STANDARD_STRINGIFIERS predefined stringifiers}.
+     *
+     * @param capacity the maximum number of idle sessions kept by the pool
+     * @return a {@code SessionPool} for this {@code Template}
+     */
+    public SessionPool newSessionPool(int capacity) {
+        Check.that(capacity, Tag.CAPACITY).is(positive());
+        return new SessionPool(new SessionConfig(this), capacity);
+    }
+
+    /**
+     * Returns a {@link SessionPool} that hands out {@code RenderSession} instances for
+     * this {@code Template}. The sessions use the specified {@code AccessorRegistry}
+     * and {@code StringifierRegistry}.
+     *
+     * @param capacity     the maximum number of idle sessions kept by the pool
+     * @param accessors    the {@code AccessorRegistry} used to supply the
+     *                     sessions with {@link Accessor accessors}
+     * @param stringifiers the {@code StringifierRegistry} used to supply the
+     *                     sessions with {@link Stringifier stringifiers}
+     * @return a {@code SessionPool} for this {@code Template}
+     */
+    public SessionPool newSessionPool(int capacity,
+                                      AccessorRegistry accessors,
+                                      StringifierRegistry stringifiers) {
+        Check.that(capacity, Tag.CAPACITY).is(positive());
+        Check.notNull(accessors, MTag.ACCESSORS);
+        Check.notNull(stringifiers, MTag.STRINGIFIERS);
+        return new SessionPool(new SessionConfig(this, accessors, stringifiers), capacity);
+    }
+
     /**
      * Determines whether this template is equal to the specified object. Two templates
      * are equals if they were created from the same {@linkplain #path() path} and
@@ -483,9 +670,9 @@ public final class Template {
         if (this == obj) {
             return true;
         }
-        return !location.isString()
+        return !body.location().isString()
                 && obj instanceof Template other
-                && location.equals(other.location);
+                && body.location().equals(other.body.location());
     }
 
     /**
@@ -495,7 +682,7 @@ public final class Template {
      */
     @Override
     public int hashCode() {
-        return location.hashCode();
+        return body.location().hashCode();
     }
 
     /**
@@ -506,65 +693,67 @@ public final class Template {
      */
     @Override
     public String toString() {
-        return implode(parts, "");
+        return implode(body.parts(), "");
     }
 
     /* +++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++ */
     /* ++++++++++++++++++++++ END OF PUBLIC INTERFACE ++++++++++++++++++++++ */
     /* +++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++++ */
 
+    TemplateBody body() {
+        return body;
+    }
+
     TemplateLocation location() {
-        return location;
+        return body.location();
     }
 
     List<Part> parts() {
-        return parts;
+        return body.parts();
     }
 
     /*
-     * Maps variable names to the indices of the parts that contain them
+     * Returns the compiled form of this template. The program is compiled upon first
+     * request, because the parser may still trim the boilerplate text of nested
+     * templates after they have been instantiated.
      */
-    Map<String, IntList> variables() {
-        return varIndices;
+    RenderProgram program() {
+        if (program == null) {
+            return program = RenderProgram.compile(this);
+        }
+        return program;
     }
 
-    private static Map<String, IntList> getVarIndices(List<Part> parts) {
-        Map<String, IntList> indices = new LinkedHashMap<>();
-        for (int i = 0; i < parts.size(); ++i) {
-            if (parts.get(i) instanceof VariablePart vp) {
-                indices.computeIfAbsent(vp.name(), k -> new IntArrayList()).add(i);
-            }
-        }
-        indices.entrySet().forEach(e -> e.setValue(IntList.copyOf(e.getValue())));
-        return Collections.unmodifiableMap(indices);
+    /*
+     * Maps variable names to the indices of the parts that contain them
+     */
+    Map<String, IntList> variables() {
+        return body.varIndices();
     }
 
-    private static Map<String, Integer> getTmplIndices(List<Part> parts) {
-        Map<String, Integer> indices = new LinkedHashMap<>();
-        for (int i = 0; i < parts.size(); ++i) {
-            if (parts.get(i) instanceof NestedTemplatePart ntp) {
-                indices.put(ntp.name(), i);
-            }
-        }
-        return Collections.unmodifiableMap(indices);
+    /*
+     * Returns the position of the variable within getVariables(), or -1 if there is
+     * no such variable. Used by RenderState to keep track of unset variables.
+     */
+    int varOrdinal(String name) {
+        Integer i = body.varOrdinals().get(name);
+        return i == null ? -1 : i;
     }
 
-    private static List<String> getNames(List<Part> parts) {
-        return parts.stream()
-                .filter(NamedPart.class::isInstance)
-                .map(NamedPart.class::cast)
-                .map(NamedPart::name)
-                .collect(toUnmodifiableList());
+    /*
+     * Returns the name of the variable at the specified position within
+     * getVariables().
+     */
+    String varName(int ordinal) {
+        return body.varNames().get(ordinal);
     }
 
-    private static IntList getTextIndices(List<Part> parts) {
-        IntArrayList indices = new IntArrayList();
-        for (int i = 0; i < parts.size(); ++i) {
-            if (parts.get(i).getClass() == TextPart.class) {
-                indices.add(i);
-            }
-        }
-        return IntList.copyOf(indices);
+    /*
+     * Returns the position of this template among the nested templates of its parent.
+     * Used by RenderState to store child sessions in an array.
+     */
+    int slot() {
+        return slot;
     }
 
 }
@@ -0,0 +1,138 @@
+package org.klojang.templates;
+
+import org.klojang.util.collection.IntArrayList;
+import org.klojang.util.collection.IntList;
+
+import java.util.*;
+
+import static java.util.stream.Collectors.toUnmodifiableList;
+
+/*
+ * The immutable part of a Template: its location, its parts, and the lookup tables
+ * derived from them. A Template wraps a TemplateBody and adds the context in which
+ * the body is used: its name, its parent, and its position among the nested
+ * templates of its parent. Nested template parts refer to the body of the nested
+ * template, not to a Template, so the body of an included template is shared by all
+ * templates including it, and is held in memory only once.
+ */
+final class TemplateBody {
+
+  private final TemplateLocation location;
+  private final List<Part> parts;
+  private final Map<String, IntList> varIndices;
+  private final IntList textIndices;
+  // Maps the names of the nested templates to their slot
+  private final Map<String, Integer> tmplSlots;
+  // The nested template parts, in order of appearance (that is: by slot)
+  private final List<NestedTemplatePart> nestedParts;
+  // All variable names and nested template together
+  private final List<String> names;
+  // The variable names in order of appearance, and their position in that list
+  private final List<String> varNames;
+  private final Map<String, Integer> varOrdinals;
+
+  TemplateBody(TemplateLocation location, List<Part> parts) {
+    this.location = location;
+    this.parts = parts;
+    this.nestedParts = getNestedParts(parts);
+    this.varIndices = getVarIndices(parts);
+    this.tmplSlots = getTmplSlots(nestedParts);
+    this.names = getNames(parts);
+    this.textIndices = getTextIndices(parts);
+    this.varNames = List.copyOf(varIndices.keySet());
+    this.varOrdinals = getVarOrdinals(varNames);
+  }
+
+  TemplateLocation location() {
+    return location;
+  }
+
+  List<Part> parts() {
+    return parts;
+  }
+
+  Map<String, IntList> varIndices() {
+    return varIndices;
+  }
+
+  IntList textIndices() {
+    return textIndices;
+  }
+
+  Map<String, Integer> tmplSlots() {
+    return tmplSlots;
+  }
+
+  List<NestedTemplatePart> nestedParts() {
+    return nestedParts;
+  }
+
+  List<String> names() {
+    return names;
+  }
+
+  List<String> varNames() {
+    return varNames;
+  }
+
+  Map<String, Integer> varOrdinals() {
+    return varOrdinals;
+  }
+
+  private static List<NestedTemplatePart> getNestedParts(List<Part> parts) {
+    List<NestedTemplatePart> nested = new ArrayList<>();
+    for (Part p : parts) {
+      if (p instanceof NestedTemplatePart ntp) {
+        ntp.setSlot(nested.size());
+        nested.add(ntp);
+      }
+    }
+    return List.copyOf(nested);
+  }
+
+  private static Map<String, IntList> getVarIndices(List<Part> parts) {
+    Map<String, IntList> indices = new LinkedHashMap<>();
+    for (int i = 0; i < parts.size(); ++i) {
+      if (parts.get(i) instanceof VariablePart vp) {
+        indices.computeIfAbsent(vp.name(), k -> new IntArrayList()).add(i);
+      }
+    }
+    indices.entrySet().forEach(e -> e.setValue(IntList.copyOf(e.getValue())));
+    return Collections.unmodifiableMap(indices);
+  }
+
+  private static Map<String, Integer> getVarOrdinals(List<String> varNames) {
+    Map<String, Integer> ordinals = HashMap.newHashMap(varNames.size());
+    for (String name : varNames) {
+      ordinals.put(name, ordinals.size());
+    }
+    return ordinals;
+  }
+
+  private static Map<String, Integer> getTmplSlots(List<NestedTemplatePart> nested) {
+    Map<String, Integer> slots = new LinkedHashMap<>();
+    for (NestedTemplatePart ntp : nested) {
+      slots.put(ntp.name(), ntp.slot());
+    }
+    return Collections.unmodifiableMap(slots);
+  }
+
+  private static List<String> getNames(List<Part> parts) {
+    return parts.stream()
+          .filter(NamedPart.class::isInstance)
+          .map(NamedPart.class::cast)
+          .map(NamedPart::name)
+          .collect(toUnmodifiableList());
+  }
+
+  private static IntList getTextIndices(List<Part> parts) {
+    IntArrayList indices = new IntArrayList();
+    for (int i = 0; i < parts.size(); ++i) {
+      if (parts.get(i).getClass() == TextPart.class) {
+        indices.add(i);
+      }
+    }
+    return IntList.copyOf(indices);
+  }
+
+}
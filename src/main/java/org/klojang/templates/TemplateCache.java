@@ -1,69 +1,552 @@
 package org.klojang.templates;
 
 import org.klojang.check.Check;
-import org.klojang.collections.WiredList;
+import org.klojang.templates.x.ClassPathResolver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 import static org.klojang.check.CommonChecks.gte;
+import static org.klojang.templates.ParseErrorCode.CIRCULAR_INCLUDE;
+import static org.klojang.templates.Setting.HOT_RELOAD;
+import static org.klojang.templates.Setting.TMPL_CACHE_HEAP_SIZE;
 import static org.klojang.templates.Setting.TMPL_CACHE_SIZE;
+import static org.klojang.templates.Setting.TMPL_STORE;
 import static org.klojang.templates.Template.ROOT_TEMPLATE_NAME;
 
-final class TemplateCache {
+/*
+ * The cache of templates created from files, classpath resources and custom path
+ * resolvers. The cache is safe for use by multiple threads. If several threads
+ * request the same template at the same time, only one of them parses it, while the
+ * others wait for the result ("single flight"). Parsing a template may in turn
+ * cause the templates it includes to be requested from the cache. The parser
+ * requests them as soon as it encounters them, and they are then parsed in parallel
+ * on the include executor, while the parser moves on. Once the parser needs an
+ * included template, it waits for it, or it parses the template itself if no thread
+ * has started parsing it yet. Thus, a thread never waits for a template that is
+ * still waiting for a thread, even if the executor has few threads. A cycle in the
+ * include graph would make the threads parsing the templates in the cycle wait for
+ * each other. The parser detects a cycle within the chain of including templates it
+ * parses for, and the cache detects a cycle that closes across chains parsed
+ * concurrently, by following the entries the waiting threads are waiting for. In
+ * both cases a ParseException is thrown. If the cache is bounded by the number of
+ * templates and/or their approximate heap size, the templates to evict are chosen by
+ * a CachePolicy. If hot reloading is enabled, a TemplateWatcher evicts and re-parses
+ * templates whose file has changed. If a TemplateStore is configured, it serves as a
+ * second-level store: templates found in it, with unchanged source code, are decoded
+ * rather than parsed. Templates loaded from the classpath are also looked up in the
+ * template stores on the classpath of their class loader (see Precompiler). The
+ * cache keeps statistics, which are exposed as a platform MBean.
+ */
+final class TemplateCache implements TemplateCacheMXBean {
 
     private static final Logger LOG = LoggerFactory.getLogger(TemplateCache.class);
 
     public static final TemplateCache INSTANCE = new TemplateCache();
 
-    private final HashMap<TemplateLocation, Template> cache;
-    private final WiredList<TemplateLocation> entries;
+    static final String OBJECT_NAME = "org.klojang.templates:type=TemplateCache";
+
+    static {
+        try {
+            ManagementFactory.getPlatformMBeanServer()
+                    .registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+        } catch (JMException | RuntimeException e) {
+            LOG.warn("Could not register {}: {}", OBJECT_NAME, e.toString());
+        }
+    }
+
+    /*
+     * A cache entry: a template that has been parsed, that is being parsed by the
+     * owner thread, or that is yet to be parsed. Included templates that are not
+     * cached get a flight too, so that they can be parsed in parallel as well.
+     */
+    static final class Flight {
+
+        final TemplateLocation location;
+        final String name;
+        // The flight of the template that first requested this one, or null if the
+        // template was not requested by an including template
+        final Flight includer;
+
+        final CompletableFuture<Template> result = new CompletableFuture<>();
+        final AtomicReference<Thread> owner = new AtomicReference<>();
+        // The flight that the owner is waiting for
+        volatile Flight waitingFor;
+
+        Flight(TemplateLocation location, String name, Flight includer) {
+            this.location = location;
+            this.name = name;
+            this.includer = includer;
+        }
+
+        // Makes the current thread the owner, unless another thread beat it to it
+        boolean claim() {
+            return owner.compareAndSet(null, Thread.currentThread());
+        }
+
+        /*
+         * Returns the paths of the templates in the cycle (e.g. "a.html -> b.html ->
+         * a.html") if the template at the specified location is this flight's
+         * template or one of the templates including it, else null.
+         */
+        String getCycle(TemplateLocation loc) {
+            for (Flight f = this; f != null; f = f.includer) {
+                if (f.location.equals(loc)) {
+                    LinkedList<String> cycle = new LinkedList<>(List.of(loc.path()));
+                    for (Flight g = this; g != f; g = g.includer) {
+                        cycle.addFirst(g.location.path());
+                    }
+                    cycle.addFirst(loc.path());
+                    return String.join(" -> ", cycle);
+                }
+            }
+            return null;
+        }
+
+    }
+
+    private final ConcurrentHashMap<TemplateLocation, Flight> cache;
+    // Only used if the cache is bounded. Also serves as the lock for evictions.
+    private final CachePolicy policy;
     private final int maxSize;
 
+    private volatile TemplateWatcher watcher;
+    private volatile TemplateStore store;
+    // The template stores found on the classpath, per class loader
+    private final ConcurrentHashMap<ClassLoader, List<TemplateStore>> classpathStores =
+            new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder parseCount = new LongAdder();
+    private final LongAdder storeHits = new LongAdder();
+    private final LongAdder parseTime = new LongAdder();
+    private final LongAccumulator maxParseTime = new LongAccumulator(Math::max, 0);
+
+    private volatile Executor includeExecutor = ForkJoinPool.commonPool();
+
     private TemplateCache() {
-        maxSize = TMPL_CACHE_SIZE.getInt();
+        this(TMPL_CACHE_SIZE.getInt(), TMPL_CACHE_HEAP_SIZE.getInt());
+        String file = TMPL_STORE.get();
+        if (file != null) {
+            try {
+                store = TemplateStore.open(Path.of(file));
+                LOG.trace("Template store: {} ({} templates)", file, store.size());
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Template store disabled: {}", e.toString());
+            }
+        }
+    }
+
+    TemplateCache(int maxSize, int maxHeapSize) {
         String s = maxSize == 0
                 ? " (caching disabled)"
                 : maxSize == -1 ? " (unlimited)" : "";
         LOG.trace("Template cache size: {}{}", maxSize, s);
         Check.that(maxSize, TMPL_CACHE_SIZE.property()).is(gte(), -1);
+        Check.that(maxHeapSize, TMPL_CACHE_HEAP_SIZE.property()).is(gte(), -1);
+        if (maxHeapSize == 0) {
+            maxSize = 0;
+        } else if (maxHeapSize != -1) {
+            LOG.trace("Template cache heap size: {} bytes", maxHeapSize);
+        }
+        this.maxSize = maxSize;
         if (maxSize == 0) {
             cache = null;
-            entries = null;
-        } else if (maxSize == -1) {
-            cache = HashMap.newHashMap(32);
-            entries = null;
+            policy = null;
+        } else if (maxSize == -1 && maxHeapSize == -1) {
+            cache = new ConcurrentHashMap<>(32);
+            policy = null;
         } else {
-            cache = HashMap.newHashMap(maxSize);
-            entries = new WiredList<>();
+            cache = new ConcurrentHashMap<>(maxSize == -1 ? 32 : maxSize);
+            policy = new CachePolicy(maxSize, maxHeapSize);
+        }
+        if (maxSize != 0 && HOT_RELOAD.getBoolean()) {
+            enableHotReload();
+        }
+    }
+
+    /*
+     * Starts watching the files from which templates are loaded from now on. Only
+     * templates loaded via a FilePathResolver are watched.
+     */
+    synchronized void enableHotReload() {
+        if (watcher == null && cache != null) {
+            try {
+                watcher = new TemplateWatcher(this);
+            } catch (IOException e) {
+                LOG.warn("Hot reloading disabled: {}", e.toString());
+            }
+        }
+    }
+
+    // Stops watching the files from which the templates were loaded
+    synchronized void disableHotReload() {
+        if (watcher != null) {
+            watcher.close();
+            watcher = null;
+        }
+    }
+
+    // Removes the specified template from the cache. Returns whether it was cached.
+    boolean invalidate(TemplateLocation location) {
+        if (policy == null) {
+            return cache.remove(location) != null;
+        }
+        synchronized (policy) {
+            policy.onRemove(location);
+            return cache.remove(location) != null;
         }
     }
 
+    // Whether the specified template is in the cache, or being loaded into it
+    boolean contains(TemplateLocation location) {
+        return cache != null && cache.containsKey(location);
+    }
+
     Template get(TemplateLocation location, String name) throws ParseException {
-        if (maxSize == 0 || location.isString()) {
+        if (location.isString()) {
             logTemplateRetrieval(location, name);
             return new Parser(location, name).parse();
         }
+        return await(request(location, name, null), null);
+    }
+
+    /*
+     * Requests the specified template. If the template is requested by an including
+     * template (i.e. includer is not null), the template is parsed in the background
+     * on the include executor, if set. Otherwise the template is parsed by the first
+     * thread to await the returned flight.
+     */
+    Flight request(TemplateLocation location, String name, Flight includer) {
+        if (maxSize == 0) {
+            misses.increment();
+            return schedule(new Flight(location, name, includer));
+        }
         logCacheSearch(location, name);
-        Template tmpl = cache.get(location);
-        if (tmpl == null) {
-            LOG.trace("--> not found");
-            logTemplateRetrieval(location, name);
-            tmpl = new Parser(location, name).parse();
-            if (maxSize != -1 && entries.size() >= maxSize) {
-                TemplateLocation eldest = entries.removeLast();
-                LOG.trace("Cache overflow. Evicting {}", eldest.path());
-                cache.remove(eldest);
-                entries.add(location);
-            }
-            cache.put(location, tmpl);
-        } else {
+        Flight flight = cache.get(location);
+        if (flight == null) {
+            Flight mine = new Flight(location, name, includer);
+            if ((flight = cache.putIfAbsent(location, mine)) == null) {
+                LOG.trace("--> not found");
+                misses.increment();
+                return schedule(mine);
+            }
+        }
+        if (flight.result.isDone()) {
             LOG.trace("--> found");
+            if (policy != null) {
+                synchronized (policy) {
+                    policy.onAccess(location);
+                }
+            }
+        } else if (LOG.isTraceEnabled()) {
+            Thread owner = flight.owner.get();
+            LOG.trace("--> being parsed by {}", owner == null ? "(none)" : owner.getName());
+        }
+        hits.increment();
+        return flight;
+    }
+
+    private Flight schedule(Flight flight) {
+        Executor executor = includeExecutor;
+        if (flight.includer != null && executor != null) {
+            try {
+                executor.execute(() -> {
+                    if (flight.claim()) {
+                        try {
+                            load(flight);
+                        } catch (ParseException | RuntimeException e) {
+                            // Rethrown by the threads awaiting the flight
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Then the first thread to await the flight parses the template
+            }
+        }
+        return flight;
+    }
+
+    /*
+     * Returns the template of the specified flight, parsing it if no thread has
+     * claimed it yet. The waiter is the flight of the template on whose behalf the
+     * current thread waits, or null if it does not wait on behalf of a template.
+     */
+    Template await(Flight flight, Flight waiter) throws ParseException {
+        if (flight.claim()) {
+            return load(flight);
+        }
+        if (waiter != null && !flight.result.isDone()) {
+            waiter.waitingFor = flight;
+            List<Flight> cycle = getCycle(waiter);
+            if (cycle != null) {
+                waiter.waitingFor = null;
+                throw CIRCULAR_INCLUDE.getTracelessException(paths(cycle));
+            }
+        }
+        try {
+            return flight.result.join();
+        } catch (CompletionException e) {
+            // The owner thread already logged and threw the original exception
+            switch (e.getCause()) {
+                case ParseException pe -> throw pe;
+                case RuntimeException re -> throw re;
+                case Error err -> throw err;
+                default -> throw e;
+            }
+        } finally {
+            if (waiter != null) {
+                waiter.waitingFor = null;
+            }
+        }
+    }
+
+    private Template load(Flight flight) throws ParseException {
+        TemplateLocation location = flight.location;
+        logTemplateRetrieval(location, flight.name);
+        Template tmpl;
+        try {
+            tmpl = parse(flight);
+        } catch (ParseException | RuntimeException | Error e) {
+            if (cache != null) {
+                cache.remove(location, flight);
+            }
+            flight.result.completeExceptionally(e);
+            throw e;
+        }
+        if (cache == null) {
+            flight.result.complete(tmpl);
+            return tmpl;
+        }
+        // Start watching before anyone gets to see the template, so that changes made
+        // right after retrieving it, or a template including it, are not missed
+        TemplateWatcher w = watcher;
+        try {
+            if (w != null && TemplateWatcher.isWatchable(location)) {
+                w.watch(location, flight.name, tmpl);
+            }
+        } finally {
+            flight.result.complete(tmpl);
+        }
+        if (policy != null) {
+            evict(flight, CachePolicy.weigh(tmpl));
         }
         return tmpl;
     }
 
+    /*
+     * Adds a newly loaded template to the policy and evicts the templates the policy
+     * chooses to evict. The policy only tracks templates whose flight is in the map,
+     * and both are only changed together, under the policy's lock. Thus, a template
+     * invalidated while it was being parsed does not enter the policy, and eviction
+     * never removes a flight that the policy does not know about, e.g. a new flight
+     * for a template that was invalidated.
+     */
+    private void evict(Flight flight, long weight) {
+        TemplateWatcher w = watcher;
+        synchronized (policy) {
+            if (cache.get(flight.location) != flight) {
+                return;
+            }
+            for (TemplateLocation loc : policy.onInsert(flight.location, weight)) {
+                Flight evicted = loc.equals(flight.location) ? flight : cache.get(loc);
+                if (evicted != null && cache.remove(loc, evicted)) {
+                    LOG.trace("Cache overflow. Evicting {}", loc.path());
+                    evictions.increment();
+                    if (w != null && TemplateWatcher.isWatchable(loc)) {
+                        w.unwatch(loc);
+                    }
+                }
+            }
+        }
+    }
+
+    private Template parse(Flight flight) throws ParseException {
+        String src = flight.location.read();
+        Template tmpl = loadFromStore(flight, src);
+        if (tmpl != null) {
+            LOG.trace("--> loaded from template store");
+            storeHits.increment();
+            return tmpl;
+        }
+        long start = System.nanoTime();
+        try {
+            return new Parser(src, flight).parse();
+        } finally {
+            long time = System.nanoTime() - start;
+            parseCount.increment();
+            parseTime.add(time);
+            maxParseTime.accumulate(time);
+        }
+    }
+
+    private Template loadFromStore(Flight flight, String src) throws ParseException {
+        TemplateStore ts = store;
+        Template tmpl = ts == null ? null : ts.get(flight, src);
+        if (tmpl == null
+                && flight.location.resolver() instanceof ClassPathResolver cpr
+                && cpr.getClassLoader() != null) {
+            for (TemplateStore cs : getClasspathStores(cpr.getClassLoader())) {
+                if ((tmpl = cs.get(flight, src)) != null) {
+                    break;
+                }
+            }
+        }
+        return tmpl;
+    }
+
+    // Returns the template stores that the specified class loader can find
+    List<TemplateStore> getClasspathStores(ClassLoader loader) {
+        return classpathStores.computeIfAbsent(loader, k -> {
+            List<TemplateStore> stores = new ArrayList<>(1);
+            try {
+                for (URL url : Collections.list(k.getResources(
+                        TemplateStore.CLASSPATH_STORE))) {
+                    try {
+                        stores.add(TemplateStore.open(url));
+                        LOG.trace("Template store: {}", url);
+                    } catch (IOException e) {
+                        LOG.warn("Ignoring template store {}: {}", url, e.toString());
+                    }
+                }
+            } catch (IOException e) {
+                LOG.warn("Cannot search classpath for template stores: {}", e.toString());
+            }
+            return List.copyOf(stores);
+        });
+    }
+
+    // The hot-reload watcher, or null if hot reloading is not enabled
+    TemplateWatcher watcher() {
+        return watcher;
+    }
+
+    // The number of templates in the cache
+    int size() {
+        return cache == null ? 0 : cache.size();
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getParseCount() {
+        return parseCount.sum();
+    }
+
+    @Override
+    public long getStoreHits() {
+        return storeHits.sum();
+    }
+
+    @Override
+    public double getTotalParseTimeMillis() {
+        return parseTime.sum() / 1e6;
+    }
+
+    @Override
+    public double getMaxParseTimeMillis() {
+        return maxParseTime.get() / 1e6;
+    }
+
+    @Override
+    public int getSize() {
+        return size();
+    }
+
+    @Override
+    public long getRetainedSize() {
+        if (cache == null) {
+            return 0;
+        }
+        long size = 0;
+        for (Flight flight : cache.values()) {
+            if (flight.result.state() == Future.State.SUCCESS) {
+                size += CachePolicy.weigh(flight.result.resultNow());
+            }
+        }
+        return size;
+    }
+
+    // Sets the second-level store, or null to always parse templates
+    void setStore(TemplateStore store) {
+        this.store = store;
+    }
+
+    /*
+     * Sets the executor on which included templates are parsed, or null to parse them
+     * on the thread parsing the template that includes them.
+     */
+    void setIncludeExecutor(Executor executor) {
+        includeExecutor = executor;
+    }
+
+    /*
+     * Returns the flights that (indirectly) wait for the specified flight, while the
+     * specified flight waits for them, or null if there is no such cycle. A flight only
+     * waits for the flight of a template it includes, so these are the templates in a
+     * cycle in the include graph. Waits are registered before looking for a cycle, so
+     * of the threads closing a cycle at the same time, at least one will find it.
+     */
+    private static List<Flight> getCycle(Flight waiter) {
+        List<Flight> cycle = new ArrayList<>();
+        Set<Flight> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Flight f = waiter; seen.add(f); ) {
+            cycle.add(f);
+            if ((f = f.waitingFor) == null) {
+                return null;
+            } else if (f == waiter) {
+                cycle.add(waiter);
+                return cycle;
+            }
+        }
+        return null;
+    }
+
+    // Returns the locations of the flights as "a.html -> b.html -> a.html"
+    private static String paths(List<Flight> flights) {
+        return flights.stream()
+                .map(f -> f.location.path())
+                .collect(Collectors.joining(" -> "));
+    }
+
     private static void logTemplateRetrieval(TemplateLocation location, String name) {
         if (LOG.isTraceEnabled()) {
             if (name == ROOT_TEMPLATE_NAME) {
@@ -0,0 +1,91 @@
+package org.klojang.templates;
+
+/**
+ * Provides statistics about the internally maintained cache of {@link Template}
+ * instances created from files, classpath resources and {@link PathResolver path
+ * resolvers}. The statistics are available through
+ * {@link Template#cacheStatistics()}, and they are also registered with the
+ * platform MBean server under the name
+ * {@code org.klojang.templates:type=TemplateCache}. They can help you to choose a
+ * suitable value for {@link Setting#TMPL_CACHE_SIZE} and
+ * {@link Setting#TMPL_CACHE_HEAP_SIZE}, and to detect "parse storms", for example
+ * right after a deployment. Templates created from strings are never cached and they
+ * are not included in the statistics.
+ *
+ * @author Ayco Holleman
+ */
+public interface TemplateCacheMXBean {
+
+  /**
+   * Returns the number of times a template was requested and found in the cache,
+   * or was being parsed by another thread at the time of the request.
+   *
+   * @return the number of cache hits
+   */
+  long getHits();
+
+  /**
+   * Returns the number of times a template was requested and had to be parsed. If
+   * caching is disabled, every request is a miss.
+   *
+   * @return the number of cache misses
+   */
+  long getMisses();
+
+  /**
+   * Returns the number of templates that were evicted from the cache to make room
+   * for other templates, or that were not admitted to the cache in the first place.
+   * Templates that were evicted because their file changed (see
+   * {@link Setting#HOT_RELOAD}) are not counted.
+   *
+   * @return the number of evictions
+   */
+  long getEvictions();
+
+  /**
+   * Returns the number of times a template file (or resource) was parsed.
+   *
+   * @return the number of times a template file was parsed
+   */
+  long getParseCount();
+
+  /**
+   * Returns the number of templates that were loaded from the
+   * {@link Setting#TMPL_STORE template store} rather than parsed.
+   *
+   * @return the number of templates loaded from the template store
+   */
+  long getStoreHits();
+
+  /**
+   * Returns the total time spent parsing templates, in milliseconds. Since parsing
+   * a template includes parsing the templates it includes, the time spent parsing an
+   * included template may be counted more than once.
+   *
+   * @return the total time spent parsing templates
+   */
+  double getTotalParseTimeMillis();
+
+  /**
+   * Returns the longest time it took to parse a single template, in milliseconds.
+   *
+   * @return the longest time it took to parse a single template
+   */
+  double getMaxParseTimeMillis();
+
+  /**
+   * Returns the number of templates currently in the cache.
+   *
+   * @return the number of templates currently in the cache
+   */
+  int getSize();
+
+  /**
+   * Returns the approximate number of bytes taken up by the templates currently in
+   * the cache. See {@link Setting#TMPL_CACHE_HEAP_SIZE}.
+   *
+   * @return the approximate number of bytes taken up by the cached templates
+   */
+  long getRetainedSize();
+
+}
@@ -0,0 +1,408 @@
+package org.klojang.templates;
+
+import org.klojang.check.Check;
+import org.klojang.templates.x.ClassPathResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.READ;
+import static org.klojang.templates.ParseErrorCode.CIRCULAR_INCLUDE;
+import static org.klojang.templates.ParseErrorCode.INVALID_INCLUDE_PATH;
+
+/**
+ * A file containing parsed templates in a compact binary format. A template store
+ * lets you skip parsing at application startup: the template cache looks up the
+ * templates it needs to load in the store specified by {@link Setting#TMPL_STORE}
+ * before falling back to parsing them. The store is memory-mapped, and a template
+ * is only decoded when it is requested. Each template is stored together with a
+ * hash of its source code. If the source code has changed since the store was
+ * written, the template is parsed as usual. Templates included by a stored template
+ * are stored separately, and they are looked up by the cache (and checked for
+ * changes) independently of the templates including them. Templates created from a
+ * string cannot be stored.
+ *
+ * <p>The stored templates are keyed on the path used to load them. For templates
+ * loaded via {@link Template#fromResource(Class, String) Template.fromResource()},
+ * this is the absolute resource name (e.g. {@code /views/employee.html}). Template
+ * stores found on the classpath under the name {@value #CLASSPATH_STORE} are picked
+ * up automatically for templates loaded via {@code fromResource()}. See
+ * {@link Precompiler}.
+ *
+ * @author Ayco Holleman
+ */
+public final class TemplateStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TemplateStore.class);
+
+  /**
+   * The resource name under which template stores are looked up on the classpath.
+   */
+  public static final String CLASSPATH_STORE = "META-INF/klojang/templates.kjt";
+
+  private static final int MAGIC = 0x4B4A5453; // "KJTS"
+  private static final int VERSION = 1;
+  private static final int HASH_SIZE = 32;
+
+  // The types of parts
+  private static final byte TEXT = 0;
+  private static final byte VARIABLE = 1;
+  private static final byte INLINE = 2;
+  private static final byte INCLUDE = 3;
+
+  /**
+   * Writes the specified templates, and the templates they (directly or indirectly)
+   * include, to the specified file. The file is overwritten if it already exists.
+   * The source code of the templates is read again in order to compute their hash.
+   * Templates created from a string are skipped.
+   *
+   * @param file the file to write the templates to
+   * @param templates the templates to write
+   * @return the number of templates written
+   * @throws IOException if an error occurs while writing the file
+   * @throws ParseException if the source code of a template cannot be read
+   */
+  public static int write(Path file, Collection<Template> templates)
+        throws IOException, ParseException {
+    Check.notNull(file, "file");
+    Check.notNull(templates, "templates");
+    Map<String, TemplateBody> entries = new LinkedHashMap<>();
+    for (Template t : templates) {
+      collect(t.body(), entries);
+    }
+    List<String> paths = new ArrayList<>(entries.size());
+    List<byte[]> hashes = new ArrayList<>(entries.size());
+    ByteArrayOutputStream bodies = new ByteArrayOutputStream(entries.size() * 1024);
+    DataOutputStream out = new DataOutputStream(bodies);
+    int[] offsets = new int[entries.size()];
+    int i = 0;
+    for (Map.Entry<String, TemplateBody> e : entries.entrySet()) {
+      TemplateBody t = e.getValue();
+      paths.add(e.getKey());
+      hashes.add(hash(t.location().read()));
+      offsets[i++] = out.size();
+      writeEntry(out, t);
+    }
+    try (OutputStream os = Files.newOutputStream(file)) {
+      DataOutputStream header = new DataOutputStream(os);
+      header.writeInt(MAGIC);
+      header.writeInt(VERSION);
+      header.writeInt(paths.size());
+      for (i = 0; i < paths.size(); ++i) {
+        writeString(header, paths.get(i));
+        header.write(hashes.get(i));
+        header.writeInt(offsets[i]);
+      }
+      bodies.writeTo(header);
+      header.flush();
+    }
+    LOG.debug("Wrote {} template(s) to {}", paths.size(), file);
+    return paths.size();
+  }
+
+  // Collects the template and the templates it includes, keyed on their path
+  private static void collect(TemplateBody t, Map<String, TemplateBody> entries) {
+    String key = key(t.location());
+    if (key != null && entries.putIfAbsent(key, t) == null) {
+      collectIncluded(t, entries);
+    }
+  }
+
+  private static void collectIncluded(TemplateBody t,
+        Map<String, TemplateBody> entries) {
+    for (Part part : t.parts()) {
+      if (part instanceof IncludedTemplatePart itp) {
+        collect(itp.body(), entries);
+      } else if (part instanceof InlineTemplatePart itp) {
+        collectIncluded(itp.body(), entries);
+      }
+    }
+  }
+
+  /*
+   * An entry consists of the included templates (so they can be requested before
+   * the tree is decoded), followed by the part tree. Included templates are
+   * referred to by their index in the list of included templates.
+   */
+  private static void writeEntry(DataOutputStream out, TemplateBody t)
+        throws IOException {
+    List<IncludedTemplatePart> includes = new ArrayList<>();
+    ByteArrayOutputStream tree = new ByteArrayOutputStream(256);
+    writeParts(new DataOutputStream(tree), t, includes);
+    out.writeInt(includes.size());
+    for (IncludedTemplatePart itp : includes) {
+      writeString(out, itp.name());
+      writeString(out, itp.body().location().path());
+      out.writeInt(itp.start());
+    }
+    tree.writeTo(out);
+  }
+
+  private static void writeParts(DataOutputStream out,
+        TemplateBody t,
+        List<IncludedTemplatePart> includes) throws IOException {
+    out.writeInt(t.parts().size());
+    for (Part part : t.parts()) {
+      switch (part) {
+        case TextPart tp -> {
+          out.writeByte(TEXT);
+          out.writeInt(tp.start());
+          writeString(out, tp.text());
+        }
+        case VariablePart vp -> {
+          out.writeByte(VARIABLE);
+          out.writeInt(vp.start());
+          writeString(out, vp.varGroup().map(VarGroup::getName).orElse(null));
+          writeString(out, vp.name());
+          writeString(out, vp.placeholder());
+        }
+        case InlineTemplatePart itp -> {
+          out.writeByte(INLINE);
+          out.writeInt(itp.start());
+          out.writeBoolean(itp.isStartTagOnSeparateLine());
+          out.writeBoolean(itp.isEndTagOnSeparateLine());
+          writeString(out, itp.name());
+          writeParts(out, itp.body(), includes);
+        }
+        case IncludedTemplatePart itp -> {
+          out.writeByte(INCLUDE);
+          out.writeBoolean(itp.isTagOnSeparateLine());
+          out.writeInt(includes.size());
+          includes.add(itp);
+        }
+        default -> throw new AssertionError(part);
+      }
+    }
+  }
+
+  // Strings are written as their UTF-8 length (-1 for null), followed by the UTF-8
+  // bytes. Unlike DataOutput.writeUTF(), this does not limit the length of the text.
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    if (s == null) {
+      out.writeInt(-1);
+    } else {
+      byte[] b = s.getBytes(UTF_8);
+      out.writeInt(b.length);
+      out.write(b);
+    }
+  }
+
+  // Returns the key under which the template at the specified location is stored
+  private static String key(TemplateLocation location) {
+    if (location.path() != null
+          && location.resolver() instanceof ClassPathResolver cpr) {
+      return cpr.getAbsolutePath(location.path());
+    }
+    return location.path();
+  }
+
+  static byte[] hash(String src) {
+    try {
+      return MessageDigest.getInstance("SHA-256").digest(src.getBytes(UTF_8));
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /*
+   * Memory-maps the specified file and reads its index. The templates themselves are
+   * only decoded when requested.
+   */
+  static TemplateStore open(Path file) throws IOException {
+    ByteBuffer buf;
+    try (FileChannel ch = FileChannel.open(file, READ)) {
+      if (ch.size() > Integer.MAX_VALUE) {
+        throw new IOException("Template store too large: " + file);
+      }
+      buf = ch.map(READ_ONLY, 0, ch.size());
+    }
+    return new TemplateStore(file.toString(), buf);
+  }
+
+  /*
+   * Opens the template store at the specified URL. The store is memory-mapped if it
+   * is a file, and otherwise read into memory (e.g. if it resides in a jar file).
+   */
+  static TemplateStore open(URL url) throws IOException {
+    if (url.getProtocol().equals("file")) {
+      try {
+        return open(Path.of(url.toURI()));
+      } catch (URISyntaxException e) {
+        throw new IOException(e);
+      }
+    }
+    try (InputStream in = url.openStream()) {
+      return new TemplateStore(url.toString(), ByteBuffer.wrap(in.readAllBytes()));
+    }
+  }
+
+  // An entry in the index: the hash of the source and the offset of the template
+  private record Entry(byte[] hash, int offset) {}
+
+  private final String name;
+  private final ByteBuffer buf;
+  private final Map<String, Entry> index;
+
+  private TemplateStore(String name, ByteBuffer buf) throws IOException {
+    this.name = name;
+    this.buf = buf;
+    try {
+      if (buf.getInt(0) != MAGIC) {
+        throw new IOException("Not a template store: " + name);
+      }
+      if (buf.getInt(4) != VERSION) {
+        throw new IOException("Unsupported template store version: " + buf.getInt(4));
+      }
+      ByteBuffer bb = buf.duplicate().position(8);
+      int count = bb.getInt();
+      Map<String, Entry> index = HashMap.newHashMap(count);
+      for (int i = 0; i < count; ++i) {
+        String path = readString(bb);
+        byte[] hash = new byte[HASH_SIZE];
+        bb.get(hash);
+        index.put(path, new Entry(hash, bb.getInt()));
+      }
+      int bodyStart = bb.position();
+      index.replaceAll((path, e) -> new Entry(e.hash, bodyStart + e.offset));
+      this.index = index;
+    } catch (RuntimeException e) {
+      throw new IOException("Corrupt template store: " + name, e);
+    }
+  }
+
+  /**
+   * Returns the number of templates in this store.
+   *
+   * @return the number of templates in this store
+   */
+  public int size() {
+    return index.size();
+  }
+
+  /*
+   * Returns the stored template for the specified flight, or null if the store does
+   * not contain the template, or if its source has changed since it was stored.
+   * Included templates are requested from the template cache.
+   */
+  Template get(TemplateCache.Flight flight, String src) throws ParseException {
+    Entry entry = index.get(key(flight.location));
+    if (entry == null) {
+      return null;
+    }
+    if (!Arrays.equals(entry.hash, hash(src))) {
+      LOG.debug("Stale entry in template store {}: {}", name, flight.location);
+      return null;
+    }
+    ByteBuffer bb = buf.duplicate().position(entry.offset);
+    Decoder decoder = new Decoder(bb, flight, bb.getInt());
+    for (int i = 0; i < decoder.includes.length; ++i) {
+      decoder.names[i] = readString(bb);
+      TemplateLocation loc = new TemplateLocation(readString(bb),
+            flight.location.resolver());
+      decoder.starts[i] = bb.getInt();
+      // The store may have been created with a different PathResolver, or the
+      // included template may have been removed since
+      if (!loc.isValid()) {
+        throw INVALID_INCLUDE_PATH.getException(src, decoder.starts[i], loc.path());
+      }
+      String cycle = flight.getCycle(loc);
+      if (cycle != null) {
+        throw CIRCULAR_INCLUDE.getException(src, decoder.starts[i], cycle);
+      }
+      decoder.includes[i] = TemplateCache.INSTANCE.request(loc,
+            decoder.names[i],
+            flight);
+    }
+    return new Template(flight.name, flight.location, decoder.readParts());
+  }
+
+  private static final class Decoder {
+
+    final ByteBuffer bb;
+    final TemplateCache.Flight flight;
+    // The included templates, their names, and the position of their include tag
+    final TemplateCache.Flight[] includes;
+    final String[] names;
+    final int[] starts;
+
+    Decoder(ByteBuffer bb, TemplateCache.Flight flight, int includeCount) {
+      this.bb = bb;
+      this.flight = flight;
+      this.includes = new TemplateCache.Flight[includeCount];
+      this.names = new String[includeCount];
+      this.starts = new int[includeCount];
+    }
+
+    List<Part> readParts() throws ParseException {
+      int size = bb.getInt();
+      List<Part> parts = new ArrayList<>(size);
+      for (int i = 0; i < size; ++i) {
+        byte type = bb.get();
+        switch (type) {
+          case TEXT -> {
+            int start = bb.getInt();
+            parts.add(new TextPart(readString(bb), start));
+          }
+          case VARIABLE -> parts.add(new VariablePart(bb.getInt(),
+                readString(bb),
+                readString(bb),
+                readString(bb)));
+          case INLINE -> {
+            int start = bb.getInt();
+            boolean sep0 = bb.get() != 0;
+            boolean sep1 = bb.get() != 0;
+            String name = readString(bb);
+            TemplateLocation loc = new TemplateLocation(flight.location.resolver());
+            TemplateBody body = new TemplateBody(loc, readParts());
+            parts.add(new InlineTemplatePart(start, name, body, sep0, sep1));
+          }
+          case INCLUDE -> {
+            boolean sep = bb.get() != 0;
+            int idx = bb.getInt();
+            Template cached = TemplateCache.INSTANCE.await(includes[idx], flight);
+            parts.add(new IncludedTemplatePart(starts[idx],
+                  names[idx],
+                  cached.body(),
+                  sep));
+          }
+          default -> throw new IllegalStateException("Invalid part type: " + type);
+        }
+      }
+      return List.copyOf(parts);
+    }
+
+  }
+
+  private static String readString(ByteBuffer bb) {
+    int len = bb.getInt();
+    if (len == -1) {
+      return null;
+    }
+    byte[] b = new byte[len];
+    bb.get(b);
+    return new String(b, UTF_8);
+  }
+
+}
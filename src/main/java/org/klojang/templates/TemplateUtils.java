@@ -107,7 +107,7 @@ public final class TemplateUtils {
       if (part instanceof VariablePart vp) {
         list.add(vp.toOccurrence());
       } else if (part instanceof NestedTemplatePart ntp) {
-        collectOccurrences(ntp.getTemplate(), list);
+        collectOccurrences(template.nested(ntp), list);
       }
     }
   }
@@ -0,0 +1,236 @@
+package org.klojang.templates;
+
+import org.klojang.templates.x.FilePathResolver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/*
+ * Watches the files from which the templates in the TemplateCache were created. When
+ * a file changes, the templates created from it are evicted from the cache, together
+ * with the templates that (directly or indirectly) include them, and then parsed
+ * again on the watcher thread. Requests for these templates arriving in the
+ * meantime simply parse them as usual. Only templates resolved through a
+ * FilePathResolver are watched. The watcher keeps a reverse dependency graph that
+ * maps each template to the templates that include it. The graph is built from the
+ * IncludedTemplateParts of the templates as they are loaded into the cache, and the
+ * edges of a template are replaced when it is parsed again. When a template is
+ * evicted from the cache, its edges are removed, and its file is no longer watched,
+ * unless a template still in the cache includes it. Only the templates that are
+ * still in the cache are parsed again when their file changes. The graph is guarded
+ * by the watcher's monitor.
+ */
+final class TemplateWatcher {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TemplateWatcher.class);
+
+  // Editors tend to produce several events for a single save. We wait until things
+  // have been quiet for this many milliseconds before reloading.
+  private static final long QUIET_PERIOD = 50;
+
+  static boolean isWatchable(TemplateLocation location) {
+    return !location.isString() && location.resolver() instanceof FilePathResolver;
+  }
+
+  private final TemplateCache cache;
+  private final WatchService service;
+
+  private final Set<Path> dirs = ConcurrentHashMap.newKeySet();
+  // Maps the watched files to the templates created from them
+  private final Map<Path, Set<TemplateLocation>> files = new HashMap<>();
+  // The names under which the templates were first requested
+  private final Map<TemplateLocation, String> names = new HashMap<>();
+  // Maps templates to the templates they include
+  private final Map<TemplateLocation, Set<TemplateLocation>> includes = new HashMap<>();
+  // Maps templates to the templates that include them
+  private final Map<TemplateLocation, Set<TemplateLocation>> includers = new HashMap<>();
+
+  TemplateWatcher(TemplateCache cache) throws IOException {
+    this.cache = cache;
+    this.service = FileSystems.getDefault().newWatchService();
+    Thread thread = new Thread(this::run, "klojang-template-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void watch(TemplateLocation location, String name, Template template) {
+    Path file = file(location);
+    synchronized (this) {
+      files.computeIfAbsent(file, k -> new HashSet<>()).add(location);
+      names.putIfAbsent(location, name);
+      // The template may have been parsed before, including other templates
+      removeIncludes(location);
+      Set<TemplateLocation> included = new HashSet<>();
+      collectIncludes(template.body(), included);
+      for (TemplateLocation loc : included) {
+        includers.computeIfAbsent(loc, k -> new HashSet<>()).add(location);
+      }
+      if (!included.isEmpty()) {
+        includes.put(location, included);
+      }
+    }
+    Path dir = file.getParent();
+    if (dirs.add(dir)) {
+      try {
+        dir.register(service, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+        LOG.trace("Watching {}", dir);
+      } catch (IOException e) {
+        dirs.remove(dir);
+        LOG.warn("Cannot watch {}: {}", dir, e.toString());
+      }
+    }
+  }
+
+  /*
+   * Called when a template has been evicted from the cache. Its file remains watched
+   * as long as a template in the cache includes it.
+   */
+  synchronized void unwatch(TemplateLocation location) {
+    removeIncludes(location);
+    if (!includers.containsKey(location)) {
+      forget(location);
+    }
+  }
+
+  // Stops watching. The watcher thread exits once the watch service is closed.
+  void close() {
+    try {
+      service.close();
+    } catch (IOException e) {
+      LOG.warn("Error closing watch service: {}", e.toString());
+    }
+  }
+
+  // The number of templates watched
+  synchronized int size() {
+    return names.size();
+  }
+
+  private static void collectIncludes(TemplateBody template,
+        Set<TemplateLocation> included) {
+    for (Part part : template.parts()) {
+      if (part instanceof IncludedTemplatePart itp) {
+        included.add(itp.body().location());
+      } else if (part instanceof InlineTemplatePart itp) {
+        collectIncludes(itp.body(), included);
+      }
+    }
+  }
+
+  // Removes the edges from the specified template to the templates it includes. An
+  // included template that is no longer included, nor cached, is forgotten.
+  private void removeIncludes(TemplateLocation includer) {
+    Set<TemplateLocation> included = includes.remove(includer);
+    if (included != null) {
+      for (TemplateLocation loc : included) {
+        Set<TemplateLocation> set = includers.get(loc);
+        set.remove(includer);
+        if (set.isEmpty()) {
+          includers.remove(loc);
+          if (!cache.contains(loc)) {
+            unwatch(loc);
+          }
+        }
+      }
+    }
+  }
+
+  private void forget(TemplateLocation location) {
+    names.remove(location);
+    Path file = file(location);
+    Set<TemplateLocation> set = files.get(file);
+    if (set != null && set.remove(location) && set.isEmpty()) {
+      files.remove(file);
+    }
+  }
+
+  private static Path file(TemplateLocation location) {
+    return Path.of(location.path()).toAbsolutePath().normalize();
+  }
+
+  private void run() {
+    while (true) {
+      Set<Path> changed = new HashSet<>();
+      try {
+        WatchKey key = service.take();
+        do {
+          collect(key, changed);
+        } while ((key = service.poll(QUIET_PERIOD, MILLISECONDS)) != null);
+      } catch (InterruptedException | ClosedWatchServiceException e) {
+        return;
+      }
+      reload(changed);
+    }
+  }
+
+  private void collect(WatchKey key, Set<Path> changed) {
+    Path dir = (Path) key.watchable();
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        synchronized (this) {
+          changed.addAll(files.keySet());
+        }
+      } else {
+        changed.add(dir.resolve((Path) event.context()));
+      }
+    }
+    if (!key.reset()) {
+      dirs.remove(dir);
+    }
+  }
+
+  private void reload(Set<Path> changed) {
+    // The changed templates come first, followed by the templates including them
+    Set<TemplateLocation> stale = new LinkedHashSet<>();
+    Map<TemplateLocation, String> reload = new LinkedHashMap<>();
+    synchronized (this) {
+      for (Path file : changed) {
+        for (TemplateLocation location : files.getOrDefault(file, Set.of())) {
+          addStale(location, stale);
+        }
+      }
+      stale.forEach(loc -> reload.put(loc, names.get(loc)));
+    }
+    // Templates that are no longer cached, but are watched because a cached template
+    // includes them, are parsed again as part of the including template
+    reload.keySet().removeIf(loc -> !cache.invalidate(loc));
+    if (reload.isEmpty()) {
+      return;
+    }
+    LOG.debug("Reloading {}", reload.keySet());
+    for (Map.Entry<TemplateLocation, String> e : reload.entrySet()) {
+      try {
+        cache.get(e.getKey(), e.getValue());
+      } catch (ParseException | RuntimeException ex) {
+        LOG.warn("Failed to reload {}: {}", e.getKey(), ex.getMessage());
+        unwatch(e.getKey());
+      }
+    }
+  }
+
+  private void addStale(TemplateLocation location, Set<TemplateLocation> stale) {
+    if (stale.add(location)) {
+      for (TemplateLocation includer : includers.getOrDefault(location, Set.of())) {
+        addStale(includer, stale);
+      }
+    }
+  }
+
+}
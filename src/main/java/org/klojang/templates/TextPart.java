@@ -1,25 +1,101 @@
 package org.klojang.templates;
 
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
 final class TextPart extends AbstractPart {
 
-  private String text;
+  // Maps boilerplate text to the Text instance shared by all TextParts with that
+  // text, across all templates. Both the keys and the values are weakly referenced,
+  // so a Text is discarded once the templates using it are gone.
+  private static final Map<String, WeakReference<Text>> INTERNED = new WeakHashMap<>();
+
+  /*
+   * Creates a TextPart for a rendered fragment. Rendered fragments are not shared
+   * with other templates, so their text is not interned.
+   */
+  static TextPart fragment(String text) {
+    return new TextPart(new Text(text), -1);
+  }
+
+  private Text text;
 
   TextPart(String text, int start) {
+    this(intern(text), start);
+  }
+
+  private TextPart(Text text, int start) {
     super(start);
     this.text = text;
   }
 
   String text() {
-    return text;
+    return text.string;
+  }
+
+  byte[] utf8() {
+    return text.utf8;
+  }
+
+  /*
+   * Returns a new view of the read-only, direct ByteBuffer containing the UTF-8
+   * encoded text. The contents of the buffer are never copied.
+   */
+  ByteBuffer buffer() {
+    Text t = text;
+    ByteBuffer bb = t.buffer;
+    if (bb == null) {
+      bb = ByteBuffer.allocateDirect(t.utf8.length).put(t.utf8).flip().asReadOnlyBuffer();
+      t.buffer = bb;
+    }
+    return bb.duplicate();
   }
 
   void setText(String text) {
-    this.text = text;
+    this.text = intern(text);
   }
 
   @Override
   public String toString() {
-    return text;
+    return text.string;
+  }
+
+  private static Text intern(String s) {
+    synchronized (INTERNED) {
+      WeakReference<Text> ref = INTERNED.get(s);
+      Text text = ref == null ? null : ref.get();
+      if (text == null) {
+        text = new Text(s);
+        // The key must be the string held by the Text itself, so the entry stays
+        // in the map for as long as the Text is in use
+        INTERNED.put(text.string, new WeakReference<>(text));
+      }
+      return text;
+    }
+  }
+
+  private static final class Text {
+
+    final String string;
+
+    // The UTF-8 encoded text, so byte-oriented render methods don't need to encode
+    // the boilerplate text over and over again.
+    final byte[] utf8;
+
+    // A read-only, direct ByteBuffer containing the UTF-8 encoded text. Created upon
+    // first request and shared by all renderings of all templates containing the
+    // text.
+    volatile ByteBuffer buffer;
+
+    Text(String string) {
+      this.string = string;
+      this.utf8 = string.getBytes(UTF_8);
+    }
+
   }
 
 }
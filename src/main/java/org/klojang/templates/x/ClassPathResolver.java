@@ -22,6 +22,20 @@ public final class ClassPathResolver implements PathResolver {
         return clazz.getResourceAsStream(path);
     }
 
+    // Returns the absolute resource name for the specified path, as
+    // Class.getResource() would determine it
+    public String getAbsolutePath(String path) {
+        if (path.startsWith("/")) {
+            return path;
+        }
+        String pkg = clazz.getPackageName();
+        return pkg.isEmpty() ? "/" + path : "/" + pkg.replace('.', '/') + "/" + path;
+    }
+
+    public ClassLoader getClassLoader() {
+        return clazz.getClassLoader();
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj) {
@@ -24,4 +24,9 @@ public final class FilePathResolver implements PathResolver {
     return (this == obj || obj instanceof FilePathResolver);
   }
 
+  @Override
+  public int hashCode() {
+    return FilePathResolver.class.hashCode();
+  }
+
 }
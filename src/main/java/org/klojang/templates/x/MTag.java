@@ -34,4 +34,20 @@ public final class MTag {
   public static final String VALUE_GENERATOR = "value generator";
 
   public static final String NAME_MAPPER = "name mapper";
+
+  public static final String CHARSET = "charset";
+
+  public static final String CHANNEL = "channel";
+
+  public static final String CHUNK_SIZE = "chunk size";
+
+  public static final String KEY = "key";
+
+  public static final String TTL = "time-to-live";
+
+  public static final String DATA_SUPPLIER = "data supplier";
+
+  public static final String SESSION = "session";
+
+  public static final String ROWS = "rows";
 }
@@ -0,0 +1,109 @@
+package org.klojang.templates;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class FragmentCacheTest {
+
+  private static final String SRC = "<ul>~%%begin:menu%<li>~%item%</li>~%%end:menu%</ul>"
+        + "~%title%";
+
+  @Test
+  public void populateCached00() throws ParseException {
+    Template tmpl = Template.fromString(SRC);
+    FragmentCache cache = FragmentCache.getInstance();
+    long hits = cache.hits();
+    long misses = cache.misses();
+    AtomicInteger calls = new AtomicInteger();
+    List<Map<String, Object>> items = List.of(Map.of("item", "Home"),
+          Map.of("item", "About"));
+    String out = null;
+    for (int i = 0; i < 3; ++i) {
+      RenderSession rs = tmpl.newRenderSession();
+      rs.populateCached("menu", "main", Duration.ofHours(1), () -> {
+        calls.incrementAndGet();
+        return items;
+      }, "|");
+      rs.set("title", "T" + i);
+      out = rs.render();
+      assertEquals("<ul><li>Home</li>|<li>About</li></ul>T" + i, out);
+    }
+    assertEquals(1, calls.get());
+    assertEquals(misses + 1, cache.misses());
+    assertEquals(hits + 2, cache.hits());
+    RenderSession rs = tmpl.newRenderSession();
+    rs.populateCached("menu", "other", Duration.ofHours(1), () -> List.of());
+    assertEquals("<ul></ul>", rs.render());
+  }
+
+  @Test
+  public void populateCached01() throws ParseException {
+    Template tmpl = Template.fromString(SRC);
+    AtomicInteger calls = new AtomicInteger();
+    for (int i = 0; i < 2; ++i) {
+      RenderSession rs = tmpl.newRenderSession();
+      rs.populateCached("menu", "main", Duration.ZERO, () -> {
+        calls.incrementAndGet();
+        return Map.of("item", "Home");
+      });
+      assertEquals("<ul><li>Home</li></ul>", rs.render());
+    }
+    assertEquals(2, calls.get());
+  }
+
+  @Test
+  public void populateCached03() throws ParseException {
+    // Two pages including the same template share its fragments
+    Template page0 = Template.fromString(getClass(),
+          "<table>~%%include:row:tableRow.html%%</table>");
+    Template page1 = Template.fromString(getClass(),
+          "<div><table>~%%include:row:tableRow.html%%</table></div>");
+    assertSame(page0.getNestedTemplate("row").body(),
+          page1.getNestedTemplate("row").body());
+    AtomicInteger calls = new AtomicInteger();
+    for (Template page : List.of(page0, page1)) {
+      RenderSession rs = page.newRenderSession();
+      rs.populateCached("row", "john", Duration.ofHours(1), () -> {
+        calls.incrementAndGet();
+        return Map.of("name", "John", "age", 42);
+      });
+      assertTrue(rs.render().contains("<tr><td>John</td><td>42</td></tr>"));
+    }
+    assertEquals(1, calls.get());
+  }
+
+  @Test
+  public void populateCached04() throws ParseException {
+    // Sessions with different stringifiers must not share fragments
+    Template tmpl = Template.fromString(SRC);
+    StringifierRegistry escaping = StringifierRegistry.configure()
+          .forName("item", obj -> obj.toString().replace("<", "&lt;"))
+          .freeze();
+    Map<String, Object> data = Map.of("item", "<b>");
+    RenderSession rs = tmpl.newRenderSession();
+    rs.populateCached("menu", "shared", Duration.ofHours(1), () -> data);
+    assertEquals("<ul><li><b></li></ul>", rs.render());
+    rs = tmpl.newRenderSession(escaping);
+    rs.populateCached("menu", "shared", Duration.ofHours(1), () -> data);
+    assertEquals("<ul><li>&lt;b></li></ul>", rs.render());
+  }
+
+  @Test
+  public void populateCached02() throws ParseException {
+    Template tmpl = Template.fromString(SRC);
+    RenderSession rs = tmpl.newRenderSession();
+    rs.repeat("menu", 2);
+    assertThrows(RenderException.class,
+          () -> rs.populateCached("menu",
+                "main",
+                Duration.ofHours(1),
+                () -> Map.of("item", "Home")));
+  }
+
+}
@@ -3,6 +3,8 @@ package org.klojang.templates;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.klojang.templates.ParseErrorCode.*;
 
@@ -263,4 +265,98 @@ public class ParseErrorTest {
     fail();
   }
 
+  @Test
+  public void nestedCommentStyles00() {
+    String src = """
+        ~%%begin:foo%
+          <!-- ~%%begin:bar% -->
+          <p>Hello world
+          <!-- ~%%end:bar% -->
+        ~%%end:foo%
+        """;
+    try {
+      Template.fromString(src);
+    } catch (ParseException e) {
+      assertEquals(MISSING_END_TAG, e.getErrorCode());
+      return;
+    }
+    fail();
+  }
+
+  @Test
+  public void ditchBlockInInlineTemplate00() {
+    String src = """
+        ~%%begin:foo%
+          <!--%%--> ~%bar% <!--%%-->
+        ~%%end:foo%
+        """;
+    try {
+      Template.fromString(src);
+    } catch (ParseException e) {
+      assertEquals(MISSING_END_TAG, e.getErrorCode());
+      return;
+    }
+    fail();
+  }
+
+  /*
+   * The following tests pin down which error is reported first if a template
+   * contains more than one error. See the class comment of Parser.
+   */
+
+  @Test
+  public void firstError00() {
+    // An error in a begin tag is reported as soon as it is found, before the missing
+    // end tag of the enclosing template
+    String src = """
+        ~%%begin:foo%
+        ~%%begin:{root}%~%%end:{root}%
+        """;
+    ParseException e = assertThrows(ParseException.class,
+          () -> Template.fromString(src));
+    assertEquals(ILLEGAL_TMPL_NAME, e.getErrorCode());
+    assertTrue(e.getMessage().contains("line 2, column 10"));
+  }
+
+  @Test
+  public void firstError01() {
+    // An inline template in HTML comments within an inline template without HTML
+    // comments is reported as a missing end tag as soon as it is closed, before its
+    // contents are checked
+    String src = """
+        ~%%begin:foo%
+        <!-- ~%%begin:bar% -->~%%include:nope.html%%<!-- ~%%end:bar% -->
+        ~%%end:foo%
+        """;
+    ParseException e = assertThrows(ParseException.class,
+          () -> Template.fromString(src));
+    assertEquals(MISSING_END_TAG, e.getErrorCode());
+    assertTrue(e.getMessage().contains("\"foo\""));
+  }
+
+  @Test
+  public void firstError02() {
+    String src = """
+        ~%%begin:foo%
+        <!-- ~%%begin:bar% -->~%%end:baz%<!-- ~%%end:bar% -->
+        ~%%end:foo%
+        """;
+    ParseException e = assertThrows(ParseException.class,
+          () -> Template.fromString(src));
+    assertEquals(MISSING_END_TAG, e.getErrorCode());
+    assertTrue(e.getMessage().contains("\"foo\""));
+  }
+
+  @Test
+  public void firstError03() {
+    // Within a template, included templates are checked before variables
+    String src = """
+        ~%begin:x%
+        ~%%include:nope.html%%
+        """;
+    ParseException e = assertThrows(ParseException.class,
+          () -> Template.fromString(src));
+    assertEquals(INVALID_INCLUDE_PATH, e.getErrorCode());
+  }
+
 }
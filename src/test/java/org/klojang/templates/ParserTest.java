@@ -113,15 +113,15 @@ public class ParserTest {
     Parser parser = new Parser(TemplateLocation.STRING, ROOT_TEMPLATE_NAME, src);
     List<Part> parts = parser.getParts();
     assertTrue(parts.get(1) instanceof NestedTemplatePart);
-    Template t = ((NestedTemplatePart) parts.get(1)).getTemplate();
-    assertEquals(2, t.getNames().size());
-    assertTrue(t.getNames().contains("selectedName"));
-    assertTrue(t.getNames().contains("selectedAge"));
+    TemplateBody t = ((NestedTemplatePart) parts.get(1)).body();
+    assertEquals(2, t.names().size());
+    assertTrue(t.names().contains("selectedName"));
+    assertTrue(t.names().contains("selectedAge"));
     assertTrue(parts.get(3) instanceof NestedTemplatePart);
-    t = ((NestedTemplatePart) parts.get(3)).getTemplate();
-    assertEquals(2, t.getNames().size());
-    assertTrue(t.getNames().contains("name"));
-    assertTrue(t.getNames().contains("age"));
+    t = ((NestedTemplatePart) parts.get(3)).body();
+    assertEquals(2, t.names().size());
+    assertTrue(t.names().contains("name"));
+    assertTrue(t.names().contains("age"));
   }
 
   @Test
@@ -157,15 +157,15 @@ public class ParserTest {
     Parser parser = new Parser(TemplateLocation.STRING, ROOT_TEMPLATE_NAME, src);
     List<Part> parts = parser.getParts();
     assertTrue(parts.get(1) instanceof NestedTemplatePart);
-    Template t = ((NestedTemplatePart) parts.get(1)).getTemplate();
-    assertEquals(2, t.getNames().size());
-    assertTrue(t.getNames().contains("selectedName"));
-    assertTrue(t.getNames().contains("selectedAge"));
+    TemplateBody t = ((NestedTemplatePart) parts.get(1)).body();
+    assertEquals(2, t.names().size());
+    assertTrue(t.names().contains("selectedName"));
+    assertTrue(t.names().contains("selectedAge"));
     assertTrue(parts.get(3) instanceof NestedTemplatePart);
-    t = ((NestedTemplatePart) parts.get(3)).getTemplate();
-    assertEquals(2, t.getNames().size());
-    assertTrue(t.getNames().contains("name"));
-    assertTrue(t.getNames().contains("age"));
+    t = ((NestedTemplatePart) parts.get(3)).body();
+    assertEquals(2, t.names().size());
+    assertTrue(t.names().contains("name"));
+    assertTrue(t.names().contains("age"));
   }
 
   @Test
@@ -185,9 +185,9 @@ public class ParserTest {
     assertTrue(parts.get(0) instanceof InlineTemplatePart);
     InlineTemplatePart itp = (InlineTemplatePart) parts.get(0);
     assertEquals("21", itp.name());
-    assertEquals(1, itp.getTemplate().parts().size());
-    assertTrue(itp.getTemplate().parts().get(0) instanceof TextPart);
-    assertEquals(" FOO ", itp.getTemplate().parts().get(0).toString());
+    assertEquals(1, itp.body().parts().size());
+    assertTrue(itp.body().parts().get(0) instanceof TextPart);
+    assertEquals(" FOO ", itp.body().parts().get(0).toString());
   }
 
   @Test
@@ -313,17 +313,17 @@ public class ParserTest {
     assertTrue(parts.get(1) instanceof NestedTemplatePart);
     NestedTemplatePart tp = (NestedTemplatePart) parts.get(1);
     assertEquals("jsVars", tp.name());
-    Template t = tp.getTemplate();
-    assertEquals(2, t.getNames().size());
-    assertTrue(t.getNames().contains("selectedName"));
-    assertTrue(t.getNames().contains("selectedAge"));
+    TemplateBody t = tp.body();
+    assertEquals(2, t.names().size());
+    assertTrue(t.names().contains("selectedName"));
+    assertTrue(t.names().contains("selectedAge"));
     assertTrue(parts.get(3) instanceof NestedTemplatePart);
     tp = (NestedTemplatePart) parts.get(3);
     assertEquals("tableRow", tp.name());
-    t = tp.getTemplate();
-    assertEquals(2, t.getNames().size());
-    assertTrue(t.getNames().contains("name"));
-    assertTrue(t.getNames().contains("age"));
+    t = tp.body();
+    assertEquals(2, t.names().size());
+    assertTrue(t.names().contains("name"));
+    assertTrue(t.names().contains("age"));
   }
 
   @Test
@@ -354,17 +354,17 @@ public class ParserTest {
     assertTrue(parts.get(1) instanceof NestedTemplatePart);
     NestedTemplatePart tp = (NestedTemplatePart) parts.get(1);
     assertEquals("jsVars", tp.name());
-    Template t = tp.getTemplate();
-    assertEquals(2, t.getNames().size());
-    assertTrue(t.getNames().contains("selectedName"));
-    assertTrue(t.getNames().contains("selectedAge"));
+    TemplateBody t = tp.body();
+    assertEquals(2, t.names().size());
+    assertTrue(t.names().contains("selectedName"));
+    assertTrue(t.names().contains("selectedAge"));
     assertTrue(parts.get(3) instanceof NestedTemplatePart);
     tp = (NestedTemplatePart) parts.get(3);
     assertEquals("tableRow", tp.name());
-    t = tp.getTemplate();
-    assertEquals(2, t.getNames().size());
-    assertTrue(t.getNames().contains("name"));
-    assertTrue(t.getNames().contains("age"));
+    t = tp.body();
+    assertEquals(2, t.names().size());
+    assertTrue(t.names().contains("name"));
+    assertTrue(t.names().contains("age"));
   }
 
   @Test
@@ -575,7 +575,33 @@ public class ParserTest {
     assertEquals(expected, out);
   }
 
-
+  @Test
+  public void parseNested00() throws ParseException {
+    String src = """
+        <table>
+        <!-- ~%%begin:row% -->
+          <tr>~%%begin:cell%<td>~%name%</td>~%%end:cell%</tr>
+        <!-- ~%%end:row% -->
+        </table>
+        """;
+    Parser parser = new Parser(TemplateLocation.STRING, ROOT_TEMPLATE_NAME, src);
+    List<Part> parts = parser.getParts();
+    assertEquals(3, parts.size());
+    InlineTemplatePart row = (InlineTemplatePart) parts.get(1);
+    assertEquals(8, row.start());
+    assertTrue(row.isStartTagOnSeparateLine());
+    assertTrue(row.isEndTagOnSeparateLine());
+    List<Part> rowParts = row.body().parts();
+    assertEquals(3, rowParts.size());
+    assertEquals("  <tr>", ((TextPart) rowParts.get(0)).text());
+    InlineTemplatePart cell = (InlineTemplatePart) rowParts.get(1);
+    // Positions are relative to the start of the enclosing inline template
+    assertEquals(7, cell.start());
+    List<Part> cellParts = cell.body().parts();
+    assertEquals(3, cellParts.size());
+    assertEquals(4, cellParts.get(1).start());
+    assertEquals("name", ((VariablePart) cellParts.get(1)).name());
+  }
 
   private static String nospace(String s) {
     return s.replaceAll("\\s+", "");
@@ -0,0 +1,210 @@
+package org.klojang.templates;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RenderProgramTest {
+
+  @Test
+  public void compile00() throws ParseException {
+    String src = "Hello ~%name%, ~%%begin:foo%[~%bar%]~%%end:foo%!";
+    Template tmpl = Template.fromString(src);
+    RenderProgram program = tmpl.program();
+    assertSame(program, tmpl.program());
+    assertSame(tmpl, program.template());
+  }
+
+  @Test
+  public void run00() throws ParseException {
+    String src = "Hello ~%name%, how are you?";
+    SoloSession rs = (SoloSession) Template.fromString(src).newRenderSession();
+    rs.set("name", "John");
+    assertEquals("Hello John, how are you?", rs.render());
+    assertSameOutput(rs);
+  }
+
+  @Test
+  public void run01() throws ParseException {
+    String src = """
+          <table>
+          ~%%begin:companies%
+            <tr><td>~%name%</td></tr>
+            ~%%begin:departments%
+              <tr><td>~%name%</td><td>~%boss%</td></tr>
+            ~%%end:departments%
+          ~%%end:companies%
+          </table>
+          """;
+    SoloSession rs = (SoloSession) Template.fromString(src).newRenderSession();
+    rs.populate("companies", List.of(
+          Map.of("name", "Shell",
+                "departments", List.of(
+                      Map.of("name", "ICT", "boss", "John"),
+                      Map.of("name", "HR", "boss", "Mary"))),
+          Map.of("name", "Unilever",
+                "departments", List.of()),
+          Map.of("name", "ING",
+                "departments", List.of(Map.of("name", "Sales", "boss", "Ed")))));
+    String out = rs.render();
+    assertTrue(out.contains("<td>HR</td><td>Mary</td>"));
+    assertSameOutput(rs);
+  }
+
+  @Test
+  public void run02() throws ParseException {
+    String src = "~%%begin:foo%FOO~%%end:foo%|~%%begin:bar%~%x%~%%end:bar%";
+    SoloSession rs = (SoloSession) Template.fromString(src).newRenderSession();
+    rs.enable(", ", 3, "foo");
+    rs.populateSolo("bar", "-", null, List.of(1, 2, 3));
+    assertEquals("FOO, FOO, FOO|1-2-3", rs.render());
+    assertSameOutput(rs);
+  }
+
+  @Test
+  public void run03() throws ParseException {
+    String src = "[~%%begin:foo%FOO~%%end:foo%][~%bar%]";
+    SoloSession rs = (SoloSession) Template.fromString(src).newRenderSession();
+    rs.disable("foo");
+    rs.setDelayed("bar", () -> "BAR");
+    assertEquals("[][BAR]", rs.render());
+    assertSameOutput(rs);
+  }
+
+  @Test
+  public void run04() throws ParseException {
+    StringBuilder src = new StringBuilder();
+    int depth = 500;
+    for (int i = 0; i < depth; ++i) {
+      src.append("~%%begin:t").append(i).append('%').append(i).append(':');
+    }
+    src.append("~%x%");
+    for (int i = depth - 1; i >= 0; --i) {
+      src.append("~%%end:t").append(i).append('%');
+    }
+    SoloSession rs = (SoloSession) Template.fromString(src.toString())
+          .newRenderSession();
+    StringBuilder path = new StringBuilder();
+    for (int i = 0; i < depth; ++i) {
+      path.append('t').append(i).append('.');
+    }
+    rs.setPath(path.append('x').toString(), i -> "!");
+    String out = rs.render();
+    assertTrue(out.startsWith("0:1:2:"));
+    assertTrue(out.endsWith("499:!"));
+  }
+
+  @Test
+  public void run05() throws ParseException, IOException {
+    String src = "<table>~%%begin:row%<tr>~%%begin:cell%<td>~%v%</td>~%%end:cell%</tr>"
+          + "~%%end:row%</table>";
+    List<Map<String, Object>> rows = new ArrayList<>();
+    for (int i = 0; i < 5000; ++i) {
+      rows.add(Map.of("cell", List.of(Map.of("v", i), Map.of("v", "x" + i))));
+    }
+    SoloSession rs = (SoloSession) Template.fromString(src).newRenderSession();
+    rs.populate("row", rows, "\n");
+    RenderProgram program = rs.state().getSessionConfig().template().program();
+    StringBuilder parallel = new StringBuilder();
+    program.run(rs.state(), new RenderProgram.CharOutput(parallel), 100);
+    StringBuilder expected = new StringBuilder();
+    new Renderer(rs.state()).renderRecursive(expected);
+    assertEquals(expected.toString(), parallel.toString());
+  }
+
+  @Test
+  public void run06() throws ParseException, IOException {
+    String src = "<table>~%%begin:row%<tr><td>~%v%</td></tr>~%%end:row%</table>";
+    List<Map<String, Object>> rows = new ArrayList<>();
+    for (int i = 0; i < 5000; ++i) {
+      rows.add(Map.of("v", i));
+    }
+    SoloSession rs = (SoloSession) Template.fromString(src).newRenderSession();
+    rs.populate("row", rows, "\n");
+    RenderProgram program = rs.state().getSessionConfig().template().program();
+    RenderProgram.BufferOutput out = new RenderProgram.BufferOutput();
+    program.run(rs.state(), out, 100);
+    ByteBuffer[] buffers = out.getBuffers();
+    // The boilerplate text of the parallel ranges must not have been re-encoded
+    long direct = Arrays.stream(buffers).filter(ByteBuffer::isDirect).count();
+    assertTrue(direct > 2 * rows.size());
+    StringBuilder sb = new StringBuilder();
+    for (ByteBuffer bb : buffers) {
+      sb.append(UTF_8.decode(bb));
+    }
+    assertEquals(rs.render(), sb.toString());
+  }
+
+  @Test
+  public void generate00() throws Throwable {
+    String src = """
+          <h1>~%title%</h1>
+          ~%%begin:companies%
+            <h2>~%name%</h2>
+            ~%%begin:departments%<p>~%name% ~%boss%</p>~%%end:departments%
+            ~%%begin:empty%[~%x%]~%%end:empty%
+          ~%%end:companies%
+          ~%%begin:footer%FOOTER~%%end:footer%~%title%
+          """;
+    SoloSession rs = (SoloSession) Template.fromString(src).newRenderSession();
+    rs.set("title", "Companies");
+    rs.populate("companies", List.of(
+          Map.of("name", "Shell",
+                "departments", List.of(
+                      Map.of("name", "ICT", "boss", "John"),
+                      Map.of("name", "HR", "boss", "Mary")),
+                "empty", List.of()),
+          Map.of("name", "ING", "departments", List.of())), "<hr>");
+    rs.enable(", ", 2, "footer");
+    Template tmpl = rs.state().getSessionConfig().template();
+    RenderProgram.Generated generated = tmpl.program().generate();
+    StringBuilder actual = new StringBuilder();
+    generated.render(rs.state(),
+          new RenderProgram.CharOutput(actual),
+          new RenderProgram.DelayedValues());
+    StringBuilder expected = new StringBuilder();
+    new Renderer(rs.state()).renderRecursive(expected);
+    assertEquals(expected.toString(), actual.toString());
+  }
+
+  @Test
+  public void generate01() throws Throwable {
+    String src = """
+          <h1>~%title%</h1>
+          ~%%begin:rows%<td>~%a%</td><td>~%b%</td><td>~%a%</td>~%%end:rows%
+          """;
+    SoloSession rs = (SoloSession) Template.fromString(src).newRenderSession();
+    rs.setDelayed("title", () -> "Rows");
+    rs.populate("rows", List.of(
+          Map.of("a", 1, "b", 2),
+          Map.of("a", 3, "b", 4),
+          Map.of("a", 5, "b", 6)), "|");
+    Template tmpl = rs.state().getSessionConfig().template();
+    assertNotNull(rs.state().getSessionData(tmpl.nested("rows")).rows());
+    RenderProgram.Generated generated = tmpl.program().generate();
+    StringBuilder actual = new StringBuilder();
+    RenderProgram.DelayedValues delayed = new RenderProgram.DelayedValues();
+    generated.render(rs.state(), new RenderProgram.CharOutput(actual), delayed);
+    StringBuilder expected = new StringBuilder();
+    new Renderer(rs.state()).renderRecursive(expected);
+    assertEquals(expected.toString(), actual.toString());
+    assertEquals(1, delayed.count);
+  }
+
+  private static void assertSameOutput(SoloSession rs) {
+    StringBuilder expected = new StringBuilder();
+    new Renderer(rs.state()).renderRecursive(expected);
+    StringBuilder actual = new StringBuilder();
+    new Renderer(rs.state()).render(actual);
+    assertEquals(expected.toString(), actual.toString());
+  }
+
+}
@@ -0,0 +1,130 @@
+package org.klojang.templates;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RenderPublisherTest {
+
+  private static final class Collector implements Flow.Subscriber<ByteBuffer> {
+
+    final List<ByteBuffer> chunks = new ArrayList<>();
+    final int batch;
+    Flow.Subscription subscription;
+    boolean complete;
+    Throwable error;
+
+    Collector(int batch) {
+      this.batch = batch;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+      this.subscription = subscription;
+      if (batch > 0) {
+        subscription.request(batch);
+      }
+    }
+
+    @Override
+    public void onNext(ByteBuffer item) {
+      chunks.add(item);
+      if (batch > 0) {
+        subscription.request(1);
+      }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+      error = throwable;
+    }
+
+    @Override
+    public void onComplete() {
+      complete = true;
+    }
+
+    String output() {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      chunks.forEach(bb -> out.write(bb.array(), bb.arrayOffset(), bb.remaining()));
+      return out.toString(UTF_8);
+    }
+
+  }
+
+  @Test
+  public void publish00() throws ParseException {
+    String src = "<table>~%%begin:row%<tr><td>~%name%</td></tr>~%%end:row%</table>";
+    RenderSession rs = Template.fromString(src).newRenderSession();
+    List<Object> rows = new ArrayList<>();
+    for (int i = 0; i < 1000; ++i) {
+      rows.add(Map.of("name", "Élément " + i));
+    }
+    rs.populate("row", rows, "\n");
+    Collector c = new Collector(1);
+    rs.toPublisher(100).subscribe(c);
+    assertTrue(c.complete);
+    assertNull(c.error);
+    assertTrue(c.chunks.stream().allMatch(bb -> bb.remaining() <= 100));
+    assertEquals(rs.render(), c.output());
+  }
+
+  @Test
+  public void publish01() throws ParseException {
+    String src = "~%a%" + "x".repeat(200) + "~%b%";
+    RenderSession rs = Template.fromString(src).newRenderSession();
+    AtomicInteger calls = new AtomicInteger();
+    rs.set("a", "A");
+    rs.setDelayed("b", () -> "B" + calls.incrementAndGet());
+    Collector c = new Collector(0);
+    rs.toPublisher(50).subscribe(c);
+    assertTrue(c.chunks.isEmpty());
+    c.subscription.request(2);
+    assertEquals(2, c.chunks.size());
+    assertEquals(0, calls.get());
+    c.subscription.request(10);
+    assertTrue(c.complete);
+    assertEquals(1, calls.get());
+    assertEquals("A" + "x".repeat(200) + "B1", c.output());
+  }
+
+  @Test
+  public void publish02() throws ParseException {
+    RenderSession rs = Template.fromString("~%a%").newRenderSession();
+    rs.set("a", "A".repeat(1000));
+    Collector c = new Collector(0);
+    rs.toPublisher(10).subscribe(c);
+    c.subscription.request(3);
+    c.subscription.cancel();
+    c.subscription.request(3);
+    assertEquals(3, c.chunks.size());
+    assertFalse(c.complete);
+  }
+
+  @Test
+  public void publish03() throws ParseException {
+    RenderSession rs = Template.fromString("~%a%").newRenderSession();
+    rs.set("a", "A");
+    Collector c = new Collector(0);
+    rs.toPublisher().subscribe(c);
+    c.subscription.request(0);
+    assertInstanceOf(IllegalArgumentException.class, c.error);
+  }
+
+  @Test
+  public void publish04() throws ParseException {
+    RenderSession rs = Template.fromString("~%a%").newRenderSession();
+    Flow.Publisher<ByteBuffer> publisher = rs.toPublisher();
+    assertThrows(NullPointerException.class, () -> publisher.subscribe(null));
+  }
+
+}
@@ -3,10 +3,24 @@ package org.klojang.templates;
 import org.junit.jupiter.api.Test;
 import org.klojang.util.JSONObject;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
+import static java.nio.charset.StandardCharsets.*;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.klojang.templates.RenderErrorCode.STREAM_CONSUMED;
 
 public class RenderSessionTest {
 
@@ -716,6 +730,123 @@ public class RenderSessionTest {
     assertEquals("hello<html><body><p></p><p>tea</p><p>pot</p></body></html>", out);
   }
 
+  @Test
+  public void render01() throws ParseException {
+    String src = "<p>Café ~%name%</p>~%%begin:foo%<i>€ ~%bar%</i>~%%end:foo%";
+    Template tmpl = Template.fromString(src);
+    RenderSession rs = tmpl.newRenderSession();
+    rs.set("name", "Müller");
+    rs.populate("foo", List.of(Map.of("bar", "ñ"), Map.of("bar", "ø")));
+    String expected = "<p>Café Müller</p><i>€ ñ</i><i>€ ø</i>";
+    assertEquals(expected, rs.render());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    rs.render(out);
+    assertArrayEquals(expected.getBytes(UTF_8), out.toByteArray());
+    out = new ByteArrayOutputStream();
+    rs.render(out, UTF_16);
+    assertEquals(expected, out.toString(UTF_16));
+    out = new ByteArrayOutputStream();
+    rs.render(out, ISO_8859_1);
+    assertArrayEquals(expected.getBytes(ISO_8859_1), out.toByteArray());
+  }
+
+  @Test
+  public void render02() throws ParseException, IOException {
+    String src = "<p>Café ~%a%~%b%</p>~%%begin:foo%<i>~%bar%</i>~%%end:foo%";
+    Template tmpl = Template.fromString(src);
+    RenderSession rs = tmpl.newRenderSession();
+    rs.set("a", "Mül").set("b", "ler");
+    rs.populate("foo", List.of(Map.of("bar", "ñ"), Map.of("bar", "ø")), "|");
+    String expected = "<p>Café Müller</p><i>ñ</i>|<i>ø</i>";
+    ByteBuffer[] buffers = rs.renderToBuffers();
+    assertEquals(10, buffers.length);
+    assertTrue(buffers[0].isDirect());
+    assertTrue(buffers[0].isReadOnly());
+    assertFalse(buffers[1].isDirect());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    rs.render(Channels.newChannel(out));
+    assertEquals(expected, out.toString(UTF_8));
+    Path file = Files.createTempFile("render02", ".html");
+    try (FileChannel fc = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      rs.render(fc);
+      rs.render(fc);
+    } finally {
+      assertEquals(expected + expected, Files.readString(file));
+      Files.delete(file);
+    }
+  }
+
+  @Test
+  public void render03() throws ParseException {
+    // The output is buffered, so the stream sees a few large writes
+    Template tmpl = Template.fromString("~%%begin:row%<td>~%a%</td>~%%end:row%~%big%");
+    RenderSession rs = tmpl.newRenderSession();
+    rs.populate("row", IntStream.range(0, 1000).mapToObj(i -> Map.of("a", i)).toList());
+    String big = "x".repeat(100_000);
+    rs.set("big", big);
+    AtomicInteger writes = new AtomicInteger();
+    AtomicInteger flushes = new AtomicInteger();
+    ByteArrayOutputStream out = new ByteArrayOutputStream() {
+      @Override
+      public void write(byte[] b, int off, int len) {
+        writes.incrementAndGet();
+        super.write(b, off, len);
+      }
+
+      @Override
+      public void flush() {
+        flushes.incrementAndGet();
+      }
+    };
+    rs.render(out);
+    assertEquals(rs.render(), out.toString(UTF_8));
+    assertTrue(writes.get() <= 3, "writes: " + writes.get());
+    assertEquals(1, flushes.get());
+  }
+
+  @Test
+  public void estimateSize00() throws ParseException {
+    String src = "<p>Café ~%a%</p>~%%begin:foo%<i>~%bar%</i>~%%end:foo%~%%begin:x%X~%%end:x%";
+    Template tmpl = Template.fromString(src);
+    RenderSession rs = tmpl.newRenderSession();
+    rs.set("a", "Müller \uD83D\uDE00");
+    rs.populate("foo", List.of(Map.of("bar", "ñ"), Map.of("bar", "ø")), ", ");
+    rs.disable("x");
+    String out = rs.render();
+    assertEquals(out.length(), rs.estimateSize());
+    assertEquals(out.getBytes(UTF_8).length, rs.estimateByteSize());
+  }
+
+  @Test
+  public void estimateSize01() throws ParseException {
+    String src = "<p>~%a%</p>";
+    Template tmpl = Template.fromString(src);
+    for (int i = 0; i < 20; ++i) {
+      RenderSession rs = tmpl.newRenderSession();
+      rs.setDelayed("a", () -> "x".repeat(100));
+      rs.render();
+    }
+    RenderSession rs = tmpl.newRenderSession();
+    rs.setDelayed("a", () -> "x".repeat(100));
+    int size = rs.estimateSize();
+    assertTrue(size > 90 && size <= 107, String.valueOf(size));
+  }
+
+  @Test
+  public void estimateSize02() throws ParseException {
+    // The average must also move if the values are only slightly longer than it
+    String src = "<p>~%a%</p>";
+    Template tmpl = Template.fromString(src);
+    for (int i = 0; i < 10; ++i) {
+      RenderSession rs = tmpl.newRenderSession();
+      rs.setDelayed("a", () -> "x".repeat(18));
+      rs.render();
+    }
+    RenderSession rs = tmpl.newRenderSession();
+    rs.setDelayed("a", () -> "x".repeat(18));
+    assertEquals("<p></p>".length() + 18, rs.estimateSize());
+  }
+
   @Test
   public void allSet00() throws ParseException {
     String src = """
@@ -893,4 +1024,83 @@ public class RenderSessionTest {
     return s.replaceAll("\\s+", "");
   }
 
+  @Test
+  public void renderDelta00() throws ParseException {
+    String src = "<h1>~%title%</h1><span>~%count%</span>~%title%"
+          + "<ul>~%%begin:items%<li>~%name%</li>~%%end:items%</ul>"
+          + "~%%begin:badges%<b>~%label%</b>~%%end:badges%";
+    RenderSession rs = Template.fromString(src).newRenderSession();
+    rs.set("title", "Inbox").set("count", 1);
+    rs.populate("items", List.of(Map.of("name", "a"), Map.of("name", "b")));
+    List<RenderedFragment> delta = rs.renderDelta();
+    assertEquals(List.of(new RenderedFragment("", rs.render())), delta);
+    assertEquals(List.of(), rs.renderDelta());
+    rs.set("count", 2);
+    rs.getChildSessions("items").get(1).set("name", "c");
+    rs.populate("badges", Map.of("label", "new"));
+    delta = rs.renderDelta();
+    assertEquals(List.of(new RenderedFragment("count", "2"),
+          new RenderedFragment("items[1].name", "c"),
+          new RenderedFragment("badges", "<b>new</b>")), delta);
+    rs.set("title", "Outbox");
+    delta = rs.renderDelta();
+    assertEquals(List.of(new RenderedFragment("title", "Outbox"),
+          new RenderedFragment("title#1", "Outbox")), delta);
+    assertEquals(List.of(), rs.renderDelta());
+  }
+
+  @Test
+  public void reset00() throws ParseException {
+    String src = "<h1>~%title%</h1><ul>~%%begin:items%<li>~%name%</li>~%%end:items%</ul>";
+    RenderSession rs = Template.fromString(src).newRenderSession();
+    rs.set("title", "A");
+    rs.populate("items", List.of(Map.of("name", "a"), Map.of("name", "b")));
+    assertEquals("<h1>A</h1><ul><li>a</li><li>b</li></ul>", rs.render());
+    RenderSession child = rs.getChildSessions("items").get(0);
+    rs.reset();
+    assertTrue(rs.hasUnsetVariables());
+    assertEquals(List.of("title", "items.name"), rs.getAllUnsetVariables());
+    assertEquals("<h1></h1><ul></ul>", rs.render());
+    rs.set("title", "B");
+    rs.populate("items", List.of(Map.of("name", "c"), Map.of("name", "d"),
+          Map.of("name", "e")));
+    assertEquals("<h1>B</h1><ul><li>c</li><li>d</li><li>e</li></ul>", rs.render());
+    assertSame(child, rs.getChildSessions("items").get(0));
+  }
+
+  @Test
+  public void populateStreaming00() throws ParseException {
+    String src = "<table>~%%begin:row%<tr><td>~%a%</td></tr>~%%end:row%</table>";
+    RenderSession rs = Template.fromString(src).newRenderSession();
+    AtomicInteger pulled = new AtomicInteger();
+    Iterator<Map<String, Object>> rows = IntStream.range(0, 3)
+          .peek(i -> pulled.incrementAndGet())
+          .mapToObj(i -> Map.<String, Object>of("a", i))
+          .iterator();
+    rs.populateStreaming("row", rows, "\n");
+    assertTrue(rs.estimateSize() > "<table></table>".length());
+    assertEquals(0, pulled.get());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    rs.render(out);
+    assertEquals(3, pulled.get());
+    assertEquals("<table><tr><td>0</td></tr>\n<tr><td>1</td></tr>\n<tr><td>2</td></tr></table>",
+          out.toString(UTF_8));
+    RenderException e = assertThrows(RenderException.class, rs::render);
+    assertEquals(STREAM_CONSUMED, e.getErrorCode());
+  }
+
+  @Test
+  public void populateStreaming01() throws ParseException {
+    String src = "~%%begin:row%~%a%[~%%begin:sub%~%b%~%%end:sub%]~%%end:row%";
+    RenderSession rs = Template.fromString(src).newRenderSession();
+    Stream<Map<String, Object>> rows = Stream.of(
+          Map.of("a", 1, "sub", List.of(Map.of("b", "x"), Map.of("b", "y"))),
+          Map.of("a", 2),
+          Map.of("a", 3, "sub", Map.of("b", "z")));
+    rs.populateStreaming("row", rows, ",");
+    assertFalse(rs.hasUnsetVariables());
+    assertThrows(RenderException.class, () -> rs.populate("row", Map.of("a", 4)));
+    assertEquals("1[xy],2[],3[z]", rs.render());
+  }
+
 }
@@ -3,7 +3,9 @@ package org.klojang.templates;
 import org.junit.jupiter.api.Test;
 import org.klojang.util.Path;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -62,4 +64,41 @@ public class RenderStateTest {
 
   }
 
+  @Test
+  public void rows00() throws ParseException {
+    String src = "<table>~%%begin:row%<tr><td>~%a%</td><td>~%b%</td></tr>~%%end:row%</table>";
+    Template tmpl = Template.fromString(src);
+    SoloSession rs = (SoloSession) tmpl.newRenderSession();
+    List<Map<String, Object>> rows = new ArrayList<>();
+    StringBuilder expected = new StringBuilder("<table>");
+    for (int i = 0; i < 1000; ++i) {
+      rows.add(Map.of("a", i, "b", "x" + i));
+      expected.append("<tr><td>").append(i).append("</td><td>x").append(i).append(
+            "</td></tr>");
+    }
+    expected.append("</table>");
+    rs.populate("row", rows);
+    assertEquals(expected.toString(), rs.render());
+    assertFalse(rs.hasUnsetVariables());
+    assertTrue(rs.state().isSet(Path.from("row.b")));
+    rs.renderDelta();
+    // converts the rows to child sessions
+    rs.getChildSessions("row").get(999).set("b", "y");
+    assertEquals(List.of(new RenderedFragment("row[999].b", "y")), rs.renderDelta());
+    assertEquals(expected.toString().replace("x999", "y"), rs.render());
+  }
+
+  @Test
+  public void rows01() throws ParseException {
+    String src = "~%%begin:row%~%a%~%b%~%%end:row%";
+    Template tmpl = Template.fromString(src);
+    SoloSession rs = (SoloSession) tmpl.newRenderSession();
+    rs.populate("row", List.of(Map.of("a", 1), Map.of("a", 2)), ",");
+    assertEquals("1,2", rs.render());
+    assertEquals(List.of("row.b"), rs.getAllUnsetVariables());
+    assertFalse(rs.state().isSet(Path.from("row.b")));
+    rs.in("row").set("b", "!");
+    assertEquals("1!,2!", rs.render());
+  }
+
 }
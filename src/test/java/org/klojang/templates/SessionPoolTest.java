@@ -0,0 +1,44 @@
+package org.klojang.templates;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SessionPoolTest {
+
+  private static final String SRC = "<ul>~%%begin:items%<li>~%name%</li>~%%end:items%</ul>";
+
+  @Test
+  public void acquire00() throws ParseException {
+    SessionPool pool = Template.fromString(SRC).newSessionPool(2);
+    RenderSession rs = pool.acquire();
+    rs.populate("items", List.of(Map.of("name", "a")));
+    assertEquals("<ul><li>a</li></ul>", rs.render());
+    pool.release(rs);
+    RenderSession rs2 = pool.acquire();
+    assertSame(rs, rs2);
+    assertEquals("<ul></ul>", rs2.render());
+    assertNotSame(rs2, pool.acquire());
+  }
+
+  @Test
+  public void release00() throws ParseException {
+    Template tmpl = Template.fromString(SRC);
+    SessionPool pool = tmpl.newSessionPool(1);
+    assertThrows(IllegalArgumentException.class,
+          () -> pool.release(tmpl.newRenderSession()));
+    RenderSession rs = pool.acquire();
+    rs.repeat("items", 2);
+    assertThrows(IllegalArgumentException.class, () -> pool.release(rs.in("items")));
+  }
+
+  @Test
+  public void newSessionPool00() throws ParseException {
+    Template tmpl = Template.fromString(SRC);
+    assertThrows(IllegalArgumentException.class, () -> tmpl.newSessionPool(0));
+  }
+
+}
@@ -0,0 +1,316 @@
+package org.klojang.templates;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.klojang.templates.x.FilePathResolver;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.ByteArrayInputStream;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.klojang.templates.ParseErrorCode.CIRCULAR_INCLUDE;
+import static org.klojang.templates.ParseErrorCode.INVALID_INCLUDE_PATH;
+
+public class TemplateCacheTest {
+
+  @Test
+  public void get00() throws Exception {
+    Map<String, String> sources = Map.of(
+          "main.html", "<p>~%%include:part.html%%</p>",
+          "part.html", "~%foo%");
+    Map<String, AtomicInteger> reads = new ConcurrentHashMap<>();
+    PathResolver resolver = path -> {
+      reads.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet();
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      return new ByteArrayInputStream(sources.get(path).getBytes(UTF_8));
+    };
+    Callable<Template> task = () -> Template.fromResolver(resolver, "main.html");
+    List<Template> templates;
+    try (ExecutorService exec = Executors.newFixedThreadPool(8)) {
+      List<Future<Template>> futures = IntStream.range(0, 8)
+            .mapToObj(i -> exec.submit(task))
+            .toList();
+      templates = futures.stream().map(f -> {
+        try {
+          return f.get();
+        } catch (Exception e) {
+          throw new AssertionError(e);
+        }
+      }).toList();
+    }
+    assertTrue(templates.stream().allMatch(t -> t == templates.get(0)));
+    assertEquals(1, reads.get("main.html").get());
+    assertEquals(1, reads.get("part.html").get());
+    RenderSession rs = templates.get(0).newRenderSession();
+    rs.in("part").set("foo", "bar");
+    assertEquals("<p>bar</p>", rs.render());
+  }
+
+  @Test
+  public void get01() throws Exception {
+    Map<String, AtomicInteger> reads = new ConcurrentHashMap<>();
+    PathResolver resolver = path -> {
+      reads.computeIfAbsent(path, k -> new AtomicInteger()).incrementAndGet();
+      return new ByteArrayInputStream(("<p>" + path + "</p>").getBytes(UTF_8));
+    };
+    TemplateCache cache = new TemplateCache(10, -1);
+    for (int i = 0; i < 100; ++i) {
+      // a frequently used template, and a one-off template
+      cache.get(new TemplateLocation("hot.html", resolver), "hot");
+      cache.get(new TemplateLocation(i + ".html", resolver), "cold");
+    }
+    assertEquals(1, reads.get("hot.html").get());
+    assertEquals(10, cache.size());
+    assertEquals(99, cache.getHits());
+    assertEquals(101, cache.getMisses());
+    assertEquals(101, cache.getParseCount());
+    assertEquals(91, cache.getEvictions());
+    assertTrue(cache.getMaxParseTimeMillis() <= cache.getTotalParseTimeMillis());
+    assertTrue(cache.getRetainedSize() > 0);
+  }
+
+  @Test
+  public void mbean00() throws Exception {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    Template.fromResource(Template.class, "include-01.html");
+    ObjectName name = new ObjectName(TemplateCache.OBJECT_NAME);
+    long parseCount = (Long) server.getAttribute(name, "ParseCount");
+    assertEquals(Template.cacheStatistics().getParseCount(), parseCount);
+    assertTrue(parseCount > 0);
+  }
+
+  @Test
+  public void get02() throws Exception {
+    PathResolver resolver = path -> {
+      String text = path.startsWith("big") ? "x".repeat(10_000) : "<p>~%foo%</p>";
+      return new ByteArrayInputStream(text.getBytes(UTF_8));
+    };
+    TemplateCache cache = new TemplateCache(-1, 32_000);
+    for (int i = 0; i < 10; ++i) {
+      cache.get(new TemplateLocation(i + ".html", resolver), "small");
+    }
+    assertEquals(10, cache.size());
+    // A big template must be requested more often than the small templates in order
+    // to be admitted.
+    for (int i = 0; i < 2; ++i) {
+      cache.get(new TemplateLocation("big.html", resolver), "big");
+    }
+    assertTrue(cache.size() < 10, "templates must be evicted by weight");
+  }
+
+  @Test
+  public void hotReload00(@TempDir Path dir) throws Exception {
+    // Includes are loaded through the global cache, so we must use that one, and
+    // must not leave hot reloading switched on for the other tests
+    TemplateCache.INSTANCE.enableHotReload();
+    try {
+      Path main = dir.resolve("main.html");
+      Path part = dir.resolve("part.html");
+      Files.writeString(part, "v1:~%foo%");
+      Files.writeString(main, "<p>~%%include:" + part + "%%</p>");
+      Template t1 = Template.fromFile(main.toString());
+      assertSame(t1, Template.fromFile(main.toString()));
+      Files.writeString(part, "v2:~%foo%");
+      Template t2 = t1;
+      for (int i = 0; i < 200 && t2 == t1; ++i) {
+        Thread.sleep(50);
+        t2 = Template.fromFile(main.toString());
+      }
+      RenderSession rs = t2.newRenderSession();
+      rs.in("part").set("foo", "bar");
+      assertEquals("<p>v2:bar</p>", rs.render());
+    } finally {
+      TemplateCache.INSTANCE.disableHotReload();
+    }
+    assertNull(TemplateCache.INSTANCE.watcher());
+  }
+
+  @Test
+  public void hotReload01(@TempDir Path dir) throws Exception {
+    TemplateCache cache = new TemplateCache(2, -1);
+    cache.enableHotReload();
+    for (int i = 0; i < 5; ++i) {
+      Path file = dir.resolve(i + ".html");
+      Files.writeString(file, "<p>~%foo%</p>");
+      cache.get(new TemplateLocation(file.toString(), new FilePathResolver()), "t" + i);
+    }
+    assertEquals(2, cache.size());
+    // Evicted templates must no longer be watched
+    assertEquals(2, cache.watcher().size());
+  }
+
+  @Test
+  public void preloadDirectory00(@TempDir Path dir) throws Exception {
+    Path part = dir.resolve("part.inc");
+    Files.writeString(part, "~%foo%");
+    Files.writeString(dir.resolve("a.html"), "<p>~%%include:" + part + "%%</p>");
+    Files.writeString(dir.resolve("b.html"), "<p>~%%include:" + part + "%%</p>");
+    Files.createDirectory(dir.resolve("sub"));
+    Files.writeString(dir.resolve("sub/c.html"), "<p>~%%begin:foo%</p>");
+    PreloadReport report = Template.preloadDirectory(dir, "**.html");
+    assertFalse(report.succeeded());
+    assertEquals(2, report.templates().size());
+    assertEquals(Set.of(dir.resolve("sub/c.html").toString()), report.errors().keySet());
+    assertEquals(3, report.loadTimes().size());
+    assertThrows(ParseException.class, report::check);
+    Template a = report.templates().get(dir.resolve("a.html").toString());
+    assertSame(a, Template.fromFile(dir.resolve("a.html").toString()));
+  }
+
+  @Test
+  public void preload00() {
+    PathResolver resolver = path -> switch (path) {
+      case "preload-b.html" -> throw new IllegalStateException("no b");
+      case "preload-c.html" -> null;
+      default -> new ByteArrayInputStream("<p>~%foo%</p>".getBytes(UTF_8));
+    };
+    List<String> paths = List.of("preload-a.html", "preload-b.html", "preload-c.html");
+    PreloadReport report = Template.preload(resolver, paths);
+    assertEquals(Set.of("preload-a.html"), report.templates().keySet());
+    assertEquals(Set.of("preload-b.html", "preload-c.html"), report.errors().keySet());
+    assertEquals(3, report.loadTimes().size());
+    ParseException e = report.errors().get("preload-b.html");
+    assertEquals(INVALID_INCLUDE_PATH, e.getErrorCode());
+    assertInstanceOf(IllegalStateException.class, e.getCause());
+  }
+
+  @Test
+  public void circularInclude00() {
+    Map<String, String> sources = Map.of(
+          "a.html", "<p>~%%include:b.html%%</p>",
+          "b.html", "<p>~%%include:c.html%%</p>",
+          "c.html", "<p>~%%include:a.html%%</p>");
+    PathResolver resolver = path -> new ByteArrayInputStream(
+          sources.get(path).getBytes(UTF_8));
+    ParseException e = assertThrows(ParseException.class,
+          () -> Template.fromResolver(resolver, "a.html"));
+    assertEquals(CIRCULAR_INCLUDE, e.getErrorCode());
+    assertTrue(e.getMessage().contains("a.html -> b.html -> c.html -> a.html"));
+  }
+
+  @Test
+  public void circularInclude01() {
+    PathResolver resolver = path -> new ByteArrayInputStream(
+          "<p>~%%include:self.html%%</p>".getBytes(UTF_8));
+    ParseException e = assertThrows(ParseException.class,
+          () -> Template.fromResolver(resolver, "self.html"));
+    assertEquals(CIRCULAR_INCLUDE, e.getErrorCode());
+  }
+
+  @Test
+  public void circularInclude02() {
+    // Two threads each enter the cycle at a different template, so each ends up
+    // waiting for the other
+    Map<String, String> sources = Map.of(
+          "a.html", "<p>~%%include:b.html%%</p>",
+          "b.html", "<p>~%%include:a.html%%</p>");
+    PathResolver resolver = path -> {
+      try {
+        Thread.sleep(50);
+      } catch (InterruptedException e) {
+        throw new AssertionError(e);
+      }
+      return new ByteArrayInputStream(sources.get(path).getBytes(UTF_8));
+    };
+    try (ExecutorService exec = Executors.newFixedThreadPool(2)) {
+      PreloadReport report = assertTimeoutPreemptively(Duration.ofSeconds(10),
+            () -> Template.preload(resolver, List.of("a.html", "b.html"), exec));
+      assertEquals(2, report.errors().size());
+      for (ParseException e : report.errors().values()) {
+        assertEquals(CIRCULAR_INCLUDE, e.getErrorCode());
+      }
+    }
+  }
+
+  @Test
+  public void parallelIncludes00() throws Exception {
+    Map<String, String> threads = new ConcurrentHashMap<>();
+    PathResolver resolver = path -> {
+      String src;
+      if (path.equals("main.html")) {
+        src = IntStream.range(0, 8)
+              .mapToObj(i -> "~%%include:part" + i + ".html%%")
+              .reduce("", String::concat);
+      } else {
+        threads.put(path, Thread.currentThread().getName());
+        try {
+          Thread.sleep(50);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+        src = "<" + path + ">";
+      }
+      return new ByteArrayInputStream(src.getBytes(UTF_8));
+    };
+    ExecutorService exec = Executors.newFixedThreadPool(4,
+          r -> new Thread(r, "include-parser"));
+    Template.setIncludeExecutor(exec);
+    try {
+      Template t = Template.fromResolver(resolver, "main.html");
+      List<String> expected = IntStream.range(0, 8)
+            .mapToObj(i -> "part" + i)
+            .toList();
+      assertEquals(expected, List.copyOf(t.getNestedTemplateNames()));
+      assertEquals(8, threads.size());
+      assertTrue(threads.containsValue("include-parser"));
+    } finally {
+      Template.setIncludeExecutor(ForkJoinPool.commonPool());
+      exec.shutdown();
+    }
+  }
+
+  @Test
+  public void sharedIncludes00() throws Exception {
+    Map<String, String> sources = Map.of(
+          "page1.html", "<h1>Page</h1>~%%include:menu.html%%",
+          "page2.html", "<h1>Page</h1>~%%include:nav:menu.html%%",
+          "menu.html", "<ul>~%%begin:items%<li>~%item%</li>~%%end:items%</ul>");
+    PathResolver resolver = path -> new ByteArrayInputStream(
+          sources.get(path).getBytes(UTF_8));
+    Template page1 = Template.fromResolver(resolver, "page1.html");
+    Template page2 = Template.fromResolver(resolver, "page2.html");
+    Template menu = Template.fromResolver(resolver, "menu.html");
+    Template menu1 = page1.getNestedTemplate("menu");
+    Template menu2 = page2.getNestedTemplate("nav");
+    // The included template is parsed once, and its body is shared ...
+    assertSame(menu.body(), menu1.body());
+    assertSame(menu.body(), menu2.body());
+    assertSame(menu.parts(), menu2.parts());
+    // ... but its name and parent depend on the template including it
+    assertSame(page1, menu1.getParent());
+    assertSame(page2, menu2.getParent());
+    assertNull(menu.getParent());
+    assertSame(menu1, menu1.getNestedTemplate("items").getParent());
+    assertEquals("nav.items", TemplateUtils.getFQN(menu2.getNestedTemplate("items")));
+    // Identical boilerplate text is shared across templates
+    TextPart text1 = (TextPart) page1.parts().get(0);
+    TextPart text2 = (TextPart) page2.parts().get(0);
+    assertSame(text1.text(), text2.text());
+    assertSame(text1.utf8(), text2.utf8());
+    RenderSession rs = page2.newRenderSession();
+    rs.in("nav").populate("items", List.of(Map.of("item", "a"), Map.of("item", "b")));
+    assertEquals("<h1>Page</h1><ul><li>a</li><li>b</li></ul>", rs.render());
+  }
+
+}
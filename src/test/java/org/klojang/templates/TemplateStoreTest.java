@@ -0,0 +1,187 @@
+package org.klojang.templates;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.*;
+import static org.klojang.templates.ParseErrorCode.INVALID_INCLUDE_PATH;
+
+public class TemplateStoreTest {
+
+  private static final String MAIN = """
+        <html>
+        <!-- ~%%begin:rows% -->
+        <tr><td>~%html:name%</td><td><!-- ~%def:age% -->42<!--%--></td></tr>
+          <!-- ~%%include:cell:part.html%% -->
+        <!-- ~%%end:rows% -->
+        ~%%include:part.html%%
+        </html>
+        """;
+
+  private static final String PART = "<td>~%text:value%</td>";
+
+  @Test
+  public void write00(@TempDir Path dir) throws Exception {
+    Map<String, String> sources = new ConcurrentHashMap<>(Map.of(
+          "main.html", MAIN,
+          "part.html", PART));
+    Template parsed = Template.fromResolver(resolver(sources), "main.html");
+    Path file = dir.resolve("templates.kjt");
+    assertEquals(2, TemplateStore.write(file, List.of(parsed)));
+    TemplateStore store = TemplateStore.open(file);
+    assertEquals(2, store.size());
+    TemplateCache cache = TemplateCache.INSTANCE;
+    cache.setStore(store);
+    try {
+      long storeHits = cache.getStoreHits();
+      long parseCount = cache.getParseCount();
+      // A new resolver, so the templates are not in the cache yet
+      Template loaded = Template.fromResolver(resolver(sources), "main.html");
+      assertNotSame(parsed, loaded);
+      assertEquals(storeHits + 2, cache.getStoreHits());
+      assertEquals(parseCount, cache.getParseCount());
+      assertEquals(describe(parsed), describe(loaded));
+      RenderSession rs = loaded.newRenderSession();
+      rs.in("rows").set("name", "<John>");
+      rs.in("rows").in("cell").set("value", "x");
+      rs.in("part").set("value", "y");
+      assertEquals(render(parsed), rs.render());
+    } finally {
+      cache.setStore(null);
+    }
+  }
+
+  @Test
+  public void write01(@TempDir Path dir) throws Exception {
+    Map<String, String> sources = new ConcurrentHashMap<>(Map.of(
+          "main.html", MAIN,
+          "part.html", PART));
+    Template parsed = Template.fromResolver(resolver(sources), "main.html");
+    Path file = dir.resolve("templates.kjt");
+    TemplateStore.write(file, List.of(parsed));
+    TemplateCache cache = TemplateCache.INSTANCE;
+    cache.setStore(TemplateStore.open(file));
+    try {
+      sources.put("part.html", "<th>~%value%</th>");
+      long storeHits = cache.getStoreHits();
+      long parseCount = cache.getParseCount();
+      Template loaded = Template.fromResolver(resolver(sources), "main.html");
+      // The included template has changed, so it must be parsed again
+      assertEquals(storeHits + 1, cache.getStoreHits());
+      assertEquals(parseCount + 1, cache.getParseCount());
+      assertEquals("<th>~%value%</th>",
+            loaded.getNestedTemplate("part").toString());
+    } finally {
+      cache.setStore(null);
+    }
+  }
+
+  @Test
+  public void write02(@TempDir Path dir) throws Exception {
+    Map<String, String> sources = Map.of("main.html", MAIN, "part.html", PART);
+    Template parsed = Template.fromResolver(resolver(sources), "main.html");
+    Path file = dir.resolve("templates.kjt");
+    TemplateStore.write(file, List.of(parsed));
+    TemplateCache cache = TemplateCache.INSTANCE;
+    cache.setStore(TemplateStore.open(file));
+    try {
+      // The included template is no longer valid for this resolver
+      PathResolver resolver = new PathResolver() {
+        @Override
+        public boolean isValidPath(String path) {
+          return path.equals("main.html");
+        }
+
+        @Override
+        public InputStream resolve(String path) {
+          return new ByteArrayInputStream(sources.get(path).getBytes(UTF_8));
+        }
+      };
+      long parseCount = cache.getParseCount();
+      ParseException e = assertThrows(ParseException.class,
+            () -> Template.fromResolver(resolver, "main.html"));
+      assertEquals(INVALID_INCLUDE_PATH, e.getErrorCode());
+      assertTrue(e.getMessage().contains("part.html"));
+      // The error was detected while loading main.html from the store
+      assertEquals(parseCount, cache.getParseCount());
+    } finally {
+      cache.setStore(null);
+    }
+  }
+
+  @Test
+  public void open00(@TempDir Path dir) throws Exception {
+    Path file = dir.resolve("templates.kjt");
+    Files.writeString(file, "not a template store");
+    assertThrows(IOException.class, () -> TemplateStore.open(file));
+  }
+
+  @Test
+  public void precompile00(@TempDir Path dir) throws Exception {
+    Files.createDirectories(dir.resolve("views"));
+    Files.writeString(dir.resolve("views/main.html"),
+          "<p>~%%include:/views/part.html%%</p>");
+    Files.writeString(dir.resolve("views/part.html"), PART);
+    Files.writeString(dir.resolve("views/readme.txt"), "not a template");
+    PreloadReport report = Precompiler.precompile(dir, "**.html");
+    assertEquals(2, report.templates().size());
+    Path file = dir.resolve(TemplateStore.CLASSPATH_STORE);
+    assertTrue(Files.isRegularFile(file));
+    assertEquals(2, TemplateStore.open(file).size());
+    try (URLClassLoader loader = new URLClassLoader(
+          new URL[] {dir.toUri().toURL()}, null)) {
+      List<TemplateStore> stores = TemplateCache.INSTANCE.getClasspathStores(loader);
+      assertEquals(1, stores.size());
+      assertEquals(2, stores.get(0).size());
+    }
+  }
+
+  @Test
+  public void precompile01(@TempDir Path dir) throws Exception {
+    Files.writeString(dir.resolve("main.html"), "~%%include:/missing.html%%");
+    assertThrows(ParseException.class, () -> Precompiler.precompile(dir, "**.html"));
+    assertFalse(Files.exists(dir.resolve(TemplateStore.CLASSPATH_STORE)));
+  }
+
+  private static PathResolver resolver(Map<String, String> sources) {
+    return path -> new ByteArrayInputStream(sources.get(path).getBytes(UTF_8));
+  }
+
+  private static String render(Template t) throws RenderException {
+    RenderSession rs = t.newRenderSession();
+    rs.in("rows").set("name", "<John>");
+    rs.in("rows").in("cell").set("value", "x");
+    rs.in("part").set("value", "y");
+    return rs.render();
+  }
+
+  // Describes the part tree, including the positions of the parts
+  private static String describe(Template t) {
+    StringBuilder sb = new StringBuilder(t.getName()).append('[');
+    for (Part part : t.parts()) {
+      sb.append(part.getClass().getSimpleName()).append('@').append(part.start());
+      switch (part) {
+        case InlineTemplatePart itp -> sb.append(itp.isStartTagOnSeparateLine())
+              .append(itp.isEndTagOnSeparateLine())
+              .append(describe(t.nested(itp)));
+        case IncludedTemplatePart itp -> sb.append(itp.isTagOnSeparateLine())
+              .append(describe(t.nested(itp)));
+        default -> sb.append('{').append(part).append('}');
+      }
+    }
+    return sb.append(']').toString();
+  }
+
+}
@@ -3,7 +3,9 @@ package org.klojang.templates;
 import org.junit.jupiter.api.Test;
 
 import java.io.ByteArrayInputStream;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 
 import static org.junit.jupiter.api.Assertions.*;
@@ -331,4 +333,29 @@ public class TemplateTest {
     return s.replaceAll("\\s+", "");
   }
 
+  public record Person(String name, int age, List<String> tags) {}
+
+  @Test
+  public void render00() throws ParseException {
+    String src = """
+        <h1>~%html:title%</h1>~%title%
+        <ul>~%%begin:people%<li>~%name% (~%age%)~%%begin:tags%<i>~%tag%</i>~%%end:tags%</li>~%%end:people%</ul>
+        ~%%begin:footer%<footer/>~%%end:footer%
+        """;
+    Template tmpl = Template.fromString(src);
+    Map<String, Object> data = new HashMap<>();
+    data.put("title", "<Q&A>");
+    data.put("people", List.of(
+          Map.of("name", "John", "age", 42, "tags", List.of(Map.of("tag", "a"))),
+          new Person("Mary", 37, List.of()),
+          Optional.empty()));
+    data.put("footer", List.of(1, 2));
+    String expected = tmpl.newRenderSession().insert(data).render();
+    assertEquals(expected, tmpl.render(data));
+    StringBuilder sb = new StringBuilder("x");
+    tmpl.render(Map.of(), sb);
+    assertEquals("x" + tmpl.newRenderSession().insert(Map.of()).render(), sb.toString());
+    assertEquals(tmpl.newRenderSession().render(), tmpl.render(Optional.empty()));
+  }
+
 }